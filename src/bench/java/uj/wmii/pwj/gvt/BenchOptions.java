@@ -0,0 +1,115 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * {@code --name value} command line options of the bench tools, plus the helpers they share.
+ */
+final class BenchOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    BenchOptions(String... args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value, got: " + args[i]);
+            }
+            values.put(args[i].substring(2), args[++i]);
+        }
+    }
+
+    boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    long getBytes(String name, long defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : MemoryBudget.parse(value);
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+
+    Path getPath(String name) {
+        String value = values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing option --" + name);
+        }
+        return Path.of(value).toAbsolutePath().normalize();
+    }
+
+    static long sizeOf(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).sum();
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code task} with {@code System.out} discarded; the command output is not part of what is measured.
+     */
+    static void quietly(Runnable task) {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            task.run();
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Records the exit code of the last command instead of terminating the JVM.
+     */
+    static final class RecordingExitHandler extends ExitHandler {
+
+        private int code;
+
+        @Override
+        void exitOperation(int code) {
+            this.code = code;
+        }
+
+        /**
+         * Returns the code of the last exit since the previous call, 0 when the command did not exit.
+         */
+        int takeCode() {
+            int last = code;
+            code = 0;
+            return last;
+        }
+    }
+}
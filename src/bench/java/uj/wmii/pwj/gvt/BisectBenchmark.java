@@ -0,0 +1,78 @@
+package uj.wmii.pwj.gvt;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the wall-clock time of {@code bisect} with one job, which is plain binary search, and with more. A
+ * repository of {@code --versions} versions of {@code --files} files is generated, one of the versions breaks a
+ * config file, and the test reads that file after sleeping {@code --cost} milliseconds, standing in for a build or
+ * a test suite. Every job count is run against the same randomly placed first bad versions.
+ *
+ * <p>Options: {@code --versions} default 500, {@code --files} default 20, {@code --cost} default 100,
+ * {@code --jobs} comma-separated job counts, default {@code 1,2,4,8}, {@code --runs} default 5, {@code --seed}
+ * default 1.
+ */
+public class BisectBenchmark {
+
+    public static void main(String... args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        int versions = options.getInt("versions", 500);
+        int files = options.getInt("files", 20);
+        int cost = options.getInt("cost", 100);
+        int runs = options.getInt("runs", 5);
+        String[] jobCounts = options.get("jobs", "1,2,4,8").split(",");
+        Random random = new Random(options.getInt("seed", 1));
+
+        Path dir = Files.createTempDirectory("gvt-bisectbench");
+        try {
+            GvtRepository repo = new GvtRepositoryImpl(dir);
+            repo.init("GVT initialized.");
+            for (int i = 0; i < files; i++) {
+                Files.writeString(dir.resolve("file" + i + ".txt"), "content " + i + "\n");
+                repo.add("file" + i + ".txt", "");
+            }
+            Files.writeString(dir.resolve("config.txt"), "0");
+            repo.add("config.txt", "");
+            int first = repo.version(null).version();
+            for (int v = first + 1; v < first + versions; v++) {
+                Files.writeString(dir.resolve("config.txt"), Integer.toString(v));
+                repo.commit("config.txt", "");
+            }
+            int last = repo.version(null).version();
+
+            int[] firstBad = new int[runs];
+            for (int run = 0; run < runs; run++) {
+                firstBad[run] = first + 1 + random.nextInt(last - first);
+            }
+
+            System.out.printf(Locale.ROOT, "%-6s %10s %8s %8s %10s%n", "jobs", "versions", "tested", "rounds", "time ms");
+            for (String jobs : jobCounts) {
+                int threads = Integer.parseInt(jobs.trim());
+                long tested = 0;
+                long rounds = 0;
+                long start = System.nanoTime();
+                for (int run = 0; run < runs; run++) {
+                    int bad = firstBad[run];
+                    BisectResult result = repo.bisect(first, last, threads, (version, directory) -> {
+                        Thread.sleep(cost);
+                        int value = Integer.parseInt(Files.readString(directory.resolve("config.txt")));
+                        return (value < bad) ? BisectPredicate.Verdict.GOOD : BisectPredicate.Verdict.BAD;
+                    });
+                    if (result.firstBad() != bad) {
+                        throw new IllegalStateException("Expected " + bad + ", found " + result.firstBad());
+                    }
+                    tested += result.tested();
+                    rounds += result.rounds();
+                }
+                long millis = (System.nanoTime() - start) / 1_000_000 / runs;
+                System.out.printf(Locale.ROOT, "%-6d %10d %8.1f %8.1f %10d%n", threads, versions,
+                    (double) tested / runs, (double) rounds / runs, millis);
+            }
+        } finally {
+            BenchOptions.deleteRecursively(dir);
+        }
+    }
+}
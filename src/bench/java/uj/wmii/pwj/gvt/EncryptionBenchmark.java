@@ -0,0 +1,118 @@
+package uj.wmii.pwj.gvt;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@code commit} and {@code checkout --to} in a plain and in an encrypted repository.
+ * Every run rewrites all files with fresh random content, commits them one by one, then checks the new version out
+ * into an empty directory; the best run of each variant is reported, with the time encryption adds.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code --files} files in the repository, default 100;</li>
+ *   <li>{@code --size} bytes per file, default 262144;</li>
+ *   <li>{@code --runs} measured runs per variant, default 10;</li>
+ *   <li>{@code --warmup} unmeasured runs per variant before them, default 5;</li>
+ *   <li>{@code --seed} random seed, default 1.</li>
+ * </ul>
+ */
+public class EncryptionBenchmark {
+
+    public static void main(String... args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        int files = options.getInt("files", 100);
+        int size = options.getInt("size", 256 * 1024);
+        int runs = options.getInt("runs", 10);
+        int warmup = options.getInt("warmup", 5);
+        Random random = new Random(options.getInt("seed", 1));
+
+        Path work = Files.createTempDirectory("gvt-encbench");
+        try {
+            List<Variant> variants = List.of(
+                new Variant(work, "plain", null, files, size, random),
+                new Variant(work, "encrypted", RepositoryKey.generate(), files, size, random));
+            // the variants take turns, so that JIT compilation and the state of the disk favour neither of them
+            for (int run = -warmup; run < runs; run++) {
+                for (Variant variant : variants) {
+                    variant.run(random, run >= 0);
+                }
+            }
+            System.out.printf(Locale.ROOT, "%-10s %12s %12s %14s %12s%n", "variant", "commit MB/s", "overhead",
+                "checkout MB/s", "overhead");
+            for (Variant variant : variants) {
+                variant.report(variants.get(0));
+            }
+        } finally {
+            BenchOptions.deleteRecursively(work);
+        }
+    }
+
+    private static final class Variant {
+        private final Path work;
+        private final String name;
+        private final GvtRepositoryImpl repo;
+        private final List<String> files = new ArrayList<>();
+        private final int size;
+        private double commit;
+        private double checkout;
+
+        Variant(Path work, String name, RepositoryKey key, int files, int size, Random random) throws Exception {
+            this.work = work;
+            this.name = name;
+            this.size = size;
+            Path dir = Files.createDirectories(work.resolve(name));
+            this.repo = (key == null) ? new GvtRepositoryImpl(dir) : new GvtRepositoryImpl(dir, key);
+            repo.init("GVT initialized.", key != null);
+            for (int i = 0; i < files; i++) {
+                this.files.add("file" + i + ".bin");
+                Files.write(dir.resolve(this.files.get(i)), content(random, size));
+                repo.add(this.files.get(i), "encryption bench");
+            }
+        }
+
+        /**
+         * Rewrites and commits every file, then checks the new version out; keeps the best throughput, in bytes
+         * per second, of the measured runs.
+         */
+        void run(Random random, boolean measured) throws Exception {
+            Path dir = work.resolve(name);
+            for (String file : files) {
+                Files.write(dir.resolve(file), content(random, size));
+            }
+            long start = System.nanoTime();
+            for (String file : files) {
+                repo.commit(file, "encryption bench", true);
+            }
+            long commitNanos = System.nanoTime() - start;
+
+            Path target = work.resolve(name + "-checkout");
+            start = System.nanoTime();
+            repo.checkout(repo.version(null).version(), target, null);
+            long checkoutNanos = System.nanoTime() - start;
+            BenchOptions.deleteRecursively(target);
+
+            if (measured) {
+                long bytes = (long) files.size() * size;
+                commit = Math.max(commit, bytes * 1e9 / commitNanos);
+                checkout = Math.max(checkout, bytes * 1e9 / checkoutNanos);
+            }
+        }
+
+        void report(Variant baseline) {
+            System.out.printf(Locale.ROOT, "%-10s %12.1f %11.1f%% %14.1f %11.1f%%%n", name,
+                commit / 1e6, (baseline.commit / commit - 1) * 100,
+                checkout / 1e6, (baseline.checkout / checkout - 1) * 100);
+        }
+    }
+
+    private static byte[] content(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,121 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures how fast {@code gvt history} gets its lines into a pipe: the previous path that called
+ * {@code System.out.println} for every version against {@link VersionServiceImpl} writing through {@link Output}.
+ * {@code System.out} is replaced by a stream set up the way the JVM sets up standard output, writing into a pipe
+ * that a separate thread drains.
+ *
+ * <p>Arguments: {@code [versions] [iterations]}, defaults 2000 and 200.
+ */
+public class HistoryOutputBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    public static void main(String... args) throws Exception {
+        int versions = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+        Path dir = Files.createTempDirectory("gvt-history-bench");
+        PrintStream console = System.out;
+        try {
+            GvtRepository repository = createRepository(dir, versions);
+            VersionService service = new VersionServiceImpl(repository, new FailingExitHandler());
+
+            Pipe pipe = Pipe.open();
+            Thread drain = startDrain(pipe);
+            System.setOut(new PrintStream(new BufferedOutputStream(Channels.newOutputStream(pipe.sink()), 128), true));
+
+            Result println = measure(iterations, () -> repository.history(0,
+                info -> System.out.println(info.version() + ": " + info.firstLine())));
+            Result buffered = measure(iterations, () -> service.history(0));
+
+            System.out.close();
+            drain.join();
+            System.setOut(console);
+
+            long lines = (long) (versions + 1) * iterations;
+            print("println per line", println, lines);
+            print("buffered output", buffered, lines);
+            System.out.printf("speedup: %.2fx%n", (double) println.nanos / buffered.nanos);
+        } finally {
+            System.setOut(console);
+            BenchOptions.deleteRecursively(dir);
+        }
+    }
+
+    private static GvtRepository createRepository(Path dir, int versions) throws GvtException, IOException {
+        GvtRepository repository = new GvtRepositoryImpl(dir);
+        repository.init("GVT initialized.");
+        Path file = dir.resolve("a.txt");
+        Files.writeString(file, "0");
+        repository.add("a.txt", "first version");
+        for (int v = 2; v <= versions; v++) {
+            Files.writeString(file, Integer.toString(v));
+            repository.commit("a.txt", "Change number " + v + " of a.txt\nwith a second line that is not printed");
+        }
+        return repository;
+    }
+
+    private static Thread startDrain(Pipe pipe) {
+        Thread drain = new Thread(() -> {
+            try (InputStream in = Channels.newInputStream(pipe.source())) {
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) >= 0) {
+                    // discard, like a reader that keeps up with the output
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "history-drain");
+        drain.setDaemon(true);
+        drain.start();
+        return drain;
+    }
+
+    private static Result measure(int iterations, Task task) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.run();
+        }
+        System.out.flush();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        System.out.flush();
+        return new Result(System.nanoTime() - start, threads.getCurrentThreadAllocatedBytes() - allocated);
+    }
+
+    private static void print(String name, Result result, long lines) {
+        double seconds = result.nanos / 1e9;
+        System.out.printf("%-18s %,12.0f lines/s %,10.1f ms %,10.1f bytes allocated per line%n",
+            name, lines / seconds, result.nanos / 1e6, (double) result.allocated / lines);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private record Result(long nanos, long allocated) {
+    }
+
+    private static class FailingExitHandler extends ExitHandler {
+        @Override
+        void exitOperation(int code) {
+            throw new IllegalStateException("history failed with exit code " + code);
+        }
+    }
+}
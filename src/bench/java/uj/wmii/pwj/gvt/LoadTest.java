@@ -0,0 +1,193 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays a weighted mix of commands against a repository, for example one built by {@link RepositoryGenerator},
+ * and reports latency percentiles per command and the on-disk growth per created version. Commands go through
+ * {@link VersionService}, so the numbers include everything the CLI does except JVM startup.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code --dir} initialized repository (required);</li>
+ *   <li>{@code --operations} number of commands to run, default 1000;</li>
+ *   <li>{@code --mix} comma separated {@code command=weight} pairs, default
+ *       {@value #DEFAULT_MIX};</li>
+ *   <li>{@code --seed} random seed, default 1.</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    static final String DEFAULT_MIX = "history=20,version=20,log=10,blame=10,status=15,commit=15,checkout=5,fsck=1";
+
+    private final Path dir;
+    private final Random random;
+    private final BenchOptions.RecordingExitHandler exitHandler = new BenchOptions.RecordingExitHandler();
+    private final VersionService service;
+    private final GvtRepository repository;
+    private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+    private Path checkoutDir;
+    private int failures;
+
+    LoadTest(Path dir, long seed) {
+        this.dir = dir;
+        this.random = new Random(seed);
+        this.repository = new GvtRepositoryImpl(dir);
+        this.service = new VersionServiceImpl(repository, exitHandler);
+    }
+
+    public static void main(String... args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        LoadTest test = new LoadTest(options.getPath("dir"), options.getInt("seed", 1));
+        test.run(options.getInt("operations", 1000), parseMix(options.get("mix", DEFAULT_MIX)));
+    }
+
+    void run(int operations, Map<String, Integer> mix) throws GvtException, IOException {
+        if (!repository.isInitialized()) {
+            throw new IllegalArgumentException("Not a gvt repository: " + dir);
+        }
+        int startVersion = repository.version(null).version();
+        long startSize = BenchOptions.sizeOf(dir.resolve(".gvt"));
+        List<String> files = repository.files(null);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        checkoutDir = Files.createTempDirectory("gvt-loadtest");
+
+        for (int i = 0; i < operations; i++) {
+            String command = pick(mix, totalWeight);
+            Runnable call = prepare(command, files);
+            long start = System.nanoTime();
+            BenchOptions.quietly(call);
+            long elapsed = System.nanoTime() - start;
+            latencies.computeIfAbsent(command, c -> new Latencies()).add(elapsed);
+            int code = exitHandler.takeCode();
+            if (code != 0) {
+                failures++;
+            }
+        }
+
+        BenchOptions.deleteRecursively(checkoutDir);
+
+        int endVersion = repository.version(null).version();
+        long endSize = BenchOptions.sizeOf(dir.resolve(".gvt"));
+        report(operations, endVersion - startVersion, endSize - startSize, endSize, endVersion);
+    }
+
+    /**
+     * Picks the arguments of the next command; file modifications for commits happen here, outside the measurement.
+     */
+    private Runnable prepare(String command, List<String> files) {
+        int latest = latestVersion();
+        String file = files.isEmpty() ? "missing.txt" : files.get(random.nextInt(files.size()));
+        switch (command) {
+            case "history":
+                int last = random.nextBoolean() ? 0 : 10;
+                return () -> service.history(last);
+            case "version":
+                int version = random.nextInt(latest + 1);
+                return () -> service.version(version);
+            case "log":
+                return random.nextBoolean() ? () -> service.log("change", null) : () -> service.log(null, file);
+            case "blame":
+                return () -> service.blame(file, null);
+            case "status":
+                return service::status;
+            case "commit":
+                appendLine(file);
+                return () -> service.commit(file, "load test");
+            case "checkout":
+                int target = random.nextInt(latest + 1);
+                return () -> service.checkout(target, checkoutDir.toString(), null);
+            case "fsck":
+                return service::fsck;
+            default:
+                throw new IllegalArgumentException("Unknown command in mix: " + command);
+        }
+    }
+
+    private int latestVersion() {
+        try {
+            return repository.version(null).version();
+        } catch (GvtException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void appendLine(String file) {
+        try {
+            Files.writeString(dir.resolve(file), "load test " + random.nextLong() + System.lineSeparator(),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String pick(Map<String, Integer> mix, int totalWeight) {
+        int roll = random.nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty command mix");
+    }
+
+    private void report(int operations, int versions, long growth, long size, int latest) {
+        System.out.printf(Locale.ROOT, "%-10s %8s %10s %10s %10s %10s%n", "command", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            Latencies l = entry.getValue();
+            System.out.printf(Locale.ROOT, "%-10s %8d %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), l.count,
+                l.percentile(0.50), l.percentile(0.90), l.percentile(0.99), l.percentile(1.0));
+        }
+        System.out.printf(Locale.ROOT, "operations: %d, failed: %d%n", operations, failures);
+        System.out.printf(Locale.ROOT, "versions created: %d, .gvt growth: %,d bytes (%,.0f bytes per version)%n",
+            versions, growth, versions == 0 ? 0.0 : (double) growth / versions);
+        System.out.printf(Locale.ROOT, ".gvt size: %,d bytes for %d versions (%,.0f bytes per version)%n",
+            size, latest, (double) size / Math.max(1, latest));
+    }
+
+    static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            int weight = Integer.parseInt(pair[1]);
+            if (weight > 0) {
+                mix.put(pair[0], weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty command mix: " + spec);
+        }
+        return mix;
+    }
+
+    private static final class Latencies {
+
+        private long[] nanos = new long[64];
+        private int count;
+
+        void add(long value) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = value;
+        }
+
+        double percentile(double p) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = Math.min(count - 1, (int) Math.ceil(p * count) - 1);
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
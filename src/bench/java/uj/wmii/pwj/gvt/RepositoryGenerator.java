@@ -0,0 +1,197 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Builds a gvt repository of a given shape through the public {@link VersionService} operations, the same way
+ * the CLI would. After the initial import of {@code --files} files every version either commits a modified file,
+ * adds a new one or detaches one.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code --dir} target directory (required, must not be initialized);</li>
+ *   <li>{@code --versions} number of the last version to create, default 1000;</li>
+ *   <li>{@code --files} files in the initial import, default 100, spread over directories of 10;</li>
+ *   <li>{@code --sizes} file size distribution: {@code fixed:4k}, {@code uniform:1k-64k} or
+ *       {@code lognormal:8k} (median), default {@code lognormal:4k};</li>
+ *   <li>{@code --change-rate} fraction of a file's lines rewritten by a commit, default 0.1;</li>
+ *   <li>{@code --churn} probability that a version adds or detaches a file instead of committing one,
+ *       default 0.05;</li>
+ *   <li>{@code --seed} random seed, default 1.</li>
+ * </ul>
+ */
+public class RepositoryGenerator {
+
+    private static final int FILES_PER_DIRECTORY = 10;
+    private static final int LINE_LENGTH = 64;
+
+    private final Path dir;
+    private final Random random;
+    private final SizeDistribution sizes;
+    private final double changeRate;
+    private final double churn;
+    private final BenchOptions.RecordingExitHandler exitHandler = new BenchOptions.RecordingExitHandler();
+    private final VersionService service;
+    private final List<String> tracked = new ArrayList<>();
+    private final List<String> detached = new ArrayList<>();
+    private int nextFile;
+    private int latest;
+
+    RepositoryGenerator(Path dir, SizeDistribution sizes, double changeRate, double churn, long seed) {
+        this.dir = dir;
+        this.random = new Random(seed);
+        this.sizes = sizes;
+        this.changeRate = changeRate;
+        this.churn = churn;
+        this.service = new VersionServiceImpl(dir.toString(), exitHandler);
+    }
+
+    public static void main(String... args) throws IOException {
+        BenchOptions options = new BenchOptions(args);
+        Path dir = options.getPath("dir");
+        int versions = options.getInt("versions", 1000);
+        int files = options.getInt("files", 100);
+
+        Files.createDirectories(dir);
+        RepositoryGenerator generator = new RepositoryGenerator(dir,
+            SizeDistribution.parse(options.get("sizes", "lognormal:4k")),
+            options.getDouble("change-rate", 0.1),
+            options.getDouble("churn", 0.05),
+            options.getInt("seed", 1));
+
+        long start = System.nanoTime();
+        generator.generate(versions, files);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long size = BenchOptions.sizeOf(dir.resolve(".gvt"));
+        System.out.printf(Locale.ROOT, "Generated %s: %d versions, %d tracked files in %.1f s%n",
+            dir, generator.latest, generator.tracked.size(), seconds);
+        System.out.printf(Locale.ROOT, ".gvt size: %,d bytes, %,.0f bytes per version%n",
+            size, (double) size / Math.max(1, generator.latest));
+    }
+
+    void generate(int versions, int files) throws IOException {
+        run(() -> service.init("GVT initialized."));
+        for (int i = 0; i < files; i++) {
+            tracked.add(createFile());
+        }
+        if (files > 0) {
+            run(() -> service.addRecursive(".", "initial import"));
+            latest++;
+        }
+
+        int reported = 0;
+        while (latest < versions) {
+            double roll = random.nextDouble();
+            if (tracked.isEmpty() || roll < churn / 2) {
+                String file = detached.isEmpty() ? createFile() : detached.remove(detached.size() - 1);
+                run(() -> service.add(file, "add " + file));
+                tracked.add(file);
+            } else if (roll < churn && tracked.size() > 1) {
+                String file = tracked.remove(random.nextInt(tracked.size()));
+                run(() -> service.detach(file, "detach " + file));
+                detached.add(file);
+            } else {
+                String file = tracked.get(random.nextInt(tracked.size()));
+                modify(file);
+                run(() -> service.commit(file, "change " + file));
+            }
+            latest++;
+
+            int percent = (int) (100L * latest / versions);
+            if (percent >= reported + 10) {
+                reported = percent - percent % 10;
+                System.out.println(reported + "% (" + latest + " versions)");
+            }
+        }
+    }
+
+    private String createFile() throws IOException {
+        int n = nextFile++;
+        String name = "d" + (n / FILES_PER_DIRECTORY) + "/f" + n + ".txt";
+        Path file = dir.resolve(name);
+        Files.createDirectories(file.getParent());
+        long size = sizes.next(random);
+        List<String> lines = new ArrayList<>();
+        for (long written = 0; written < size; written += LINE_LENGTH + 1) {
+            lines.add(line());
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return name;
+    }
+
+    /**
+     * Rewrites about {@code changeRate} of the file's lines, at least one.
+     */
+    private void modify(String name) throws IOException {
+        Path file = dir.resolve(name);
+        List<String> lines = new ArrayList<>(Files.readAllLines(file, StandardCharsets.UTF_8));
+        if (lines.isEmpty()) {
+            lines.add(line());
+        } else {
+            int changes = Math.max(1, (int) Math.round(lines.size() * changeRate));
+            for (int i = 0; i < changes; i++) {
+                lines.set(random.nextInt(lines.size()), line());
+            }
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    private String line() {
+        char[] chars = new char[LINE_LENGTH];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (i % 8 == 7) ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private void run(Runnable command) {
+        BenchOptions.quietly(command);
+        int code = exitHandler.takeCode();
+        if (code != 0) {
+            throw new IllegalStateException("Command failed with exit code " + code + " at version " + latest);
+        }
+    }
+
+    /**
+     * File sizes in bytes.
+     */
+    interface SizeDistribution {
+
+        long next(Random random);
+
+        static SizeDistribution parse(String spec) {
+            int colon = spec.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected kind:parameters, got: " + spec);
+            }
+            String kind = spec.substring(0, colon);
+            String parameters = spec.substring(colon + 1);
+            switch (kind) {
+                case "fixed": {
+                    long size = MemoryBudget.parse(parameters);
+                    return random -> size;
+                }
+                case "uniform": {
+                    String[] bounds = parameters.split("-");
+                    long min = MemoryBudget.parse(bounds[0]);
+                    long max = MemoryBudget.parse(bounds[1]);
+                    return random -> min + (long) (random.nextDouble() * (max - min + 1));
+                }
+                case "lognormal": {
+                    double median = MemoryBudget.parse(parameters);
+                    return random -> Math.max(1, (long) (median * Math.exp(random.nextGaussian())));
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown size distribution: " + kind);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the wall-clock latency of single {@code gvt} invocations, as a shell script sees it, for the plain fat
+ * jar, the jar started with the AppCDS archive and the native image. Variants whose file is missing are skipped.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code --jar} the fat jar (required);</li>
+ *   <li>{@code --archive} AppCDS archive created by the {@code cdsArchive} task;</li>
+ *   <li>{@code --native} executable created by the {@code nativeImage} task;</li>
+ *   <li>{@code --command} space separated command to time, default {@code history};</li>
+ *   <li>{@code --runs} measured invocations per variant, after 3 warm-up ones, default 20.</li>
+ * </ul>
+ */
+public class StartupBenchmark {
+
+    private static final int WARMUP_RUNS = 3;
+
+    public static void main(String... args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        Path jar = options.getPath("jar");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(options.get("command", "history").split(" "));
+        int runs = options.getInt("runs", 20);
+
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+        variants.put("jar", List.of(java, "-jar", jar.toString()));
+        Path archive = options.has("archive") ? options.getPath("archive") : null;
+        if (archive != null && Files.isRegularFile(archive)) {
+            variants.put("jar+AppCDS", List.of(java, "-XX:SharedArchiveFile=" + archive, "-jar", jar.toString()));
+        }
+        Path executable = options.has("native") ? options.getPath("native") : null;
+        if (executable != null && Files.isExecutable(executable)) {
+            variants.put("native", List.of(executable.toString()));
+        }
+
+        Path dir = Files.createTempDirectory("gvt-startup");
+        try {
+            prepare(dir, variants.get("jar"));
+            System.out.printf(Locale.ROOT, "%-12s %10s %10s %10s%n", "variant", "min ms", "p50 ms", "p90 ms");
+            for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+                for (int i = 0; i < WARMUP_RUNS; i++) {
+                    time(dir, variant.getValue(), command);
+                }
+                long[] nanos = new long[runs];
+                for (int i = 0; i < runs; i++) {
+                    nanos[i] = time(dir, variant.getValue(), command);
+                }
+                Arrays.sort(nanos);
+                System.out.printf(Locale.ROOT, "%-12s %10.1f %10.1f %10.1f%n", variant.getKey(), nanos[0] / 1e6,
+                    nanos[runs / 2] / 1e6, nanos[Math.min(runs - 1, (int) Math.ceil(0.9 * runs) - 1)] / 1e6);
+            }
+        } finally {
+            BenchOptions.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Creates a small repository to run the command in.
+     */
+    private static void prepare(Path dir, List<String> launcher) throws IOException, InterruptedException {
+        time(dir, launcher, List.of("init"));
+        for (int i = 0; i < 10; i++) {
+            String file = "file" + i + ".txt";
+            Files.writeString(dir.resolve(file), "line " + i + System.lineSeparator());
+            time(dir, launcher, List.of("add", file));
+        }
+    }
+
+    private static long time(Path dir, List<String> launcher, List<String> command)
+        throws IOException, InterruptedException {
+        List<String> commandLine = new ArrayList<>(launcher);
+        commandLine.addAll(command);
+        ProcessBuilder builder = new ProcessBuilder(commandLine)
+            .directory(dir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        int code = builder.start().waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (code != 0) {
+            throw new IllegalStateException("Exit code " + code + ": " + commandLine);
+        }
+        return elapsed;
+    }
+}
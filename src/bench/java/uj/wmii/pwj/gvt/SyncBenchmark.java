@@ -0,0 +1,102 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares synchronising a replica over the push/pull protocol with copying the whole {@code .gvt} directory.
+ * The repository given by {@code --dir} is copied first and left untouched; the copy is served on a local port,
+ * pulled into an empty directory, then extended by {@code --commits} versions and pulled again.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code --dir} initialized repository, for example one built by {@link RepositoryGenerator} (required);</li>
+ *   <li>{@code --commits} versions created before the incremental pull, default 10;</li>
+ *   <li>{@code --seed} random seed, default 1.</li>
+ * </ul>
+ */
+public class SyncBenchmark {
+
+    public static void main(String... args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        Path dir = options.getPath("dir");
+        int commits = options.getInt("commits", 10);
+        Random random = new Random(options.getInt("seed", 1));
+        if (!new GvtRepositoryImpl(dir).isInitialized()) {
+            throw new IllegalArgumentException("Not a gvt repository: " + dir);
+        }
+
+        Path work = Files.createTempDirectory("gvt-syncbench");
+        try {
+            Path source = work.resolve("source");
+            long start = System.nanoTime();
+            copyTree(dir.resolve(".gvt"), source.resolve(".gvt"));
+            report("full copy", System.nanoTime() - start, BenchOptions.sizeOf(source.resolve(".gvt")), -1);
+
+            GvtRepositoryImpl served = new GvtRepositoryImpl(source);
+            try (SyncServer server = served.serve(0)) {
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        server.run();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, "gvt-syncbench-server");
+                acceptor.setDaemon(true);
+                acceptor.start();
+                String address = "localhost:" + server.getPort();
+
+                GvtRepositoryImpl replica = new GvtRepositoryImpl(work.resolve("replica"));
+                Files.createDirectories(replica.getPath());
+                start = System.nanoTime();
+                SyncResult full = replica.pull(address);
+                report("full pull", System.nanoTime() - start, full.bytes(), full.versions());
+
+                served.checkout(served.version(null).version());
+                List<String> files = served.files(null);
+                for (int i = 0; i < commits; i++) {
+                    String file = files.get(random.nextInt(files.size()));
+                    Files.writeString(source.resolve(file), "sync bench " + random.nextLong() + System.lineSeparator(),
+                        StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                    served.commit(file, "sync bench", true);
+                }
+
+                start = System.nanoTime();
+                copyTree(source.resolve(".gvt"), work.resolve("copy").resolve(".gvt"));
+                report("re-copy", System.nanoTime() - start, BenchOptions.sizeOf(source.resolve(".gvt")), -1);
+
+                start = System.nanoTime();
+                SyncResult incremental = replica.pull(address);
+                report("incr pull", System.nanoTime() - start, incremental.bytes(), incremental.versions());
+            }
+        } finally {
+            BenchOptions.deleteRecursively(work);
+        }
+    }
+
+    private static void report(String name, long nanos, long bytes, int versions) {
+        System.out.printf(Locale.ROOT, "%-10s %10.1f ms %,15d bytes%s%n", name, nanos / 1e6, bytes,
+            versions < 0 ? "" : ", " + versions + " versions");
+    }
+
+    private static void copyTree(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.walk(from)) {
+            for (Path file : files.toList()) {
+                Path target = to.resolve(from.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(file, target);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class AlreadyInitializedException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public AlreadyInitializedException()
+    {
+        super("Current directory is already initialized.");
+    }
+}
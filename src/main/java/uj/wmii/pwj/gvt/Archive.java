@@ -0,0 +1,332 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams the files of a version into a tar, gzipped tar or zip archive, straight from the object store.
+ * The calling thread walks the tree and reads the stored revisions into a bounded queue of chunks; a second
+ * thread encodes and compresses them into the output, so reading and deflating overlap. Memory use is bounded
+ * by the queue, whatever the size of the files.
+ */
+final class Archive
+{
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUE_CHUNKS = 16;
+    private static final long POLL_MILLIS = 100;
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private final ObjectStore objectStore;
+    private final TreeStore treeStore;
+
+    /**
+     * The start of an entry when {@code path} is set, a piece of its content otherwise.
+     */
+    private record Chunk(String path, long size, byte[] data)
+    {
+    }
+
+    private interface Encoder
+    {
+        void begin(String path, long size) throws IOException;
+        void write(byte[] data) throws IOException;
+        void finish() throws IOException;
+    }
+
+    Archive(ObjectStore objectStore, TreeStore treeStore)
+    {
+        this.objectStore = objectStore;
+        this.treeStore = treeStore;
+    }
+
+    /**
+     * Writes the files of {@code tree} to {@code out}, which is flushed but left open.
+     */
+    ArchiveResult write(int version, String tree, ArchiveFormat format, OutputStream out) throws IOException
+    {
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        long time = System.currentTimeMillis();
+        AtomicInteger files = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-archive", 1);
+        try {
+            Future<?> encoder = pool.submit(() -> {
+                encode(queue, format, out, time);
+                return null;
+            });
+            treeStore.walk(tree, (path, hash) -> {
+                long size = objectStore.size(hash);
+                put(queue, new Chunk(path, size, null), encoder);
+                try (InputStream in = objectStore.open(hash)) {
+                    for (long remaining = size; remaining > 0; ) {
+                        byte[] data = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+                        if (in.readNBytes(data, 0, data.length) < data.length) {
+                            throw new IOException("Object " + hash + " is shorter than " + size + " bytes");
+                        }
+                        put(queue, new Chunk(null, 0, data), encoder);
+                        remaining -= data.length;
+                    }
+                }
+                files.incrementAndGet();
+                bytes.addAndGet(size);
+            });
+            put(queue, END, encoder);
+            encoder.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while archiving", e);
+        } catch (ExecutionException e) {
+            throw failure(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new ArchiveResult(version, files.get(), bytes.get());
+    }
+
+    /**
+     * Queues {@code chunk}, giving up as soon as the encoder has failed instead of waiting for room forever.
+     */
+    private static void put(BlockingQueue<Chunk> queue, Chunk chunk, Future<?> encoder) throws IOException
+    {
+        try {
+            while (!queue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (encoder.isDone()) {
+                    encoder.get();
+                    throw new IOException("Archive encoder stopped");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while archiving", e);
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+    }
+
+    private static IOException failure(ExecutionException e)
+    {
+        return (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+
+    private static void encode(BlockingQueue<Chunk> queue, ArchiveFormat format, OutputStream out, long time)
+        throws IOException, InterruptedException
+    {
+        OutputStream target = new BufferedOutputStream(new FilterOutputStream(out)
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                flush();
+            }
+        }, CHUNK_SIZE);
+
+        try (OutputStream sink = (format == ArchiveFormat.TGZ) ? new GZIPOutputStream(target, CHUNK_SIZE) : target) {
+            Encoder encoder = (format == ArchiveFormat.ZIP) ? new ZipEncoder(sink, time) : new TarEncoder(sink, time);
+            for (Chunk chunk = queue.take(); chunk != END; chunk = queue.take()) {
+                if (chunk.path() != null) {
+                    encoder.begin(chunk.path(), chunk.size());
+                } else {
+                    encoder.write(chunk.data());
+                }
+            }
+            encoder.finish();
+        }
+    }
+
+    private static final class ZipEncoder implements Encoder
+    {
+        private final ZipOutputStream zip;
+        private final long time;
+
+        ZipEncoder(OutputStream out, long time)
+        {
+            this.zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+            this.time = time;
+        }
+
+        @Override
+        public void begin(String path, long size) throws IOException
+        {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(time);
+            zip.putNextEntry(entry);
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException
+        {
+            zip.write(data);
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            zip.close();
+        }
+    }
+
+    /**
+     * POSIX ustar. Paths that do not fit the name and prefix fields, and files of 8 GiB or more, get a pax
+     * extended header.
+     */
+    private static final class TarEncoder implements Encoder
+    {
+        private static final int BLOCK = 512;
+        private static final int NAME_LENGTH = 100;
+        private static final int PREFIX_LENGTH = 155;
+        private static final long MAX_SIZE = 077777777777L;
+        private static final byte FILE = '0';
+        private static final byte PAX = 'x';
+
+        private final OutputStream out;
+        private final long mtime;
+        private long written;
+
+        TarEncoder(OutputStream out, long time)
+        {
+            this.out = out;
+            this.mtime = time / 1000;
+        }
+
+        @Override
+        public void begin(String path, long size) throws IOException
+        {
+            pad();
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            int split = split(name);
+            if (split < 0 || size > MAX_SIZE) {
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                if (split < 0) {
+                    records.write(paxRecord("path", path));
+                }
+                if (size > MAX_SIZE) {
+                    records.write(paxRecord("size", Long.toString(size)));
+                }
+                out.write(header("././@PaxHeader".getBytes(StandardCharsets.US_ASCII), 0, records.size(), PAX));
+                records.writeTo(out);
+                written = records.size();
+                pad();
+            }
+            out.write(header(name, Math.max(split, 0), Math.min(size, MAX_SIZE), FILE));
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException
+        {
+            out.write(data);
+            written += data.length;
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            pad();
+            out.write(new byte[2 * BLOCK]);
+        }
+
+        private void pad() throws IOException
+        {
+            int rest = (int) (written % BLOCK);
+            if (rest != 0) {
+                out.write(new byte[BLOCK - rest]);
+            }
+            written = 0;
+        }
+
+        /**
+         * Returns 0 when {@code name} fits the name field, the index of the slash separating the prefix field from
+         * the name field, or -1 when there is no such slash.
+         */
+        private static int split(byte[] name)
+        {
+            if (name.length <= NAME_LENGTH) {
+                return 0;
+            }
+            for (int i = name.length - NAME_LENGTH - 1; i <= PREFIX_LENGTH && i < name.length; i++) {
+                if (name[i] == '/' && i > 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private byte[] header(byte[] name, int split, long size, byte type)
+        {
+            byte[] header = new byte[BLOCK];
+            if (split > 0) {
+                System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+                System.arraycopy(name, 0, header, 345, split);
+            } else {
+                System.arraycopy(name, Math.max(0, name.length - NAME_LENGTH), header, 0,
+                    Math.min(name.length, NAME_LENGTH));
+            }
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, mtime);
+            header[156] = type;
+            System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xFF;
+            }
+            octal(header, 148, 7, checksum);
+            return header;
+        }
+
+        private static void octal(byte[] header, int offset, int length, long value)
+        {
+            String digits = Long.toOctalString(value);
+            int start = offset + length - 1 - digits.length();
+            Arrays.fill(header, offset, start, (byte) '0');
+            for (int i = 0; i < digits.length(); i++) {
+                header[start + i] = (byte) digits.charAt(i);
+            }
+            header[offset + length - 1] = 0;
+        }
+
+        /**
+         * Returns {@code "<length> <key>=<value>\n"}, where the length counts the whole record, its own digits
+         * included.
+         */
+        private static byte[] paxRecord(String key, String value)
+        {
+            byte[] body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+            int digits = 1;
+            while (Integer.toString(body.length + digits).length() > digits) {
+                digits++;
+            }
+            byte[] length = Integer.toString(body.length + digits).getBytes(StandardCharsets.US_ASCII);
+            byte[] record = new byte[length.length + body.length];
+            System.arraycopy(length, 0, record, 0, length.length);
+            System.arraycopy(body, 0, record, length.length, body.length);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.Locale;
+
+public enum ArchiveFormat
+{
+    TAR, TGZ, ZIP;
+
+    /**
+     * Returns the format named {@code name}, case-insensitively, or {@code null} when there is no such format.
+     */
+    public static ArchiveFormat parse(String name)
+    {
+        for (ArchiveFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Guesses the format from the extension of {@code fileName}, defaulting to {@link #TAR}.
+     */
+    public static ArchiveFormat forFileName(String fileName)
+    {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return ZIP;
+        }
+        if (name.endsWith(".tgz") || name.endsWith(".tar.gz")) {
+            return TGZ;
+        }
+        return TAR;
+    }
+}
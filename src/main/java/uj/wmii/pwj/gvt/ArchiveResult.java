@@ -0,0 +1,5 @@
+package uj.wmii.pwj.gvt;
+
+public record ArchiveResult(int version, int files, long bytes)
+{
+}
@@ -0,0 +1,24 @@
+package uj.wmii.pwj.gvt;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Non-blocking counterpart of {@link GvtRepository}. Mutating operations on one repository run one at a time,
+ * also when they come from different services on the same directory; read-only operations may run in parallel
+ * with each other.
+ */
+public interface AsyncVersionService
+{
+    CompletableFuture<VersionInfo> init(String message);
+    CompletableFuture<ChangeResult> add(String path, String message);
+    CompletableFuture<ChangeResult> detach(String path, String message);
+    CompletableFuture<ChangeResult> commit(String path, String message);
+    CompletableFuture<VersionInfo> checkout(Integer version);
+    CompletableFuture<VersionInfo> checkout(Integer version, Path target, List<String> files);
+    CompletableFuture<VersionInfo> version(Integer version);
+    CompletableFuture<List<VersionInfo>> history(Integer n);
+    Flow.Publisher<VersionInfo> streamHistory(Integer n);
+}
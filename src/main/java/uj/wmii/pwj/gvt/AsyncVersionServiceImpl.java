@@ -0,0 +1,195 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class AsyncVersionServiceImpl implements AsyncVersionService
+{
+    // one lock per repository directory, shared by every service in the JVM that works on it
+    private static final Map<Path, ReadWriteLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final GvtRepository repository;
+    private final Executor executor;
+    private final ReadWriteLock lock;
+
+    public AsyncVersionServiceImpl(GvtRepository repository)
+    {
+        this(repository, GvtExecutors.shared());
+    }
+
+    public AsyncVersionServiceImpl(GvtRepository repository, Executor executor)
+    {
+        this.repository = repository;
+        this.executor = executor;
+        this.lock = LOCKS.computeIfAbsent(canonical(repository.getPath()), p -> new ReentrantReadWriteLock());
+    }
+
+    private static Path canonical(Path path)
+    {
+        Path absolute = path.toAbsolutePath().normalize();
+        try {
+            return absolute.toRealPath();
+        } catch (IOException e) {
+            // not created yet
+            return absolute;
+        }
+    }
+
+    @Override
+    public CompletableFuture<VersionInfo> init(String message)
+    {
+        return write(() -> repository.init(message));
+    }
+
+    @Override
+    public CompletableFuture<ChangeResult> add(String path, String message)
+    {
+        return write(() -> repository.add(path, message));
+    }
+
+    @Override
+    public CompletableFuture<ChangeResult> detach(String path, String message)
+    {
+        return write(() -> repository.detach(path, message));
+    }
+
+    @Override
+    public CompletableFuture<ChangeResult> commit(String path, String message)
+    {
+        return write(() -> repository.commit(path, message));
+    }
+
+    @Override
+    public CompletableFuture<VersionInfo> checkout(Integer version)
+    {
+        return write(() -> repository.checkout(version));
+    }
+
+    /**
+     * Checkouts into another directory leave the repository and its working tree untouched, so several of them
+     * may run at once.
+     */
+    @Override
+    public CompletableFuture<VersionInfo> checkout(Integer version, Path target, List<String> files)
+    {
+        if (target == null) {
+            return write(() -> repository.checkout(version, null, files));
+        }
+        return read(() -> repository.checkout(version, target, files));
+    }
+
+    @Override
+    public CompletableFuture<VersionInfo> version(Integer version)
+    {
+        return read(() -> repository.version(version));
+    }
+
+    @Override
+    public CompletableFuture<List<VersionInfo>> history(Integer n)
+    {
+        return read(() -> repository.history(n));
+    }
+
+    /**
+     * Each subscriber gets a walk of its own, started when it subscribes. The versions it sends are fixed then;
+     * their messages are read {@link Flow#defaultBufferSize()} at a time under the shared lock, which is released
+     * while the walk waits for the subscriber's demand, so a slow subscriber never holds off mutating operations.
+     * The walk stops when the subscription is cancelled.
+     */
+    @Override
+    public Flow.Publisher<VersionInfo> streamHistory(Integer n)
+    {
+        return subscriber -> {
+            SubmissionPublisher<VersionInfo> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            executor.execute(() -> publish(n, publisher));
+        };
+    }
+
+    private void publish(Integer n, SubmissionPublisher<VersionInfo> publisher)
+    {
+        try {
+            int[] range = locked(lock.readLock(), () -> {
+                int[] bounds = {0, -1};
+                repository.history(n, version -> {
+                    if (bounds[1] < 0) {
+                        bounds[0] = version.version();
+                    }
+                    bounds[1] = version.version();
+                });
+                return bounds;
+            });
+            int chunkSize = Flow.defaultBufferSize();
+            for (int from = range[0]; from <= range[1] && publisher.hasSubscribers(); from += chunkSize) {
+                int to = Math.min(from + chunkSize - 1, range[1]);
+                for (VersionInfo version : locked(lock.readLock(), versions(from, to))) {
+                    if (!publisher.hasSubscribers()) {
+                        break;
+                    }
+                    publisher.submit(version);
+                }
+            }
+            publisher.close();
+        } catch (Exception e) {
+            publisher.closeExceptionally(e);
+        }
+    }
+
+    private RepositoryCall<List<VersionInfo>> versions(int from, int to)
+    {
+        return () -> {
+            List<VersionInfo> versions = new ArrayList<>();
+            repository.history(from, to, versions::add);
+            return versions;
+        };
+    }
+
+    private <T> CompletableFuture<T> read(RepositoryCall<T> call)
+    {
+        return supply(lock.readLock(), call);
+    }
+
+    private <T> CompletableFuture<T> write(RepositoryCall<T> call)
+    {
+        return supply(lock.writeLock(), call);
+    }
+
+    private <T> CompletableFuture<T> supply(Lock lock, RepositoryCall<T> call)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return locked(lock, call);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static <T> T locked(Lock lock, RepositoryCall<T> call) throws Exception
+    {
+        lock.lock();
+        try {
+            return call.call();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface RepositoryCall<T>
+    {
+        T call() throws Exception;
+    }
+}
@@ -0,0 +1,9 @@
+package uj.wmii.pwj.gvt;
+
+public record BatchResult(String path, int files, Integer version)
+{
+    public boolean isVersionCreated()
+    {
+        return version != null;
+    }
+}
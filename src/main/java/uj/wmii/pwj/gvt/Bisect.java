@@ -0,0 +1,147 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * K-ary search for the first bad version on a line of descent. Each round splits the versions still in question
+ * at {@code k} evenly spaced points and tests them concurrently, each in a temporary directory of its own, so the
+ * range shrinks {@code k + 1} times per round instead of twice; with one job this is plain binary search. Skipped
+ * versions are never tested again and the round takes the next untested ones instead. Candidates are resolved on the
+ * bisecting thread; the workers only restore their files, each into its own directory, and run the predicate.
+ */
+final class Bisect
+{
+    @FunctionalInterface
+    interface Materialiser
+    {
+        /**
+         * Resolves what {@code version} consists of, on the bisecting thread.
+         */
+        Restore prepare(int version) throws GvtException, IOException;
+    }
+
+    /**
+     * Writes the files of a prepared version into a directory; runs on a worker, concurrently with other restores.
+     */
+    @FunctionalInterface
+    interface Restore
+    {
+        void into(Path directory) throws IOException;
+    }
+
+    private final Materialiser materialiser;
+    private final BisectPredicate predicate;
+    private final int jobs;
+
+    Bisect(Materialiser materialiser, BisectPredicate predicate, int jobs)
+    {
+        this.materialiser = materialiser;
+        this.predicate = predicate;
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /**
+     * Searches {@code line}, ordered from the good version to the bad one, each the parent of the next.
+     */
+    BisectResult run(List<Integer> line) throws GvtException, IOException
+    {
+        Map<Integer, BisectPredicate.Verdict> verdicts = new HashMap<>();
+        int good = 0;
+        int bad = line.size() - 1;
+        int tested = 0;
+        int rounds = 0;
+
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-bisect", jobs);
+        try {
+            while (true) {
+                List<Integer> open = new ArrayList<>();
+                for (int i = good + 1; i < bad; i++) {
+                    if (!verdicts.containsKey(i)) {
+                        open.add(i);
+                    }
+                }
+                if (open.isEmpty()) {
+                    break;
+                }
+
+                int k = Math.min(jobs, open.size());
+                Map<Integer, Future<BisectPredicate.Verdict>> round = new HashMap<>();
+                for (int j = 1; j <= k; j++) {
+                    int index = open.get((int) ((long) j * (open.size() + 1) / (k + 1)) - 1);
+                    int version = line.get(index);
+                    Restore restore = materialiser.prepare(version);
+                    round.put(index, pool.submit(() -> evaluate(version, restore)));
+                }
+                for (Map.Entry<Integer, Future<BisectPredicate.Verdict>> probe : round.entrySet()) {
+                    verdicts.put(probe.getKey(), await(probe.getValue()));
+                }
+                tested += k;
+                rounds++;
+
+                for (Map.Entry<Integer, BisectPredicate.Verdict> verdict : verdicts.entrySet()) {
+                    if (verdict.getValue() == BisectPredicate.Verdict.BAD) {
+                        bad = Math.min(bad, verdict.getKey());
+                    }
+                }
+                for (Map.Entry<Integer, BisectPredicate.Verdict> verdict : verdicts.entrySet()) {
+                    if (verdict.getValue() == BisectPredicate.Verdict.GOOD && verdict.getKey() < bad) {
+                        good = Math.max(good, verdict.getKey());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new BisectResult(line.get(bad), List.copyOf(line.subList(good + 1, bad)), tested, rounds);
+    }
+
+    private BisectPredicate.Verdict evaluate(int version, Restore restore) throws Exception
+    {
+        Path directory = Files.createTempDirectory("gvt-bisect-" + version + "-");
+        try {
+            restore.into(directory);
+            return predicate.test(version, directory);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static BisectPredicate.Verdict await(Future<BisectPredicate.Verdict> future) throws GvtException, IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while bisecting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GvtException) {
+                throw (GvtException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class BisectException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public BisectException(String message)
+    {
+        super(message);
+    }
+}
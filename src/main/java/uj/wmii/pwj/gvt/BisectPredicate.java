@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Decides whether a version is good. It is called concurrently, each time with the files of another version
+ * restored into a directory of its own.
+ */
+@FunctionalInterface
+public interface BisectPredicate
+{
+    enum Verdict
+    {
+        GOOD, BAD, SKIP
+    }
+
+    Verdict test(int version, Path directory) throws GvtException, IOException, InterruptedException;
+}
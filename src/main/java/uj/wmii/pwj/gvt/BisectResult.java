@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.List;
+
+/**
+ * {@code firstBad} is the first bad version after the last good one, unless versions in between could not be
+ * tested; those are listed in {@code skipped} and any of them may be the first bad one.
+ */
+public record BisectResult(int firstBad, List<Integer> skipped, int tested, int rounds)
+{
+}
@@ -0,0 +1,85 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Attributes every line of a file revision to the version that introduced it. Only the versions recorded in
+ * the file's lineage are visited, and only two revisions (as line hashes) are held at a time.
+ */
+final class Blame
+{
+    @FunctionalInterface
+    interface RevisionSource
+    {
+        InputStream open(String hash) throws IOException;
+    }
+
+    private Blame() {}
+
+    static int[] attribute(List<FileLineage.Entry> lineage, int targetIndex, RevisionSource source) throws IOException
+    {
+        long[] current;
+        try (InputStream in = source.open(lineage.get(targetIndex).hash())) {
+            current = LineDiff.hashLines(in);
+        }
+
+        int[] origin = new int[current.length];
+        int[] position = new int[current.length];
+        for (int i = 0; i < position.length; i++) {
+            position[i] = i;
+        }
+        int remaining = current.length;
+
+        for (int i = targetIndex; i >= 0 && remaining > 0; i--) {
+            int version = lineage.get(i).version();
+            if (i == 0 || lineage.get(i - 1).isDetached()) {
+                for (int line = 0; line < origin.length; line++) {
+                    if (position[line] >= 0) {
+                        origin[line] = version;
+                    }
+                }
+                break;
+            }
+
+            long[] previous;
+            try (InputStream in = source.open(lineage.get(i - 1).hash())) {
+                previous = LineDiff.hashLines(in);
+            }
+            int[] matches = LineDiff.match(previous, current);
+            for (int line = 0; line < origin.length; line++) {
+                if (position[line] < 0) {
+                    continue;
+                }
+                int matched = matches[position[line]];
+                if (matched < 0) {
+                    origin[line] = version;
+                    position[line] = -1;
+                    remaining--;
+                } else {
+                    position[line] = matched;
+                }
+            }
+            current = previous;
+        }
+        return origin;
+    }
+
+    static int findEntry(List<FileLineage.Entry> lineage, int version)
+    {
+        int low = 0;
+        int high = lineage.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lineage.get(mid).version() <= version) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
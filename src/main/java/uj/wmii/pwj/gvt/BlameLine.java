@@ -0,0 +1,5 @@
+package uj.wmii.pwj.gvt;
+
+public record BlameLine(int line, int version, String text)
+{
+}
@@ -0,0 +1,397 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Single-file transfer format of a repository, or of the versions following a base version.
+ * After an uncompressed header ({@code GVTB}, format) comes one deflate stream with the check of the key the
+ * repository is encrypted with (empty for plain text), the base and latest version numbers, the objects every
+ * bundled version adds to its predecessor (unchanged subtrees are pruned as a whole) and finally the version
+ * metadata in ascending order. Objects are bundled as stored and the metadata of an encrypted repository is sealed
+ * too, so a bundle of an encrypted repository reveals nothing and is only imported with the same key. Versions are
+ * read and written one at a time, so memory use depends on the depth of the trees, not on the length of the history.
+ */
+final class Bundle
+{
+    private static final int MAGIC = 0x47565442;
+    private static final int FORMAT = 2;
+    private static final int PLAIN_FORMAT = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_LENGTH = 64;
+
+    private final ObjectStore objectStore;
+    private final TreeStore treeStore;
+
+    record Version(int version, String tree, byte[] metadata)
+    {
+    }
+
+    @FunctionalInterface
+    interface VersionSource
+    {
+        /**
+         * Returns the bundled form of {@code version}, or {@code null} when the version does not exist.
+         */
+        Version read(int version) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface VersionVisitor
+    {
+        void visit(int version, byte[] metadata) throws GvtException, IOException;
+    }
+
+    Bundle(ObjectStore objectStore, TreeStore treeStore)
+    {
+        this.objectStore = objectStore;
+        this.treeStore = treeStore;
+    }
+
+    /**
+     * Writes versions {@code since + 1} to {@code latest}. {@code since} is -1 for a full bundle,
+     * {@code baseTree} the root tree of version {@code since} otherwise.
+     */
+    BundleResult write(Path file, int since, int latest, String baseTree, VersionSource source) throws IOException
+    {
+        Path temp = file.resolveSibling("." + file.getFileName() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int count = 0;
+        int objects = 0;
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(MAGIC).putInt(FORMAT).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            DeflaterOutputStream compressed = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, BUFFER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compressed, BUFFER_SIZE));
+            String check = objectStore.encryptionCheck();
+            out.writeUTF((check == null) ? "" : check);
+            out.writeInt(since);
+            out.writeInt(latest);
+
+            String previous = baseTree;
+            for (int v = since + 1; v <= latest; v++) {
+                Version version = source.read(v);
+                if (version != null) {
+                    objects += writeTree(version.tree(), previous, out);
+                    previous = version.tree();
+                    count++;
+                }
+            }
+            out.writeBoolean(false);
+
+            out.writeInt(count);
+            for (int v = since + 1; v <= latest; v++) {
+                Version version = source.read(v);
+                if (version != null) {
+                    byte[] metadata = seal(objectStore, version.metadata());
+                    out.writeInt(version.version());
+                    out.writeInt(metadata.length);
+                    out.write(metadata);
+                }
+            }
+
+            out.flush();
+            compressed.finish();
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new BundleResult(count, objects, Files.size(file));
+    }
+
+    Reader open(Path file) throws GvtException, IOException
+    {
+        return new Reader(file);
+    }
+
+    /**
+     * Writes {@code tree} and everything below it that {@code previous} does not contain at the same path.
+     */
+    private int writeTree(String tree, String previous, DataOutputStream out) throws IOException
+    {
+        if (TreeStore.EMPTY_TREE.equals(tree) || tree.equals(previous)) {
+            return 0;
+        }
+        SortedMap<String, TreeStore.Entry> before = treeStore.read(previous);
+        int objects = writeObject(tree, out);
+        for (TreeStore.Entry entry : treeStore.read(tree).values()) {
+            TreeStore.Entry old = before.get(entry.name());
+            if (entry.directory()) {
+                objects += writeTree(entry.hash(), (old != null && old.directory()) ? old.hash() : null, out);
+            } else if (old == null || old.directory() || !old.hash().equals(entry.hash())) {
+                objects += writeObject(entry.hash(), out);
+            }
+        }
+        return objects;
+    }
+
+    private int writeObject(String hash, DataOutputStream out) throws IOException
+    {
+        long size = objectStore.storedSize(hash);
+        out.writeBoolean(true);
+        out.write(hash.getBytes(StandardCharsets.US_ASCII));
+        out.writeLong(size);
+        try (InputStream in = new LimitedInputStream(objectStore.openStored(hash), size)) {
+            in.transferTo(out);
+        }
+        return 1;
+    }
+
+    /**
+     * Returns transferred metadata as it travels: sealed when {@code objectStore} is encrypted.
+     */
+    static byte[] seal(ObjectStore objectStore, byte[] metadata) throws IOException
+    {
+        Encryption encryption = objectStore.encryption();
+        return (encryption == null) ? metadata : encryption.encrypt(metadata);
+    }
+
+    /**
+     * Opens metadata sealed by {@link #seal} for a store that names objects alike.
+     */
+    static byte[] unseal(ObjectStore objectStore, byte[] metadata) throws IOException
+    {
+        Encryption encryption = objectStore.encryption();
+        return (encryption == null) ? metadata : encryption.decrypt(metadata);
+    }
+
+    final class Reader implements Closeable
+    {
+        private final FileChannel channel;
+        private final Inflater inflater = new Inflater();
+        private final DataInputStream in;
+        private final String encryptionCheck;
+        private final int since;
+        private final int latest;
+
+        private Reader(Path file) throws GvtException, IOException
+        {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // fill the header
+                }
+                header.flip();
+                if (header.remaining() < 2 * Integer.BYTES || header.getInt() != MAGIC) {
+                    throw new InvalidBundleException("Not a gvt bundle: " + file);
+                }
+                int format = header.getInt();
+                if (format != FORMAT && format != PLAIN_FORMAT) {
+                    throw new InvalidBundleException("Unsupported bundle format " + format + ": " + file);
+                }
+                in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(Channels.newInputStream(channel), inflater, BUFFER_SIZE), BUFFER_SIZE));
+                String check = (format == PLAIN_FORMAT) ? "" : readUTF();
+                encryptionCheck = check.isEmpty() ? null : check;
+                since = readInt();
+                latest = readInt();
+            } catch (GvtException | IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the check of the key the bundled repository is encrypted with, or {@code null} for plain text.
+         * Objects and metadata are only read by a store encrypted alike.
+         */
+        String encryptionCheck()
+        {
+            return encryptionCheck;
+        }
+
+        int since()
+        {
+            return since;
+        }
+
+        int latest()
+        {
+            return latest;
+        }
+
+        /**
+         * Stores every object of the bundle that is not present yet and returns the number of objects read.
+         */
+        int importObjects() throws GvtException, IOException
+        {
+            int objects = 0;
+            byte[] hashBytes = new byte[HASH_LENGTH];
+            try {
+                while (in.readBoolean()) {
+                    in.readFully(hashBytes);
+                    String hash = new String(hashBytes, StandardCharsets.US_ASCII);
+                    long size = in.readLong();
+                    if (!Hashing.isHash(hash) || size < 0) {
+                        throw new InvalidBundleException("Bundle is corrupted.");
+                    }
+                    if (objectStore.contains(hash)) {
+                        in.skipNBytes(size);
+                    } else if (!hash.equals(objectStore.storeTransferred(new LimitedInputStream(in, size)))) {
+                        throw new InvalidBundleException("Bundle is corrupted. Object: " + hash);
+                    }
+                    objects++;
+                }
+            } catch (EOFException | ZipException e) {
+                throw new InvalidBundleException("Bundle is truncated or corrupted.", e);
+            }
+            return objects;
+        }
+
+        /**
+         * Passes the metadata of the bundled versions to {@code visitor} in ascending version order.
+         */
+        void readVersions(VersionVisitor visitor) throws GvtException, IOException
+        {
+            try {
+                int count = in.readInt();
+                int previous = since;
+                for (int i = 0; i < count; i++) {
+                    int version = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0 || length > VersionMetaData.MAX_LENGTH || version <= previous) {
+                        throw new InvalidBundleException("Bundle is corrupted. Version: " + version);
+                    }
+                    byte[] metadata = new byte[length];
+                    in.readFully(metadata);
+                    visitor.visit(version, unseal(version, metadata));
+                    previous = version;
+                }
+            } catch (EOFException | ZipException e) {
+                throw new InvalidBundleException("Bundle is truncated or corrupted.", e);
+            }
+        }
+
+        private byte[] unseal(int version, byte[] metadata) throws GvtException, IOException
+        {
+            try {
+                return Bundle.unseal(objectStore, metadata);
+            } catch (IOException e) {
+                throw new InvalidBundleException("Bundle is corrupted. Version: " + version, e);
+            }
+        }
+
+        private int readInt() throws GvtException, IOException
+        {
+            try {
+                return in.readInt();
+            } catch (EOFException | ZipException e) {
+                throw new InvalidBundleException("Bundle is truncated or corrupted.", e);
+            }
+        }
+
+        private String readUTF() throws GvtException, IOException
+        {
+            try {
+                return in.readUTF();
+            } catch (EOFException | ZipException e) {
+                throw new InvalidBundleException("Bundle is truncated or corrupted.", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            inflater.end();
+            channel.close();
+        }
+    }
+
+    /**
+     * Exposes the next {@code size} bytes of the underlying stream and fails if it ends earlier.
+     */
+    static final class LimitedInputStream extends FilterInputStream
+    {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long size)
+        {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package uj.wmii.pwj.gvt;
+
+public record BundleResult(int versions, int objects, long bytes)
+{
+}
@@ -0,0 +1,131 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Training run for the AppCDS archive of the distribution: runs every non-blocking command, in-process, against a
+ * throw-away repository, so that the classes they load (including Gson's reflective adapters for the metadata)
+ * end up in the class list recorded with {@code -XX:DumpLoadedClassList}. Output is discarded.
+ */
+final class CdsTraining
+{
+    private CdsTraining() {}
+
+    public static void main(String... args) throws IOException
+    {
+        Path dir = Files.createTempDirectory("gvt-cds");
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            train(dir);
+        } finally {
+            System.setOut(console);
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void train(Path dir) throws IOException
+    {
+        Path repo = Files.createDirectories(dir.resolve("repo"));
+        Path copy = Files.createDirectories(dir.resolve("copy"));
+        String bundle = dir.resolve("training.gvtb").toString();
+
+        run(repo, "init");
+        Files.writeString(repo.resolve("a.txt"), "one\ntwo\nthree\n");
+        Files.createDirectories(repo.resolve("dir"));
+        Files.writeString(repo.resolve("dir").resolve("b.txt"), "b\n");
+        run(repo, "add", "a.txt", "-m", "training");
+        run(repo, "add", "dir");
+        Files.writeString(repo.resolve("a.txt"), "one\n2\nthree\n");
+        run(repo, "commit", "a.txt");
+        run(repo, "commit", "a.txt");
+        run(repo, "status");
+        run(repo, "history");
+        run(repo, "history", "-last", "2");
+        run(repo, "version");
+        run(repo, "version", "1");
+        run(repo, "log", "--grep", "training");
+        run(repo, "log", "--file", "a.txt");
+        run(repo, "blame", "a.txt");
+
+        run(repo, "branch", "feature");
+        run(repo, "tag", "v1");
+        run(repo, "branch");
+        run(repo, "tag");
+        run(repo, "switch", "feature");
+        run(repo, "checkout", "feature");
+        Files.writeString(repo.resolve("a.txt"), "one\n2\nTHREE\n");
+        run(repo, "commit", "a.txt");
+        run(repo, "switch", "main");
+        run(repo, "checkout", "main");
+        Files.writeString(repo.resolve("a.txt"), "ONE\n2\nthree\n");
+        run(repo, "commit", "a.txt");
+        run(repo, "merge", "feature");
+        Files.writeString(repo.resolve("a.txt"), "stashed\n");
+        run(repo, "stash");
+        run(repo, "stash", "pop");
+        run(repo, "checkout", "main");
+        run(repo, "detach", "dir/b.txt");
+        run(repo, "checkout", "1", "--to", copy.resolve("checkout").toString());
+        run(repo, "fsck");
+        run(repo, "maintenance", "--keep", "2");
+        run(repo, "bisect", "--run", "exit 1", "1", "3", "--jobs", "2");
+        run(repo, "version", "1");
+        run(repo, "archive", "main", "--format", "tgz", "-o", dir.resolve("training.tgz").toString());
+        run(repo, "archive", "1", "-o", dir.resolve("training.zip").toString());
+
+        run(repo, "bundle", "create", bundle);
+        run(copy, "bundle", "import", bundle);
+        run(copy, "history");
+        run(repo, "unknown");
+        trainEncryption(Files.createDirectories(dir.resolve("encrypted")));
+    }
+
+    /**
+     * The key of an encrypted repository comes from the environment, which cannot be set in-process, so this part
+     * goes through the repository directly.
+     */
+    private static void trainEncryption(Path dir) throws IOException
+    {
+        GvtRepository repository = new GvtRepositoryImpl(dir, RepositoryKey.generate());
+        try {
+            repository.init("GVT initialized.", true);
+            Files.writeString(dir.resolve("a.txt"), "secret\n");
+            repository.add("a.txt", "training");
+            repository.findByMessage("training");
+            repository.checkout(1, dir.resolve("checkout"), null);
+            repository.fsck();
+        } catch (GvtException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static void run(Path repo, String... args)
+    {
+        new Gvt(new TrainingExitHandler(), repo).mainInternal(args);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static final class TrainingExitHandler extends ExitHandler
+    {
+        @Override
+        void exitOperation(int code)
+        {
+            // keep the JVM alive for the next command
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+public record ChangeResult(Status status, String path, String fileName, Integer version)
+{
+    public enum Status
+    {
+        ADDED,
+        ALREADY_ADDED,
+        DETACHED,
+        NOT_ADDED,
+        COMMITTED,
+        UNCHANGED
+    }
+
+    public boolean isVersionCreated()
+    {
+        return version != null;
+    }
+}
@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class CloneException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public CloneException(String message)
+    {
+        super(message);
+    }
+}
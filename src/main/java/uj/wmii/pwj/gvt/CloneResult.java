@@ -0,0 +1,14 @@
+package uj.wmii.pwj.gvt;
+
+public record CloneResult(int version, long objects, Sharing sharing)
+{
+    /**
+     * How the clone reaches the stored revisions of its source.
+     */
+    public enum Sharing
+    {
+        HARDLINKS,
+        ALTERNATES,
+        LAZY
+    }
+}
@@ -0,0 +1,257 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declarative description of the arguments of one CLI command, and the single pass that parses them. A command
+ * takes named options, each a flag or followed by a typed value, positional parameters and, when it allows it, a
+ * list of files after {@code --}. Unknown options, surplus parameters and malformed values are rejected with the
+ * command's usage exit code before anything runs, unless the command is {@link #lenient() lenient}.
+ */
+final class CommandLine
+{
+    private enum Kind
+    {
+        FLAG, TEXT, NUMBER, VERSION
+    }
+
+    private record Option(Kind kind, int min, int max) {}
+
+    private final String name;
+    private final int usageCode;
+    private final Map<String, Option> options = new HashMap<>();
+    private int maxParameters;
+    private boolean files;
+    private boolean lenient;
+
+    private CommandLine(String name, int usageCode)
+    {
+        this.name = name;
+        this.usageCode = usageCode;
+    }
+
+    /**
+     * Starts the description of {@code name}, whose usage errors exit with {@code usageCode}.
+     */
+    static CommandLine command(String name, int usageCode)
+    {
+        return new CommandLine(name, usageCode);
+    }
+
+    CommandLine flag(String option)
+    {
+        options.put(option, new Option(Kind.FLAG, 0, 0));
+        return this;
+    }
+
+    CommandLine text(String option)
+    {
+        options.put(option, new Option(Kind.TEXT, 0, 0));
+        return this;
+    }
+
+    CommandLine number(String option, int min, int max)
+    {
+        options.put(option, new Option(Kind.NUMBER, min, max));
+        return this;
+    }
+
+    /**
+     * An option naming a version by number; malformed values are reported as invalid version numbers.
+     */
+    CommandLine version(String option)
+    {
+        options.put(option, new Option(Kind.VERSION, 0, Integer.MAX_VALUE));
+        return this;
+    }
+
+    CommandLine parameters(int max)
+    {
+        this.maxParameters = max;
+        return this;
+    }
+
+    /**
+     * Accepts {@code --} followed by any number of paths.
+     */
+    CommandLine files()
+    {
+        this.files = true;
+        return this;
+    }
+
+    /**
+     * Ignores unknown options, surplus parameters and missing or malformed values instead of rejecting them, for
+     * commands that treat bad arguments as no arguments.
+     */
+    CommandLine lenient()
+    {
+        this.lenient = true;
+        return this;
+    }
+
+    String name()
+    {
+        return name;
+    }
+
+    /**
+     * Parses {@code args}, the first of which is the command name itself.
+     */
+    Arguments parse(String... args) throws UsageException
+    {
+        Map<String, Object> values = new HashMap<>();
+        List<String> parameters = new ArrayList<>(maxParameters);
+        List<String> fileList = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (files && "--".equals(arg)) {
+                fileList = List.of(args).subList(i + 1, args.length);
+                break;
+            }
+            if (!isOption(arg)) {
+                if (parameters.size() < maxParameters) {
+                    parameters.add(arg);
+                } else if (!lenient) {
+                    throw new UsageException(usageCode, "Unexpected argument for " + name + ": " + arg);
+                }
+                continue;
+            }
+
+            Option option = options.get(arg);
+            if (option == null) {
+                if (lenient) {
+                    continue;
+                }
+                throw new UsageException(usageCode, "Unknown " + name + " option: " + arg);
+            }
+            if (option.kind() == Kind.FLAG) {
+                values.put(arg, Boolean.TRUE);
+                continue;
+            }
+            if (i + 1 >= args.length || (lenient && isOption(args[i + 1]))) {
+                if (lenient) {
+                    continue;
+                }
+                throw new UsageException(usageCode, "Please specify value for " + arg + ".");
+            }
+            try {
+                values.put(arg, value(arg, option, args[++i]));
+            } catch (UsageException e) {
+                if (!lenient) {
+                    throw e;
+                }
+            }
+        }
+        return new Arguments(values, parameters, fileList);
+    }
+
+    private Object value(String name, Option option, String value) throws UsageException
+    {
+        if (option.kind() == Kind.TEXT) {
+            return value;
+        }
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            number = option.min() - 1;
+        }
+        if (number < option.min() || number > option.max()) {
+            throw (option.kind() == Kind.VERSION)
+                ? new UsageException(60, "Invalid version number: " + value + ".")
+                : new UsageException(usageCode, "Invalid value for " + name + ": " + value + ".");
+        }
+        return number;
+    }
+
+    /**
+     * Options start with a dash; a lone dash, e.g. standard output, and negative numbers are parameters.
+     */
+    private static boolean isOption(String arg)
+    {
+        if (arg.length() < 2 || arg.charAt(0) != '-') {
+            return false;
+        }
+        for (int i = 1; i < arg.length(); i++) {
+            if (!Character.isDigit(arg.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parsed arguments of one invocation.
+     */
+    static final class Arguments
+    {
+        private final Map<String, Object> values;
+        private final List<String> parameters;
+        private final List<String> files;
+
+        private Arguments(Map<String, Object> values, List<String> parameters, List<String> files)
+        {
+            this.values = values;
+            this.parameters = parameters;
+            this.files = files;
+        }
+
+        boolean flag(String option)
+        {
+            return values.containsKey(option);
+        }
+
+        String text(String option, String defaultValue)
+        {
+            return (String) values.getOrDefault(option, defaultValue);
+        }
+
+        Integer number(String option)
+        {
+            return (Integer) values.get(option);
+        }
+
+        /**
+         * Returns the {@code index}-th positional parameter, or {@code null} when there are fewer.
+         */
+        String parameter(int index)
+        {
+            return (index < parameters.size()) ? parameters.get(index) : null;
+        }
+
+        int parameterCount()
+        {
+            return parameters.size();
+        }
+
+        /**
+         * Returns the paths after {@code --}, or {@code null} when there was no {@code --}.
+         */
+        List<String> files()
+        {
+            return files;
+        }
+    }
+
+    static final class UsageException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        UsageException(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+
+        int code()
+        {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree in parallel (one fork/join task per directory) and stores every selected regular file
+ * in the object store. Symbolic links to directories are not followed.
+ */
+final class DirectoryScanner
+{
+    private final Path root;
+    private final ObjectStore objectStore;
+    private final Predicate<String> selected;
+    private final Map<String, String> stored = new ConcurrentHashMap<>();
+
+    DirectoryScanner(Path root, ObjectStore objectStore, Predicate<String> selected)
+    {
+        this.root = root;
+        this.objectStore = objectStore;
+        this.selected = selected;
+    }
+
+    /**
+     * Returns repository-relative paths ({@code /}-separated) of stored files mapped to their content hashes.
+     */
+    Map<String, String> scan(Path directory) throws IOException
+    {
+        try {
+            ForkJoinPool.commonPool().invoke(new ScanTask(directory));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return stored;
+    }
+
+    private final class ScanTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path directory;
+
+        ScanTask(Path directory)
+        {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<ScanTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (entry.getFileName().toString().equals(".gvt") && directory.equals(root)) {
+                        continue;
+                    }
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        subdirectories.add(new ScanTask(entry));
+                    } else if (Files.isRegularFile(entry)) {
+                        String path = TreeStore.toTreePath(root.relativize(entry));
+                        if (selected.test(path)) {
+                            stored.put(path, objectStore.store(entry));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Working tree paths touched since the watcher last compared the tree with a version, kept in {@code .gvt/dirty}
+ * by {@link WorkingTreeWatcher}. The file is trusted only while a watcher holds {@code .gvt/watch.lock}, and is
+ * encrypted in an encrypted repository.
+ */
+final class DirtyState
+{
+    private static final String FORMAT = "1";
+
+    // file locks are held per process, so locks taken in this JVM are tracked here instead of probed
+    private static final Set<Path> HELD_LOCKS = ConcurrentHashMap.newKeySet();
+
+    private final Path dirtyFile;
+    private final Path lockFile;
+    private volatile Encryption encryption;
+
+    record Snapshot(int baseVersion, Set<String> paths)
+    {
+    }
+
+    DirtyState(Path gvtDir)
+    {
+        this.dirtyFile = gvtDir.resolve("dirty");
+        this.lockFile = gvtDir.resolve("watch.lock").toAbsolutePath().normalize();
+    }
+
+    void encryptWith(Encryption encryption)
+    {
+        this.encryption = encryption;
+    }
+
+    /**
+     * Returns the paths recorded by a running watcher, or {@code null} when no watcher is running.
+     */
+    Snapshot read() throws IOException
+    {
+        if (!Files.isRegularFile(dirtyFile) || !isWatcherRunning()) {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(dirtyFile);
+        Encryption sealed = encryption;
+        List<String> lines = new String((sealed == null) ? content : sealed.decrypt(content), StandardCharsets.UTF_8)
+            .lines().toList();
+        if (lines.isEmpty()) {
+            return null;
+        }
+        String[] header = lines.get(0).split(" ");
+        if (header.length != 2 || !FORMAT.equals(header[0])) {
+            return null;
+        }
+        try {
+            return new Snapshot(Integer.parseInt(header[1]), new HashSet<>(lines.subList(1, lines.size())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void write(int baseVersion, Collection<String> paths) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(FORMAT).append(' ').append(baseVersion).append('\n');
+        for (String path : paths) {
+            sb.append(path).append('\n');
+        }
+        byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Encryption sealed = encryption;
+        AtomicFiles.write(dirtyFile, (sealed == null) ? content : sealed.encrypt(content));
+    }
+
+    void clear() throws IOException
+    {
+        Files.deleteIfExists(dirtyFile);
+    }
+
+    /**
+     * Takes the watcher lock, or returns {@code null} when another watcher holds it.
+     */
+    FileLock lock() throws IOException
+    {
+        if (!HELD_LOCKS.add(lockFile)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                HELD_LOCKS.remove(lockFile);
+            }
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            HELD_LOCKS.remove(lockFile);
+            throw e;
+        }
+    }
+
+    void unlock(FileLock lock) throws IOException
+    {
+        try {
+            lock.release();
+            lock.channel().close();
+        } finally {
+            HELD_LOCKS.remove(lockFile);
+        }
+    }
+
+    boolean isWatcherRunning() throws IOException
+    {
+        if (HELD_LOCKS.contains(lockFile)) {
+            return true;
+        }
+        if (!Files.isRegularFile(lockFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+}
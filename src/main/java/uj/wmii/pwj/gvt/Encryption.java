@@ -0,0 +1,307 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Segmented streaming AES-GCM, so that files of any size are encrypted and decrypted with a fixed amount of memory.
+ * An encrypted file starts with a header ({@code GVTE}, format, 16-byte salt, 7-byte nonce prefix) followed by
+ * segments of {@value #SEGMENT_SIZE} bytes of content, each sealed with its own 16-byte tag; only the last one may be
+ * shorter, or empty. The AES-256 key of the file is derived from the repository key and the salt. The nonce of a
+ * segment is the prefix, the segment index and a flag marking the last segment, and the header is authenticated
+ * with every segment, so segments cannot be reordered, dropped or appended without detection.
+ */
+final class Encryption
+{
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'G', 'V', 'T', 'E'};
+    private static final byte FORMAT = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    private static final int TAG_LENGTH = 16;
+    private static final int SEALED_SEGMENT = SEGMENT_SIZE + TAG_LENGTH;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final RepositoryKey key;
+
+    Encryption(RepositoryKey key)
+    {
+        this.key = key;
+    }
+
+    OutputStream encrypt(OutputStream out) throws IOException
+    {
+        return new EncryptingStream(out);
+    }
+
+    /**
+     * Takes over {@code in}, which is closed when it does not start with a valid header.
+     */
+    InputStream decrypt(InputStream in) throws IOException
+    {
+        try {
+            return new DecryptingStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    byte[] encrypt(byte[] content) throws IOException
+    {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream(HEADER_LENGTH + content.length + TAG_LENGTH);
+        try (OutputStream out = encrypt(sealed)) {
+            out.write(content);
+        }
+        return sealed.toByteArray();
+    }
+
+    byte[] decrypt(byte[] sealed) throws IOException
+    {
+        try (InputStream in = decrypt(new ByteArrayInputStream(sealed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Names {@code data} by a keyed hash, for files whose plain name would reveal what they index.
+     */
+    String name(byte[] data)
+    {
+        return HexFormat.of().formatHex(key.derive("name", data));
+    }
+
+    /**
+     * Returns the size of the content of an encrypted file of {@code sealedSize} bytes, without reading it.
+     */
+    static long contentSize(long sealedSize) throws IOException
+    {
+        long payload = sealedSize - HEADER_LENGTH;
+        if (payload < TAG_LENGTH) {
+            throw new IOException("Truncated encrypted file");
+        }
+        long segments = (payload + SEALED_SEGMENT - 1) / SEALED_SEGMENT;
+        return payload - segments * TAG_LENGTH;
+    }
+
+    private SecretKey fileKey(byte[] header)
+    {
+        byte[] salt = Arrays.copyOfRange(header, MAGIC.length + 1, MAGIC.length + 1 + SALT_LENGTH);
+        return new SecretKeySpec(key.derive("file", salt), "AES");
+    }
+
+    private static Cipher newCipher()
+    {
+        try {
+            return Cipher.getInstance(CIPHER);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CIPHER + " is not available", e);
+        }
+    }
+
+    private static void init(Cipher cipher, int mode, SecretKey fileKey, byte[] header, int segment, boolean last)
+        throws GeneralSecurityException
+    {
+        if (segment < 0) {
+            throw new GeneralSecurityException("Too many segments");
+        }
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + Integer.BYTES + 1)
+            .put(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, NONCE_PREFIX_LENGTH)
+            .putInt(segment)
+            .put((byte) (last ? 1 : 0))
+            .array();
+        cipher.init(mode, fileKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+    }
+
+    private final class EncryptingStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private final SecretKey fileKey;
+        private final Cipher cipher = newCipher();
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private final byte[] sealed = new byte[SEALED_SEGMENT];
+        private int count;
+        private int index;
+        private boolean closed;
+
+        EncryptingStream(OutputStream out) throws IOException
+        {
+            this.out = out;
+            System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+            header[MAGIC.length] = FORMAT;
+            byte[] random = new byte[SALT_LENGTH + NONCE_PREFIX_LENGTH];
+            RANDOM.nextBytes(random);
+            System.arraycopy(random, 0, header, MAGIC.length + 1, random.length);
+            this.fileKey = fileKey(header);
+            out.write(header);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0) {
+                // a full segment is sealed only once more content follows, the last one is sealed on close
+                if (count == SEGMENT_SIZE) {
+                    seal(false);
+                }
+                int n = Math.min(len, SEGMENT_SIZE - count);
+                System.arraycopy(b, off, segment, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                seal(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void seal(boolean last) throws IOException
+        {
+            try {
+                init(cipher, Cipher.ENCRYPT_MODE, fileKey, header, index++, last);
+                int length = cipher.doFinal(segment, 0, count, sealed, 0);
+                out.write(sealed, 0, length);
+                count = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot encrypt", e);
+            }
+        }
+    }
+
+    private final class DecryptingStream extends InputStream
+    {
+        private final InputStream in;
+        private final byte[] header;
+        private final SecretKey fileKey;
+        private final Cipher cipher = newCipher();
+        // one byte more than a sealed segment, to tell whether another segment follows
+        private final byte[] sealed = new byte[SEALED_SEGMENT + 1];
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private int carried;
+        private int position;
+        private int limit;
+        private int index;
+        private boolean last;
+
+        DecryptingStream(InputStream in) throws IOException
+        {
+            this.in = in;
+            this.header = in.readNBytes(HEADER_LENGTH);
+            if (header.length < HEADER_LENGTH || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IOException("Not an encrypted gvt file");
+            }
+            if (header[MAGIC.length] != FORMAT) {
+                throw new IOException("Unsupported encryption format " + header[MAGIC.length]);
+            }
+            this.fileKey = fileKey(header);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            while (position == limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return segment[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(segment, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+
+        private boolean fill() throws IOException
+        {
+            if (last) {
+                return false;
+            }
+            int read = carried + in.readNBytes(sealed, carried, sealed.length - carried);
+            last = read < sealed.length;
+            int length = last ? read : SEALED_SEGMENT;
+            if (length < TAG_LENGTH) {
+                throw new IOException("Truncated encrypted file");
+            }
+            try {
+                init(cipher, Cipher.DECRYPT_MODE, fileKey, header, index++, last);
+                limit = cipher.doFinal(sealed, 0, length, segment, 0);
+                position = 0;
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted content failed authentication", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot decrypt", e);
+            }
+            if (!last) {
+                sealed[0] = sealed[SEALED_SEGMENT];
+                carried = 1;
+            }
+            return true;
+        }
+    }
+}
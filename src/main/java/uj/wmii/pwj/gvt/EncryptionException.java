@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class EncryptionException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public EncryptionException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,118 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Append-only record of the versions in which a file's content changed. Each file owns one lineage file of
+ * fixed-size records: the version number followed by the 32-byte content hash (all zeros when detached).
+ */
+class FileLineage
+{
+    private static final int HASH_BYTES = 32;
+    private static final int RECORD_BYTES = Integer.BYTES + HASH_BYTES;
+
+    private final Path lineageDir;
+    private Encryption encryption;
+
+    FileLineage(Path lineageDir)
+    {
+        this.lineageDir = lineageDir;
+    }
+
+    void encryptWith(Encryption encryption)
+    {
+        this.encryption = encryption;
+    }
+
+    record Entry(int version, String hash)
+    {
+        boolean isDetached()
+        {
+            return hash == null;
+        }
+    }
+
+    void append(String fileName, int version, String hash) throws IOException
+    {
+        Path file = lineageFile(fileName);
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+             DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(version);
+            data.write(hash == null ? new byte[HASH_BYTES] : HexFormat.of().parseHex(hash));
+        }
+    }
+
+    List<Entry> read(String fileName) throws IOException
+    {
+        Path file = lineageFile(fileName);
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.isRegularFile(file)) {
+            return entries;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        byte[] hash = new byte[HASH_BYTES];
+        while (buffer.remaining() >= RECORD_BYTES) {
+            int version = buffer.getInt();
+            buffer.get(hash);
+            if (!entries.isEmpty() && entries.get(entries.size() - 1).version() >= version) {
+                continue;
+            }
+            entries.add(new Entry(version, isZero(hash) ? null : HexFormat.of().formatHex(hash)));
+        }
+        return entries;
+    }
+
+    /**
+     * Streams the versions that changed the file, in ascending order, without loading the whole lineage.
+     */
+    void versions(String fileName, SearchIndex.VersionVisitor visitor) throws IOException
+    {
+        Path file = lineageFile(fileName);
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long records = Files.size(file) / RECORD_BYTES;
+            int last = Integer.MIN_VALUE;
+            for (long i = 0; i < records; i++) {
+                int version = in.readInt();
+                in.skipNBytes(HASH_BYTES);
+                if (version > last) {
+                    visitor.visit(version);
+                    last = version;
+                }
+            }
+        }
+    }
+
+    private Path lineageFile(String fileName)
+    {
+        byte[] bytes = fileName.getBytes(StandardCharsets.UTF_8);
+        String hash = (encryption == null) ? Hashing.hash(bytes) : encryption.name(bytes);
+        return lineageDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private static boolean isZero(byte[] bytes)
+    {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
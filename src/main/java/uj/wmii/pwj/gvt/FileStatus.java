@@ -0,0 +1,10 @@
+package uj.wmii.pwj.gvt;
+
+public record FileStatus(String fileName, State state)
+{
+    public enum State
+    {
+        MODIFIED,
+        MISSING
+    }
+}
@@ -0,0 +1,309 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Verifies every version's metadata and every stored revision. Versions are checked in parallel; the number of
+ * versions in flight is bounded, so memory use does not grow with the length of the history. Results of objects
+ * and trees already checked are remembered within the {@link MemoryBudget}; an object that was evicted is simply
+ * verified again.
+ */
+class Fsck
+{
+    private static final String OK = "";
+    // rough heap cost of one remembered hash, including the map entry
+    private static final long ENTRY_BYTES = 256;
+    private static final int MAX_REMEMBERED = (int) Math.max(1024, MemoryBudget.share(0.25, Integer.MAX_VALUE) / ENTRY_BYTES);
+
+    private final Path gvtDir;
+    private final ObjectStore objectStore;
+    private final VersionSegments segments;
+    private final Gson gson;
+    private final int threads;
+
+    private final Queue<FsckReport.Problem> problems = new ConcurrentLinkedQueue<>();
+    private final Map<String, String> verifiedObjects = lru(MAX_REMEMBERED);
+    private final Set<String> intactTrees = Collections.newSetFromMap(lru(MAX_REMEMBERED / 4));
+    private final AtomicInteger checkedVersions = new AtomicInteger();
+    private final AtomicInteger intactObjects = new AtomicInteger();
+    private Encryption encryption;
+
+    Fsck(Path gvtDir, ObjectStore objectStore, VersionSegments segments, Gson gson)
+    {
+        this(gvtDir, objectStore, segments, gson, Runtime.getRuntime().availableProcessors());
+    }
+
+    Fsck(Path gvtDir, ObjectStore objectStore, VersionSegments segments, Gson gson, int threads)
+    {
+        this.gvtDir = gvtDir;
+        this.objectStore = objectStore;
+        this.segments = segments;
+        this.gson = gson;
+        this.threads = Math.max(1, threads);
+    }
+
+    FsckReport run() throws IOException
+    {
+        encryption = objectStore.encryption();
+        RepoMetaData repoMetaData;
+        try {
+            repoMetaData = parse(Files.readAllBytes(gvtDir.resolve("repo.json")), RepoMetaData.class);
+        } catch (IOException | JsonParseException e) {
+            problems.add(new FsckReport.Problem(null, "repo.json", "unreadable repository metadata: " + describe(e)));
+            return report();
+        }
+        String packingFailure = segments.failure();
+        if (packingFailure != null) {
+            problems.add(new FsckReport.Problem(null, VersionSegments.DIRECTORY,
+                "packing cold versions after a commit failed, run maintenance: " + packingFailure));
+        }
+
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-fsck", threads);
+        Semaphore inFlight = new Semaphore(threads * 4);
+        AtomicReference<Error> failure = new AtomicReference<>();
+        try {
+            for (int v = 0; v <= repoMetaData.getLatestVersion(); v++) {
+                if (!repoMetaData.isVersionExisting(v)) {
+                    continue;
+                }
+                int version = v;
+                inFlight.acquireUninterruptibly();
+                pool.execute(() -> {
+                    try {
+                        checkVersion(version);
+                    } catch (RuntimeException e) {
+                        // a check that cannot finish must not leave the version looking intact
+                        problem(version, null, "check failed: " + e);
+                    } catch (Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting, large repositories may take a while
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Repository check interrupted", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return report();
+    }
+
+    private void checkVersion(int version)
+    {
+        checkedVersions.incrementAndGet();
+        Path versionDir = gvtDir.resolve(Integer.toString(version));
+        Path metaFile = versionDir.resolve(VersionMetaData.FILE_NAME);
+
+        VersionMetaData metaData;
+        try {
+            // a packed version is checked against the checksum kept in its segment as it is read
+            byte[] packed = segments.read(version);
+            if (packed != null) {
+                metaData = parseJson(packed, VersionMetaData.class);
+            } else {
+                byte[] content = Files.readAllBytes(metaFile);
+                Path checksumFile = versionDir.resolve(VersionMetaData.CHECKSUM_FILE_NAME);
+                if (Files.isRegularFile(checksumFile)) {
+                    String expected = Files.readString(checksumFile, StandardCharsets.UTF_8).trim();
+                    if (!expected.equals(Hashing.hash(content))) {
+                        problem(version, VersionMetaData.FILE_NAME, "metadata checksum mismatch");
+                    }
+                }
+                metaData = parse(content, VersionMetaData.class);
+            }
+        } catch (IOException | JsonParseException e) {
+            problem(version, VersionMetaData.FILE_NAME, "unreadable metadata: " + describe(e));
+            return;
+        }
+
+        if (metaData.getVersion() == null || metaData.getVersion() != version) {
+            problem(version, VersionMetaData.FILE_NAME, "metadata describes version " + metaData.getVersion());
+        }
+
+        if (metaData.hasTree()) {
+            checkTree(version, metaData.getTree(), "");
+        }
+
+        for (String fileName : metaData.getFileNames()) {
+            String hash = metaData.getFileHash(fileName);
+            if (hash == null) {
+                if (!Files.isRegularFile(versionDir.resolve(fileName))) {
+                    problem(version, fileName, "stored revision is missing");
+                }
+                continue;
+            }
+            String error = verify(hash);
+            if (!error.isEmpty()) {
+                problem(version, fileName, error);
+            }
+        }
+    }
+
+    /**
+     * Checks a tree and everything below it. Subtrees already found intact are shared between versions and are
+     * not walked again.
+     */
+    private boolean checkTree(int version, String treeHash, String prefix)
+    {
+        if (TreeStore.EMPTY_TREE.equals(treeHash) || intactTrees.contains(treeHash)) {
+            return true;
+        }
+        String location = prefix.isEmpty() ? "/" : prefix;
+        String error = verify(treeHash);
+        if (!error.isEmpty()) {
+            problem(version, location, error);
+            return false;
+        }
+
+        SortedMap<String, TreeStore.Entry> entries;
+        try {
+            entries = TreeStore.parse(treeHash, objectStore.read(treeHash));
+        } catch (IOException e) {
+            problem(version, location, describe(e));
+            return false;
+        }
+
+        boolean intact = true;
+        for (TreeStore.Entry entry : entries.values()) {
+            String path = prefix + entry.name();
+            if (entry.directory()) {
+                intact &= checkTree(version, entry.hash(), path + "/");
+            } else {
+                String blobError = verify(entry.hash());
+                if (!blobError.isEmpty()) {
+                    problem(version, path, blobError);
+                    intact = false;
+                }
+            }
+        }
+        if (intact) {
+            intactTrees.add(treeHash);
+        }
+        return intact;
+    }
+
+    /**
+     * Returns the remembered result for {@code hash}, verifying the object outside the lock when there is none.
+     */
+    private String verify(String hash)
+    {
+        String error;
+        synchronized (verifiedObjects) {
+            error = verifiedObjects.get(hash);
+        }
+        if (error == null) {
+            error = verifyObject(hash);
+            synchronized (verifiedObjects) {
+                if (verifiedObjects.put(hash, error) == null && OK.equals(error)) {
+                    intactObjects.incrementAndGet();
+                }
+            }
+        }
+        return error;
+    }
+
+    private String verifyObject(String hash)
+    {
+        if (!Hashing.isHash(hash)) {
+            return "invalid content hash " + hash;
+        }
+        try {
+            String content = objectStore.hashContent(hash);
+            if (content == null) {
+                return "stored revision " + hash + " is missing";
+            }
+            if (!hash.equals(content)) {
+                return "stored revision " + hash + " is corrupted";
+            }
+            return OK;
+        } catch (IOException e) {
+            return "stored revision " + hash + " cannot be read: " + describe(e);
+        }
+    }
+
+    private static String describe(Exception e)
+    {
+        String message = String.valueOf(e.getMessage());
+        int idx = message.indexOf('\n');
+        return (idx >= 0) ? message.substring(0, idx) : message;
+    }
+
+    /**
+     * Parses metadata as stored, decrypting it first in an encrypted repository.
+     */
+    private <T> T parse(byte[] content, Class<T> type) throws IOException
+    {
+        if (encryption != null) {
+            content = encryption.decrypt(content);
+        }
+        return parseJson(content, type);
+    }
+
+    private <T> T parseJson(byte[] content, Class<T> type)
+    {
+        T value = gson.fromJson(new String(content, StandardCharsets.UTF_8), type);
+        if (value == null) {
+            throw new JsonParseException("empty document");
+        }
+        return value;
+    }
+
+    private void problem(int version, String fileName, String description)
+    {
+        problems.add(new FsckReport.Problem(version, fileName, description));
+    }
+
+    private FsckReport report()
+    {
+        List<FsckReport.Problem> sorted = new ArrayList<>(problems);
+        sorted.sort(Comparator
+            .comparing((FsckReport.Problem p) -> p.version() == null ? -1 : p.version())
+            .thenComparing(p -> p.fileName() == null ? "" : p.fileName()));
+        return new FsckReport(checkedVersions.get(), intactObjects.get(), sorted);
+    }
+
+    private static <V> Map<String, V> lru(int maxEntries)
+    {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+            {
+                return size() > maxEntries;
+            }
+        });
+    }
+}
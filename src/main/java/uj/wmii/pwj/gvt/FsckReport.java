@@ -0,0 +1,27 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.List;
+
+public record FsckReport(int checkedVersions, int checkedObjects, List<Problem> problems)
+{
+    public record Problem(Integer version, String fileName, String description)
+    {
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            if (version != null) {
+                sb.append("Version ").append(version).append(": ");
+            }
+            if (fileName != null) {
+                sb.append(fileName).append(": ");
+            }
+            return sb.append(description).toString();
+        }
+    }
+
+    public boolean isClean()
+    {
+        return problems.isEmpty();
+    }
+}
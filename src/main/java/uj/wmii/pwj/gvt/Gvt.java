@@ -1,165 +1,330 @@
 package uj.wmii.pwj.gvt;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 
 public class Gvt {
 
+    @FunctionalInterface
+    private interface Handler {
+        void handle(Gvt gvt, CommandLine.Arguments args);
+    }
+
+    private record Command(CommandLine line, Handler handler) {}
+
+    private static final Map<String, Command> COMMANDS = Map.ofEntries(
+        command(CommandLine.command("init", 1).flag("--encrypt"), Gvt::handleInit),
+        command(CommandLine.command("add", 20).flag("-r").text("-m").parameters(1), Gvt::handleAdd),
+        command(CommandLine.command("detach", 30).text("-m").parameters(1), Gvt::handleDetach),
+        command(CommandLine.command("commit", 50).flag("--allow-empty").text("-m").parameters(1), Gvt::handleCommit),
+        command(CommandLine.command("checkout", 40).text("--to").parameters(1).files(), Gvt::handleCheckout),
+        command(CommandLine.command("history", 1).number("-last", 0, Integer.MAX_VALUE).text("--file").lenient(),
+            Gvt::handleHistory),
+        command(CommandLine.command("version", 60).parameters(1), Gvt::handleVersion),
+        command(CommandLine.command("log", 70).text("--grep").text("--file"), Gvt::handleLog),
+        command(CommandLine.command("blame", 80).parameters(2), Gvt::handleBlame),
+        command(CommandLine.command("fsck", 1), (gvt, args) -> gvt.versionService().fsck()),
+        command(CommandLine.command("maintenance", 190).number("--keep", 0, Integer.MAX_VALUE)
+            .number("--age", 0, Integer.MAX_VALUE), Gvt::handleMaintenance),
+        command(CommandLine.command("status", 1), (gvt, args) -> gvt.versionService().status()),
+        command(CommandLine.command("watch", 1), (gvt, args) -> gvt.versionService().watch()),
+        command(CommandLine.command("bundle", 100).version("--since").parameters(2), Gvt::handleBundle),
+        command(CommandLine.command("archive", 170).text("--format").text("-o").parameters(1), Gvt::handleArchive),
+        command(CommandLine.command("branch", 120).parameters(2), (gvt, args) -> gvt.handleRef(true, args)),
+        command(CommandLine.command("tag", 120).parameters(2), (gvt, args) -> gvt.handleRef(false, args)),
+        command(CommandLine.command("switch", 120).parameters(1), Gvt::handleSwitch),
+        command(CommandLine.command("merge", 130).flag("--continue").flag("--abort").text("-m").parameters(1),
+            Gvt::handleMerge),
+        command(CommandLine.command("serve", 140).number("--port", 0, 0xFFFF), Gvt::handleServe),
+        command(CommandLine.command("push", 140).parameters(1), (gvt, args) -> gvt.handleSync(true, args)),
+        command(CommandLine.command("pull", 140).parameters(1), (gvt, args) -> gvt.handleSync(false, args)),
+        command(CommandLine.command("clone", 150).flag("--lazy").parameters(2), Gvt::handleClone),
+        command(CommandLine.command("stash", 160).parameters(1), Gvt::handleStash),
+        command(CommandLine.command("bisect", 200).text("--run").number("--jobs", 1, Integer.MAX_VALUE).parameters(2),
+            Gvt::handleBisect)
+    );
+
+    private static Map.Entry<String, Command> command(CommandLine line, Handler handler) {
+        return Map.entry(line.name(), new Command(line, handler));
+    }
+
     private final ExitHandler exitHandler;
+    private final Path directory;
+    private final Output output = new Output();
     private VersionService versionService;
 
     public Gvt(ExitHandler exitHandler) {
+        this(exitHandler, Paths.get("."));
+    }
+
+    /**
+     * Runs commands against the repository in {@code directory} instead of the current directory.
+     */
+    Gvt(ExitHandler exitHandler, Path directory) {
         this.exitHandler = exitHandler;
+        this.directory = directory;
     }
 
     public static void main(String... args) {
         Gvt gvt = new Gvt(new ExitHandler());
         gvt.mainInternal(args);
     }
-    
-    public void mainInternal(String... args) {     
-        ExitHandler termiantor = new ExitHandler();
 
+    public void mainInternal(String... args) {
         if (args == null || args.length == 0) {
-            termiantor.exit(1, "Please specify command.");
+            exitHandler.exit(1, "Please specify command.");
             return;
         }
 
-        versionService = new VersionServiceImpl(".", new ExitHandler());
-
-        String command = args[0];
-        switch (command) {
-            case "init":
-                handleInit(args);
-                break;
-            case "add":
-                handleAdd(args);
-                break;
-            case "detach":
-                handleDetach(args);
-                break;
-            case "commit":
-                handleCommit(args);
-                break;
-            case "checkout":
-                handleCheckout(args);
-                break;
-            case "history":
-                handleHistory(args);
-                break;
-            case "version":
-                handleVersion(args);
-                break;
-            default:
-                exitHandler.exit(1, "Unknown command " + command + ".");
-                break;
+        Command command = COMMANDS.get(args[0]);
+        if (command == null) {
+            exitHandler.exit(1, "Unknown command " + args[0] + ".");
+            return;
+        }
+        CommandLine.Arguments arguments;
+        try {
+            arguments = command.line().parse(args);
+        } catch (CommandLine.UsageException e) {
+            exitHandler.exit(e.code(), e.getMessage());
+            return;
+        }
+        try {
+            command.handler().handle(this, arguments);
+        } finally {
+            output.flush();
         }
     }
 
-    private String extractUserMessage(String... args) {
-        if (args.length >= 3 && "-m".equals(args[args.length - 2])) {
-            return args[args.length - 1];
+    private VersionService versionService() {
+        if (versionService == null) {
+            versionService = new VersionServiceImpl(new GvtRepositoryImpl(directory), exitHandler, output);
         }
-        return "";
+        return versionService;
     }
 
-    private void handleInit(String... args) {
-        versionService.init("GVT initialized.");
+    private void handleInit(CommandLine.Arguments args) {
+        versionService().init("GVT initialized.", args.flag("--encrypt"));
     }
 
-    private void handleAdd(String... args) {
-        String userMessage = extractUserMessage(args);
-
-        String fileName = null;
-        if (args.length >= 2 && !"-m".equals(args[1])) {
-            fileName = args[1];
+    private void handleAdd(CommandLine.Arguments args) {
+        String name = args.parameter(0);
+        if (args.flag("-r")) {
+            if (name == null) {
+                exitHandler.exit(20, "Please specify directory to add.");
+                return;
+            }
+            versionService().addRecursive(name, args.text("-m", ""));
+            return;
         }
-
-        if (fileName == null) {
+        if (name == null) {
             exitHandler.exit(20, "Please specify file to add.");
             return;
         }
-
-        versionService.add(fileName, userMessage);
+        versionService().add(name, args.text("-m", ""));
     }
 
-    private void handleDetach(String... args) {
-        String userMessage = extractUserMessage(args);
-
-        String fileName = null;
-        if (args.length >= 2 && !"-m".equals(args[1])) {
-            fileName = args[1];
-        }
-
-        if (fileName == null) {
+    private void handleDetach(CommandLine.Arguments args) {
+        if (args.parameter(0) == null) {
             exitHandler.exit(30, "Please specify file to detach.");
             return;
         }
-
-        versionService.detach(fileName, userMessage);
+        versionService().detach(args.parameter(0), args.text("-m", ""));
     }
 
-    private void handleCommit(String... args) {
-        String userMessage = extractUserMessage(args);
-
-        String fileName = null;
-        if (args.length >= 2 && !"-m".equals(args[1])) {
-            fileName = args[1];
+    private void handleCommit(CommandLine.Arguments args) {
+        if (args.parameter(0) == null) {
+            exitHandler.exit(50, "Please specify file to commit.");
+            return;
         }
+        versionService().commit(args.parameter(0), args.text("-m", ""), args.flag("--allow-empty"));
+    }
 
-        if (fileName == null) {
-            exitHandler.exit(50, "Please specify file to commit.");
+    private void handleCheckout(CommandLine.Arguments args) {
+        String revision = args.parameter(0);
+        if (revision == null) {
+            exitHandler.exit(40, "Invalid version number: ");
+            return;
+        }
+        List<String> files = args.files();
+        if (files != null && files.isEmpty()) {
+            exitHandler.exit(40, "Please specify files to checkout.");
             return;
         }
 
-        versionService.commit(fileName, userMessage);
+        String target = args.text("--to", null);
+        Integer v = null;
+        try {
+            v = Integer.valueOf(revision);
+        } catch (NumberFormatException e) {
+            // a branch or tag name, resolved by the repository
+        }
+        if (v == null) {
+            versionService().checkout(revision, target, files);
+        } else {
+            versionService().checkout(v, target, files);
+        }
     }
 
-    private void handleCheckout(String... args) {
-        if (args.length < 2) {
-            exitHandler.exit(60, "Invalid version number: ");
+    private void handleHistory(CommandLine.Arguments args) {
+        String file = args.text("--file", null);
+        if (file != null) {
+            versionService().fileHistory(file);
             return;
         }
+        Integer last = args.number("-last");
+        versionService().history((last == null) ? 0 : last);
+    }
 
-        String versionStr = args[1];
+    private void handleVersion(CommandLine.Arguments args) {
+        String versionStr = args.parameter(0);
+        if (versionStr == null) {
+            versionService().version(null);
+            return;
+        }
         try {
-            Integer v = Integer.valueOf(versionStr);
-            versionService.checkout(v);
+            versionService().version(Integer.valueOf(versionStr));
         } catch (NumberFormatException e) {
-            exitHandler.exit(60, "Invalid version number: " + versionStr);
+            exitHandler.exit(60, "Invalid version number: " + versionStr + ".");
         }
     }
 
-    private void handleHistory(String... args) {
-        Integer last = null;
+    private void handleLog(CommandLine.Arguments args) {
+        versionService().log(args.text("--grep", null), args.text("--file", null));
+    }
 
-        if (args.length >= 3 && "-last".equals(args[1])) {
+    private void handleBlame(CommandLine.Arguments args) {
+        String file = args.parameter(0);
+        if (file == null) {
+            exitHandler.exit(80, "Please specify file to blame.");
+            return;
+        }
+
+        Integer version = null;
+        String versionStr = args.parameter(1);
+        if (versionStr != null) {
             try {
-                last = Integer.valueOf(args[2]);
+                version = Integer.valueOf(versionStr);
             } catch (NumberFormatException e) {
+                exitHandler.exit(60, "Invalid version number: " + versionStr + ".");
+                return;
             }
         }
+        versionService().blame(file, version);
+    }
 
-        if (last == null) {
-            versionService.history(0);
+    private void handleBundle(CommandLine.Arguments args) {
+        String action = args.parameter(0);
+        String file = args.parameter(1);
+        if (file == null || !("create".equals(action) || "import".equals(action))) {
+            exitHandler.exit(100, "Please specify bundle command (create or import) and bundle file.");
+            return;
+        }
+        if ("import".equals(action)) {
+            versionService().importBundle(file);
         } else {
-            versionService.history(last);
+            versionService().createBundle(file, args.number("--since"));
         }
     }
 
-    private void handleVersion(String... args) {
-        if (args.length < 2) {
-            versionService.version(null);
+    private void handleArchive(CommandLine.Arguments args) {
+        String revision = args.parameter(0);
+        String format = args.text("--format", null);
+        String output = args.text("-o", null);
+        if (revision == null || output == null) {
+            exitHandler.exit(170, "Please specify version and output file (-o <file|->).");
             return;
         }
 
-        String versionStr = args[1];
-        try {
-            Integer v = Integer.valueOf(versionStr);
-            versionService.version(v);
-        } catch (NumberFormatException e) {
-            exitHandler.exit(60, "Invalid version number: " + versionStr + ".");
+        ArchiveFormat archiveFormat = (format == null)
+            ? ArchiveFormat.forFileName(output)
+            : ArchiveFormat.parse(format);
+        if (archiveFormat == null) {
+            exitHandler.exit(170, "Unknown archive format " + format + ". Use tar, tgz or zip.");
+            return;
+        }
+        versionService().archive(revision, archiveFormat, output);
+    }
+
+    private void handleMaintenance(CommandLine.Arguments args) {
+        versionService().maintenance(args.number("--keep"), args.number("--age"));
+    }
+
+    private void handleRef(boolean branch, CommandLine.Arguments args) {
+        if (branch) {
+            versionService().branch(args.parameter(0), args.parameter(1));
+        } else {
+            versionService().tag(args.parameter(0), args.parameter(1));
+        }
+    }
+
+    private void handleMerge(CommandLine.Arguments args) {
+        String message = args.text("-m", "");
+        if (args.flag("--continue")) {
+            versionService().continueMerge(message);
+        } else if (args.flag("--abort")) {
+            versionService().abortMerge();
+        } else if (args.parameter(0) == null) {
+            exitHandler.exit(130, "Please specify version to merge.");
+        } else {
+            versionService().merge(args.parameter(0), message);
+        }
+    }
+
+    private void handleSwitch(CommandLine.Arguments args) {
+        if (args.parameter(0) == null) {
+            exitHandler.exit(120, "Please specify branch to switch to.");
+            return;
+        }
+        versionService().switchBranch(args.parameter(0));
+    }
+
+    private void handleServe(CommandLine.Arguments args) {
+        Integer port = args.number("--port");
+        versionService().serve((port == null) ? Sync.DEFAULT_PORT : port);
+    }
+
+    private void handleSync(boolean push, CommandLine.Arguments args) {
+        String address = args.parameter(0);
+        if (address == null) {
+            exitHandler.exit(140, "Please specify remote address.");
+            return;
+        }
+        if (push) {
+            versionService().push(address);
+        } else {
+            versionService().pull(address);
+        }
+    }
+
+    private void handleClone(CommandLine.Arguments args) {
+        if (args.parameterCount() != 2) {
+            exitHandler.exit(150, "Please specify source repository and destination directory.");
+            return;
+        }
+        GvtRepository destination = new GvtRepositoryImpl(directory.resolve(args.parameter(1)).normalize());
+        String source = directory.resolve(args.parameter(0)).normalize().toString();
+        new VersionServiceImpl(destination, exitHandler, output).cloneFrom(source, args.flag("--lazy"));
+    }
+
+    private void handleBisect(CommandLine.Arguments args) {
+        String command = args.text("--run", null);
+        if (command == null || args.parameterCount() != 2) {
+            exitHandler.exit(200, "Please specify test command (--run <cmd>), good version and bad version.");
+            return;
+        }
+        versionService().bisect(command, args.parameter(0), args.parameter(1), args.number("--jobs"));
+    }
+
+    private void handleStash(CommandLine.Arguments args) {
+        String action = args.parameter(0);
+        if (action == null) {
+            versionService().stash();
+        } else if ("pop".equals(action)) {
+            versionService().stashPop();
+        } else {
+            exitHandler.exit(160, "Unknown stash command " + action + ".");
         }
     }
 }
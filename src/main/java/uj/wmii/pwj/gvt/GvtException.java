@@ -0,0 +1,16 @@
+package uj.wmii.pwj.gvt;
+
+public class GvtException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public GvtException(String message)
+    {
+        super(message);
+    }
+
+    public GvtException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
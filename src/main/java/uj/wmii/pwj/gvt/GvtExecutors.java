@@ -0,0 +1,63 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class GvtExecutors
+{
+    private static final int IO_THREADS = Integer.getInteger(
+        "gvt.io.threads",
+        Math.max(4, Runtime.getRuntime().availableProcessors() * 2)
+    );
+
+    private static volatile ExecutorService shared;
+
+    private GvtExecutors() {}
+
+    static ExecutorService shared()
+    {
+        ExecutorService executor = shared;
+        if (executor == null) {
+            synchronized (GvtExecutors.class) {
+                executor = shared;
+                if (executor == null) {
+                    executor = newBoundedPool("gvt-io", IO_THREADS);
+                    shared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    static int ioThreads()
+    {
+        return IO_THREADS;
+    }
+
+    static ExecutorService newBoundedPool(String name, int threads)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            daemonThreads(name)
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreads(String name)
+    {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
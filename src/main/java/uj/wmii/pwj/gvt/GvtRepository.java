@@ -0,0 +1,86 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Programmatic access to a gvt repository. Implementations never print and never terminate the JVM:
+ * every outcome is reported through the returned value or a {@link GvtException}.
+ */
+public interface GvtRepository
+{
+    Path getPath();
+    boolean isInitialized();
+    VersionInfo init(String message) throws GvtException, IOException;
+    VersionInfo init(String message, boolean encrypted) throws GvtException, IOException;
+    ChangeResult add(String path, String message) throws GvtException, IOException;
+    BatchResult addRecursive(String directory, String message) throws GvtException, IOException;
+    ChangeResult detach(String path, String message) throws GvtException, IOException;
+    ChangeResult commit(String path, String message, boolean allowEmpty) throws GvtException, IOException;
+    VersionInfo checkout(Integer version) throws GvtException, IOException;
+    VersionInfo checkout(Integer version, Path target, List<String> files) throws GvtException, IOException;
+    VersionInfo version(Integer version) throws GvtException, IOException;
+    List<String> files(Integer version) throws GvtException, IOException;
+    void history(Integer n, Consumer<VersionInfo> consumer) throws GvtException, IOException;
+    void history(int from, int to, Consumer<VersionInfo> consumer) throws GvtException, IOException;
+    List<FileStatus> status() throws GvtException, IOException;
+    WorkingTreeWatcher watch() throws GvtException, IOException;
+    void findByMessage(String term, Consumer<VersionInfo> consumer) throws GvtException, IOException;
+    void findByFile(String path, Consumer<VersionInfo> consumer) throws GvtException, IOException;
+    FsckReport fsck() throws GvtException, IOException;
+    MaintenanceResult maintenance(Integer keep, Integer ageDays) throws GvtException, IOException;
+    BundleResult createBundle(Path file, Integer since) throws GvtException, IOException;
+    BundleResult importBundle(Path file) throws GvtException, IOException;
+    ArchiveResult archive(int version, ArchiveFormat format, OutputStream out) throws GvtException, IOException;
+    void blame(String path, Integer version, Consumer<BlameLine> consumer) throws GvtException, IOException;
+    Ref currentBranch() throws GvtException, IOException;
+    List<Ref> branches() throws GvtException, IOException;
+    List<Ref> tags() throws GvtException, IOException;
+    Ref createBranch(String name, String startPoint) throws GvtException, IOException;
+    Ref createTag(String name, String startPoint) throws GvtException, IOException;
+    Ref switchBranch(String name) throws GvtException, IOException;
+    int resolve(String revision) throws GvtException, IOException;
+    MergeResult merge(String revision, String message) throws GvtException, IOException;
+    MergeResult continueMerge(String message) throws GvtException, IOException;
+    void abortMerge() throws GvtException, IOException;
+    SyncResult push(String address) throws GvtException, IOException;
+    SyncResult pull(String address) throws GvtException, IOException;
+    SyncServer serve(int port) throws GvtException, IOException;
+    CloneResult cloneFrom(Path source, boolean lazy) throws GvtException, IOException;
+    StashResult stash() throws GvtException, IOException;
+    StashResult stashPop() throws GvtException, IOException;
+    BisectResult bisect(int good, int bad, int jobs, BisectPredicate predicate) throws GvtException, IOException;
+
+    /**
+     * Commits {@code path} unless its content equals the revision stored in the latest version.
+     */
+    default ChangeResult commit(String path, String message) throws GvtException, IOException
+    {
+        return commit(path, message, false);
+    }
+
+    default List<VersionInfo> history(Integer n) throws GvtException, IOException
+    {
+        List<VersionInfo> versions = new ArrayList<>();
+        history(n, versions::add);
+        return versions;
+    }
+
+    default List<VersionInfo> findByMessage(String term) throws GvtException, IOException
+    {
+        List<VersionInfo> versions = new ArrayList<>();
+        findByMessage(term, versions::add);
+        return versions;
+    }
+
+    default List<VersionInfo> findByFile(String path) throws GvtException, IOException
+    {
+        List<VersionInfo> versions = new ArrayList<>();
+        findByFile(path, versions::add);
+        return versions;
+    }
+}
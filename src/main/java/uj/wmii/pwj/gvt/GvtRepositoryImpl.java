@@ -0,0 +1,2144 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class GvtRepositoryImpl implements GvtRepository
+{
+    private static final Pattern REF_NAME = Pattern.compile("[A-Za-z0-9._-]+(/[A-Za-z0-9._-]+)*");
+    // one lock per repository directory, shared by every instance in the JVM that works on it
+    private static final Map<Path, Object> INDEX_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Path root;
+    private final Path gvtDir;
+    private final Path repoMetaFile;
+    private final Path headFile;
+    private final Path mergeFile;
+    private final Path stashFile;
+    private final String cacheKey;
+    private final Object indexLock;
+
+    private Path versionMetaFile;
+
+    private final Gson gson;
+    private final SharedCache cache;
+    private final ObjectStore objectStore;
+    private final ObjectStore sharedStore;
+    private final TreeStore treeStore;
+    private final SearchIndex searchIndex;
+    private final VersionSegments segments;
+    private final ParentLinks parentLinks;
+    private final DirtyState dirtyState;
+
+    private RepoMetaData repoMetaData;
+    private Stamp repoMetaStamp;
+    private VersionMetaData versionMetaData;
+    private HeadSnapshot head;
+    private RepositoryKey key;
+
+    public GvtRepositoryImpl(Path path)
+    {
+        this(path, new SharedCache(), null);
+    }
+
+    /**
+     * Opens a repository with an explicit key instead of the one given by the environment.
+     */
+    public GvtRepositoryImpl(Path path, RepositoryKey key)
+    {
+        this(path, new SharedCache(), null);
+        this.key = key;
+    }
+
+    public GvtRepositoryImpl(Path path, SharedCache cache, ObjectStore sharedStore)
+    {
+        this.path = path;
+        this.root = path.toAbsolutePath().normalize();
+        this.gvtDir = path.resolve(".gvt");
+        this.repoMetaFile = gvtDir.resolve("repo.json");
+        this.headFile = gvtDir.resolve("head");
+        this.mergeFile = gvtDir.resolve("merge.json");
+        this.stashFile = gvtDir.resolve("stash.json");
+        this.cacheKey = gvtDir.toAbsolutePath().normalize().toString();
+        this.indexLock = INDEX_LOCKS.computeIfAbsent(canonical(root), p -> new Object());
+        this.gson = new GsonBuilder().setPrettyPrinting().create();
+        this.cache = cache;
+        this.sharedStore = sharedStore;
+        this.objectStore = new ObjectStore(gvtDir.resolve("objects"), sharedStore);
+        this.treeStore = new TreeStore(objectStore, cache);
+        this.searchIndex = new SearchIndex(gvtDir.resolve("index"));
+        this.segments = new VersionSegments(gvtDir, gson);
+        this.parentLinks = new ParentLinks(gvtDir);
+        this.dirtyState = new DirtyState(gvtDir);
+    }
+
+    private static Path canonical(Path path)
+    {
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            // not created yet
+            return path;
+        }
+    }
+
+    @Override
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public ObjectStore getObjectStore()
+    {
+        return objectStore;
+    }
+
+    @Override
+    public boolean isInitialized()
+    {
+        return Files.isDirectory(gvtDir) && Files.isRegularFile(repoMetaFile);
+    }
+
+    @Override
+    public VersionInfo init(String message) throws GvtException, IOException
+    {
+        return init(message, false);
+    }
+
+    /**
+     * With {@code encrypted}, stored revisions and metadata are encrypted with the repository key, which must be
+     * supplied by the environment or the constructor.
+     */
+    @Override
+    public VersionInfo init(String message, boolean encrypted) throws GvtException, IOException
+    {
+        if (Files.isDirectory(gvtDir)) {
+            throw new AlreadyInitializedException();
+        }
+        if (encrypted && key() == null) {
+            throw new EncryptionException("Encryption key not set. Set " + RepositoryKey.KEY_VARIABLE
+                + " to a base64-encoded key of at least 16 bytes, or " + RepositoryKey.KEY_FILE_VARIABLE
+                + " to a file holding one.");
+        }
+
+        Files.createDirectory(gvtDir);
+        if (encrypted) {
+            objectStore.enableEncryption(key);
+            encryptIndexes();
+        }
+        registerSharedStore();
+
+        repoMetaData = new RepoMetaData(0);
+        saveRepoMetaData();
+
+        createVersionDir(0, message);
+        writeHead(TreeStore.EMPTY_TREE, Map.of());
+        indexVersion(Map.of());
+
+        return toInfo(versionMetaData);
+    }
+
+    @Override
+    public ChangeResult add(String path, String message) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        String fileName = relativePath(path);
+        if (fileName == null || fileName.isEmpty() || !Files.isRegularFile(root.resolve(fileName))) {
+            throw new MissingFileException(path);
+        }
+
+        if (head().lookup(fileName) != null) {
+            return new ChangeResult(ChangeResult.Status.ALREADY_ADDED, path, fileName, null);
+        }
+
+        String hash = objectStore.store(root.resolve(fileName));
+        String commitMessage = (message == null || message.isEmpty()) ? "Added file: " + fileName : message + ".";
+        createNewVersion(Map.of(fileName, hash), commitMessage);
+
+        return new ChangeResult(ChangeResult.Status.ADDED, path, fileName, versionMetaData.getVersion());
+    }
+
+    @Override
+    public BatchResult addRecursive(String directory, String message) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        String dirName = relativePath(directory);
+        if (dirName == null || !Files.isDirectory(root.resolve(dirName))) {
+            throw new MissingFileException(directory);
+        }
+
+        HeadSnapshot base = head();
+        DirectoryScanner scanner = new DirectoryScanner(root, objectStore, file -> base.lookup(file) == null);
+        Map<String, String> added = scanner.scan(root.resolve(dirName));
+        if (added.isEmpty()) {
+            return new BatchResult(directory, 0, null);
+        }
+
+        String display = dirName.isEmpty() ? "." : dirName;
+        String commitMessage = (message == null || message.isEmpty()) ? "Added directory: " + display : message + ".";
+        createNewVersion(added, commitMessage);
+
+        return new BatchResult(directory, added.size(), versionMetaData.getVersion());
+    }
+
+    @Override
+    public ChangeResult detach(String path, String message) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        String fileName = relativePath(path);
+        if (fileName == null || fileName.isEmpty()) {
+            return new ChangeResult(ChangeResult.Status.NOT_ADDED, path, path, null);
+        }
+        if (head().lookup(fileName) == null) {
+            return new ChangeResult(ChangeResult.Status.NOT_ADDED, path, fileName, null);
+        }
+
+        createNewVersion(Collections.singletonMap(fileName, null), withUserMessage("Detached file: " + fileName, message));
+
+        return new ChangeResult(ChangeResult.Status.DETACHED, path, fileName, versionMetaData.getVersion());
+    }
+
+    /**
+     * Creates a version with the working copy of {@code path}. When the content is byte-identical to the revision in
+     * the current branch tip nothing is stored and no version is created, unless {@code allowEmpty} is set. Files whose
+     * size differs are stored right away; others are hashed first, streaming, without copying.
+     */
+    @Override
+    public ChangeResult commit(String path, String message, boolean allowEmpty) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        String fileName = relativePath(path);
+        if (fileName == null || fileName.isEmpty() || !Files.isRegularFile(root.resolve(fileName))) {
+            throw new MissingFileException(path);
+        }
+
+        String stored = head().lookup(fileName);
+        if (stored == null) {
+            return new ChangeResult(ChangeResult.Status.NOT_ADDED, path, fileName, null);
+        }
+
+        Path file = root.resolve(fileName);
+        if (!allowEmpty && sameContent(file, stored)) {
+            return new ChangeResult(ChangeResult.Status.UNCHANGED, path, fileName, null);
+        }
+
+        String hash = objectStore.store(file);
+        createNewVersion(Map.of(fileName, hash), withUserMessage("Committed file: " + fileName, message));
+
+        return new ChangeResult(ChangeResult.Status.COMMITTED, path, fileName, versionMetaData.getVersion());
+    }
+
+    @Override
+    public VersionInfo checkout(Integer v) throws GvtException, IOException
+    {
+        return checkout(v, null, null);
+    }
+
+    /**
+     * Restores version {@code v} into {@code target}, or into the working tree when it is {@code null}. When
+     * {@code files} is given only those files and directories are restored. Revisions are written in parallel.
+     */
+    @Override
+    public VersionInfo checkout(Integer v, Path target, List<String> files) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (v == null || !repoMetaData.isVersionExisting(v)) {
+            throw new InvalidVersionException(v);
+        }
+
+        VersionMetaData targetMeta = readVersion(v);
+        String tree = rootTree(targetMeta);
+
+        Map<String, String> selected = new TreeMap<>();
+        if (files == null) {
+            treeStore.walk(tree, selected::put);
+        } else {
+            for (String file : files) {
+                String fileName = relativePath(file);
+                if (fileName != null && fileName.isEmpty()) {
+                    treeStore.walk(tree, selected::put);
+                    continue;
+                }
+                TreeStore.Entry entry = (fileName == null) ? null : treeStore.find(tree, fileName);
+                if (entry == null) {
+                    throw new MissingFileException(file);
+                }
+                if (entry.directory()) {
+                    treeStore.walk(entry.hash(), fileName + "/", selected::put);
+                } else {
+                    selected.put(fileName, entry.hash());
+                }
+            }
+        }
+
+        restoreAll(selected, (target == null) ? root : target.toAbsolutePath().normalize());
+        return toInfo(targetMeta);
+    }
+
+    @Override
+    public VersionInfo version(Integer version) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (version == null || version == -1) {
+            Integer curr = repoMetaData.getCurrentVersion();
+            version = (curr != null) ? curr : repoMetaData.getLatestVersion();
+        }
+
+        if (!repoMetaData.isVersionExisting(version)) {
+            throw new InvalidVersionException(version);
+        }
+
+        return toInfo(readVersion(version));
+    }
+
+    @Override
+    public List<String> files(Integer version) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        int target = (version == null) ? repoMetaData.getBranchTip() : version;
+        if (!repoMetaData.isVersionExisting(target)) {
+            throw new InvalidVersionException(version);
+        }
+
+        List<String> files = new ArrayList<>();
+        treeStore.walk(rootTree(readVersion(target)), (fileName, hash) -> files.add(fileName));
+        return files;
+    }
+
+    /**
+     * Compares the working tree with the tip of the current branch. While a {@link WorkingTreeWatcher} is running only the
+     * paths it recorded, plus the files changed by versions created since its last scan, are compared.
+     */
+    @Override
+    public List<FileStatus> status() throws GvtException, IOException
+    {
+        ensureLoaded();
+        return new ArrayList<>(workingTreeChanges().values());
+    }
+
+    /**
+     * Returns the tracked files that differ from the branch tip. When the watcher keeps a dirty-state snapshot only
+     * the paths it saw change are checked, otherwise the whole tree; either way a file is hashed only when its size
+     * matches the stored revision.
+     */
+    private Map<String, FileStatus> workingTreeChanges() throws IOException
+    {
+        int latest = repoMetaData.getBranchTip();
+        String tree = rootTree(readVersion(latest));
+        Map<String, FileStatus> statuses = new TreeMap<>();
+
+        DirtyState.Snapshot snapshot = dirtyState.read();
+        if (snapshot == null || !repoMetaData.isVersionExisting(snapshot.baseVersion())) {
+            treeStore.walk(tree, (fileName, hash) -> checkFile(fileName, hash, statuses));
+            return statuses;
+        }
+
+        Set<String> candidates = new TreeSet<>(snapshot.paths());
+        if (snapshot.baseVersion() != latest) {
+            treeStore.diff(rootTree(readVersion(snapshot.baseVersion())), tree, (fileName, hash) -> candidates.add(fileName));
+        }
+        for (String candidate : candidates) {
+            TreeStore.Entry entry = treeStore.find(tree, candidate);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.directory()) {
+                treeStore.walk(entry.hash(), candidate + "/", (fileName, hash) -> checkFile(fileName, hash, statuses));
+            } else {
+                checkFile(candidate, entry.hash(), statuses);
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public WorkingTreeWatcher watch() throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        WorkingTreeWatcher watcher = new WorkingTreeWatcher(root, dirtyState, this::scanWorkingTree);
+        watcher.start();
+        return watcher;
+    }
+
+    private DirtyState.Snapshot scanWorkingTree() throws IOException
+    {
+        int latest = readJson(repoMetaFile, RepoMetaData.class).getBranchTip();
+        Map<String, FileStatus> statuses = new TreeMap<>();
+        treeStore.walk(rootTree(readVersion(latest)), (fileName, hash) -> checkFile(fileName, hash, statuses));
+        return new DirtyState.Snapshot(latest, statuses.keySet());
+    }
+
+    private void checkFile(String fileName, String hash, Map<String, FileStatus> statuses) throws IOException
+    {
+        Path file = root.resolve(fileName);
+        if (!Files.isRegularFile(file)) {
+            statuses.put(fileName, new FileStatus(fileName, FileStatus.State.MISSING));
+        } else if (!sameContent(file, hash)) {
+            statuses.put(fileName, new FileStatus(fileName, FileStatus.State.MODIFIED));
+        }
+    }
+
+    /**
+     * Compares sizes first and hashes the file, streaming, only when they are equal.
+     */
+    private boolean sameContent(Path file, String hash) throws IOException
+    {
+        return Files.size(file) == objectStore.size(hash) && hash.equals(objectStore.name(file));
+    }
+
+    /**
+     * Streams the last {@code n} versions (all when {@code n} is {@code null} or not positive) in ascending order.
+     * Messages come from the memory-mapped history index, nothing is collected in memory.
+     */
+    @Override
+    public void history(Integer n, Consumer<VersionInfo> consumer) throws GvtException, IOException
+    {
+        ensureLoaded();
+        ensureIndexed();
+
+        int latest = repoMetaData.getLatestVersion();
+        int from = 0;
+        if (n != null && n > 0) {
+            from = latest + 1;
+            int found = 0;
+            while (from > 0 && found < n) {
+                from--;
+                if (repoMetaData.isVersionExisting(from)) {
+                    found++;
+                }
+            }
+        }
+
+        history(from, latest, consumer);
+    }
+
+    /**
+     * Streams the versions numbered {@code from} to {@code to}, both inclusive, in ascending order.
+     */
+    @Override
+    public void history(int from, int to, Consumer<VersionInfo> consumer) throws GvtException, IOException
+    {
+        ensureLoaded();
+        ensureIndexed();
+
+        try (HistoryIndex.Reader history = searchIndex.history()) {
+            for (int v = Math.max(from, 0); v <= Math.min(to, repoMetaData.getLatestVersion()); v++) {
+                if (repoMetaData.isVersionExisting(v)) {
+                    consumer.accept(toInfo(history, v));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void findByMessage(String term, Consumer<VersionInfo> consumer) throws GvtException, IOException
+    {
+        ensureLoaded();
+        ensureIndexed();
+
+        try (HistoryIndex.Reader history = searchIndex.history()) {
+            searchIndex.findByMessage(term, v -> {
+                if (repoMetaData.isVersionExisting(v)) {
+                    consumer.accept(toInfo(history, v));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void findByFile(String path, Consumer<VersionInfo> consumer) throws GvtException, IOException
+    {
+        ensureLoaded();
+        ensureIndexed();
+
+        String fileName = relativePath(path);
+        if (fileName == null || fileName.isEmpty()) {
+            return;
+        }
+        try (HistoryIndex.Reader history = searchIndex.history()) {
+            searchIndex.findByFile(fileName, v -> {
+                if (repoMetaData.isVersionExisting(v)) {
+                    consumer.accept(toInfo(history, v));
+                }
+            });
+        }
+    }
+
+    @Override
+    public FsckReport fsck() throws GvtException, IOException
+    {
+        if (!isInitialized()) {
+            throw new NotInitializedException();
+        }
+        unlock();
+        return new Fsck(gvtDir, objectStore, segments, gson).run();
+    }
+
+    /**
+     * Packs the metadata of cold versions into segments; {@code null} arguments take the configured policy.
+     */
+    @Override
+    public MaintenanceResult maintenance(Integer keep, Integer ageDays) throws GvtException, IOException
+    {
+        ensureLoaded();
+        MaintenanceResult result = tier((keep == null) ? VersionSegments.KEEP_VERSIONS : keep,
+            (ageDays == null) ? VersionSegments.AGE_DAYS : ageDays, false);
+        segments.clearFailure();
+        return result;
+    }
+
+    @Override
+    public BundleResult createBundle(Path file, Integer since) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (since != null && !repoMetaData.isVersionExisting(since)) {
+            throw new InvalidVersionException(since);
+        }
+        int base = (since == null) ? -1 : since;
+        String baseTree = (since == null) ? null : rootTree(readVersion(since));
+
+        return new Bundle(objectStore, treeStore).write(file, base, repoMetaData.getLatestVersion(), baseTree,
+            this::exportVersion);
+    }
+
+    /**
+     * Returns the transferred form of version {@code v}, with the root tree inlined into its metadata, or
+     * {@code null} when there is no such version.
+     */
+    private Bundle.Version exportVersion(int v) throws IOException
+    {
+        if (!repoMetaData.isVersionExisting(v)) {
+            return null;
+        }
+        VersionMetaData metaData = readVersion(v);
+        String tree = rootTree(metaData);
+        VersionMetaData exported = new VersionMetaData(v, metaData.getMessage(), tree, metaData.getParent(),
+            metaData.getMerged());
+        byte[] json = gson.toJson(exported).getBytes(StandardCharsets.UTF_8);
+        return new Bundle.Version(v, tree, json);
+    }
+
+    /**
+     * Writes the files of {@code version} to {@code out} as an archive, reading them from the object store without
+     * touching the working tree. {@code out} is flushed but not closed.
+     */
+    @Override
+    public ArchiveResult archive(int version, ArchiveFormat format, OutputStream out) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (!repoMetaData.isVersionExisting(version)) {
+            throw new InvalidVersionException(version);
+        }
+        return new Archive(objectStore, treeStore).write(version, rootTree(readVersion(version)), format, out);
+    }
+
+    /**
+     * Imports the versions of the bundle this repository does not have yet. A full bundle may also be imported
+     * into a directory that is not initialized; an incremental one needs its base version to be present.
+     */
+    @Override
+    public BundleResult importBundle(Path file) throws GvtException, IOException
+    {
+        if (!Files.isRegularFile(file)) {
+            throw new MissingFileException(file.toString());
+        }
+
+        boolean initialized = isInitialized();
+        if (initialized) {
+            ensureLoaded();
+        } else if (Files.exists(gvtDir)) {
+            throw new AlreadyInitializedException();
+        }
+        int localLatest = initialized ? repoMetaData.getLatestVersion() : -1;
+
+        try (Bundle.Reader reader = new Bundle(objectStore, treeStore).open(file)) {
+            if (reader.since() > localLatest) {
+                throw new InvalidBundleException("Bundle requires version " + reader.since() + " to be present.");
+            }
+            checkEncryption(reader.encryptionCheck(), initialized, "Bundle");
+            if (!initialized) {
+                Files.createDirectories(gvtDir);
+            }
+            try {
+                if (!initialized) {
+                    adoptEncryption(reader.encryptionCheck());
+                    registerSharedStore();
+                }
+                int objects = reader.importObjects();
+                AtomicInteger imported = new AtomicInteger();
+                reader.readVersions((version, metadata) -> {
+                    if (version > localLatest) {
+                        importVersion(version, metadata);
+                        imported.incrementAndGet();
+                    }
+                });
+                if (imported.get() == 0 && !initialized) {
+                    throw new InvalidBundleException("Bundle contains no versions.");
+                }
+                if (imported.get() > 0) {
+                    repoMetaData.setVersion(repoMetaData.getLatestVersion());
+                    saveRepoMetaData();
+                }
+                return new BundleResult(imported.get(), objects, Files.size(file));
+            } catch (GvtException | IOException | RuntimeException e) {
+                if (!initialized) {
+                    repoMetaData = null;
+                    deleteRecursively(gvtDir);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void importVersion(int version, byte[] json) throws GvtException, IOException
+    {
+        VersionMetaData metaData;
+        try {
+            metaData = gson.fromJson(new String(json, StandardCharsets.UTF_8), VersionMetaData.class);
+        } catch (JsonParseException e) {
+            throw new InvalidBundleException("Bundle is corrupted. Version: " + version, e);
+        }
+        if (metaData == null || metaData.getVersion() == null || metaData.getVersion() != version || !metaData.hasTree()
+                || (!TreeStore.EMPTY_TREE.equals(metaData.getTree()) && !objectStore.contains(metaData.getTree()))) {
+            throw new InvalidBundleException("Bundle is corrupted. Version: " + version);
+        }
+
+        Path versionDir = gvtDir.resolve(Integer.toString(version));
+        Files.createDirectories(versionDir);
+        versionMetaFile = versionDir.resolve(VersionMetaData.FILE_NAME);
+        versionMetaData = metaData;
+        saveVersionMetaData();
+
+        appendParentLinks(metaData);
+        if (repoMetaData == null) {
+            repoMetaData = new RepoMetaData(version);
+        } else {
+            repoMetaData.addVersion(version);
+        }
+    }
+
+    @Override
+    public SyncResult push(String address) throws GvtException, IOException
+    {
+        ensureLoaded();
+        try (Sync.Connection connection = Sync.connect(address, Sync.PUSH)) {
+            return Sync.send(syncSource(), objectStore, treeStore, connection);
+        }
+    }
+
+    /**
+     * Fetches the versions of the repository served at {@code address} that this one does not have yet. Like
+     * {@link #importBundle(Path)}, this also clones into a directory that is not initialized.
+     */
+    @Override
+    public SyncResult pull(String address) throws GvtException, IOException
+    {
+        boolean initialized = isInitialized();
+        if (initialized) {
+            ensureLoaded();
+        } else if (Files.exists(gvtDir)) {
+            throw new AlreadyInitializedException();
+        }
+
+        try (Sync.Connection connection = Sync.connect(address, Sync.PULL)) {
+            if (!initialized) {
+                Files.createDirectories(gvtDir);
+            }
+            try {
+                return Sync.receive(syncSink(), objectStore, connection);
+            } catch (GvtException | IOException | RuntimeException e) {
+                if (!initialized) {
+                    repoMetaData = null;
+                    deleteRecursively(gvtDir);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Serves this repository to {@link #push(String)} and {@link #pull(String)} on {@code port}. Every session
+     * works on freshly loaded metadata, one session at a time; this instance sees a push as a changed
+     * {@code repo.json} and reloads its own.
+     */
+    @Override
+    public SyncServer serve(int port) throws GvtException, IOException
+    {
+        ensureLoaded();
+        Object lock = new Object();
+        return SyncServer.bind(port, socket -> {
+            synchronized (lock) {
+                GvtRepositoryImpl session = new GvtRepositoryImpl(path, cache, sharedStore);
+                session.key = key;
+                session.ensureLoaded();
+                try (Sync.Connection connection = Sync.accept(socket)) {
+                    if (connection.command() == Sync.PUSH) {
+                        Sync.receive(session.syncSink(), session.objectStore, connection);
+                    } else {
+                        Sync.send(session.syncSource(), session.objectStore, session.treeStore, connection);
+                    }
+                }
+            }
+        });
+    }
+
+    private Sync.Source syncSource()
+    {
+        return new Sync.Source()
+        {
+            @Override
+            public int latest()
+            {
+                return repoMetaData.getLatestVersion();
+            }
+
+            @Override
+            public Bundle.Version version(int version) throws IOException
+            {
+                return exportVersion(version);
+            }
+
+            @Override
+            public SortedMap<String, Integer> branches()
+            {
+                return repoMetaData.getBranches();
+            }
+
+            @Override
+            public SortedMap<String, Integer> tags()
+            {
+                return repoMetaData.getTags();
+            }
+        };
+    }
+
+    /**
+     * Imported versions move the current branch as they are recorded, so the branches this repository had are
+     * remembered and restored before the refs of the other side are taken over.
+     */
+    private Sync.Sink syncSink()
+    {
+        SortedMap<String, Integer> localBranches = (repoMetaData == null) ? new TreeMap<>()
+            : new TreeMap<>(repoMetaData.getBranches());
+        return new Sync.Sink()
+        {
+            @Override
+            public int latest()
+            {
+                return (repoMetaData == null) ? -1 : repoMetaData.getLatestVersion();
+            }
+
+            @Override
+            public String latestId() throws IOException
+            {
+                return Hashing.hash(exportVersion(repoMetaData.getLatestVersion()).metadata());
+            }
+
+            @Override
+            public String encryptionCheck() throws IOException
+            {
+                return objectStore.encryptionCheck();
+            }
+
+            @Override
+            public void adoptEncryption(String check) throws GvtException, IOException
+            {
+                checkEncryption(check, false, "The remote repository");
+                GvtRepositoryImpl.this.adoptEncryption(check);
+                registerSharedStore();
+            }
+
+            @Override
+            public void importVersion(int version, byte[] metadata) throws GvtException, IOException
+            {
+                try {
+                    GvtRepositoryImpl.this.importVersion(version, metadata);
+                } catch (InvalidBundleException e) {
+                    throw new SyncException("Received corrupted version " + version + ".", e);
+                }
+            }
+
+            @Override
+            public void finish(SortedMap<String, Integer> branches, SortedMap<String, Integer> tags)
+                throws GvtException, IOException
+            {
+                if (repoMetaData == null) {
+                    throw new SyncException("Received no versions.");
+                }
+                SortedMap<String, Integer> merged = new TreeMap<>(localBranches);
+                merged.putAll(branches);
+                repoMetaData.mergeRefs(merged, tags);
+                saveRepoMetaData();
+            }
+        };
+    }
+
+    /**
+     * Makes this directory, which must be missing or empty, a new working copy of the repository in {@code source}
+     * and checks out the tip of its current branch. Stored revisions are hard-linked, or shared through the
+     * alternates file when the two directories are on different file systems; with {@code lazy} they are copied
+     * from the source only when their content is first needed. Version metadata is linked too, since it is only
+     * ever replaced, never modified in place.
+     */
+    @Override
+    public CloneResult cloneFrom(Path source, boolean lazy) throws GvtException, IOException
+    {
+        GvtRepositoryImpl origin = new GvtRepositoryImpl(source, cache, null);
+        origin.key = key;
+        if (!origin.isInitialized()) {
+            throw new CloneException("Not a gvt repository: " + source);
+        }
+        if (Files.exists(path)) {
+            try (Stream<Path> entries = Files.list(path)) {
+                if (entries.findAny().isPresent()) {
+                    throw new CloneException("Destination is not empty: " + path);
+                }
+            }
+        }
+        origin.ensureLoaded();
+
+        Files.createDirectories(gvtDir);
+        try {
+            if (origin.objectStore.isEncrypted()) {
+                objectStore.enableEncryption(origin.key);
+                encryptIndexes();
+            }
+            CloneResult.Sharing sharing;
+            long objects = 0;
+            if (lazy) {
+                sharing = CloneResult.Sharing.LAZY;
+                objectStore.setOrigin(origin.objectStore.getDirectory());
+            } else {
+                objects = objectStore.linkFrom(origin.objectStore);
+                sharing = (objects < 0) ? CloneResult.Sharing.ALTERNATES : CloneResult.Sharing.HARDLINKS;
+                if (objects < 0) {
+                    objectStore.addAlternate(origin.objectStore.getDirectory());
+                    objects = 0;
+                } else {
+                    for (ObjectStore alternate : origin.objectStore.getAlternates()) {
+                        objectStore.addAlternate(alternate.getDirectory());
+                    }
+                    if (origin.objectStore.getOrigin() != null) {
+                        objectStore.setOrigin(origin.objectStore.getOrigin().getDirectory());
+                    }
+                }
+            }
+            registerSharedStore();
+            cloneMetaData(origin);
+
+            loadMetaData();
+            repoMetaData.switchBranch(repoMetaData.getBranch());
+            saveRepoMetaData();
+            int tip = repoMetaData.getBranchTip();
+            checkout(tip);
+            return new CloneResult(tip, objects, sharing);
+        } catch (GvtException | IOException | RuntimeException e) {
+            repoMetaData = null;
+            head = null;
+            deleteRecursively(gvtDir);
+            throw e;
+        }
+    }
+
+    /**
+     * Links the version directories and segments and copies the search index, which is appended to in place, and
+     * the ref table. State of the source working tree (head snapshot, pending merge, dirty files) is not taken over.
+     */
+    private void cloneMetaData(GvtRepositoryImpl origin) throws IOException
+    {
+        try (Stream<Path> entries = Files.list(origin.gvtDir)) {
+            for (Path entry : entries.collect(Collectors.toList())) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry) && name.chars().allMatch(Character::isDigit)) {
+                    Path versionDir = Files.createDirectories(gvtDir.resolve(name));
+                    try (Stream<Path> files = Files.list(entry)) {
+                        for (Path file : files.collect(Collectors.toList())) {
+                            linkOrCopy(file, versionDir.resolve(file.getFileName().toString()));
+                        }
+                    }
+                } else if ("index".equals(name)) {
+                    copyTree(entry, gvtDir.resolve("index"));
+                } else if (VersionSegments.DIRECTORY.equals(name)) {
+                    Path segmentDir = Files.createDirectories(gvtDir.resolve(name));
+                    try (Stream<Path> files = Files.list(entry)) {
+                        for (Path file : files.collect(Collectors.toList())) {
+                            linkOrCopy(file, segmentDir.resolve(file.getFileName().toString()));
+                        }
+                    }
+                }
+            }
+        }
+        Files.copy(origin.repoMetaFile, repoMetaFile);
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException
+    {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void copyTree(Path source, Path target) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Path copy = target.resolve(source.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException
+    {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public void blame(String path, Integer version, Consumer<BlameLine> consumer) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        int target = (version == null) ? repoMetaData.getBranchTip() : version;
+        if (!repoMetaData.isVersionExisting(target)) {
+            throw new InvalidVersionException(version);
+        }
+
+        String fileName = relativePath(path);
+        if (fileName == null || fileName.isEmpty()) {
+            throw new UntrackedFileException(path);
+        }
+        if (fileHash(readVersion(target), fileName) == null) {
+            throw new UntrackedFileException(fileName);
+        }
+
+        ensureIndexed();
+        List<FileLineage.Entry> lineage = ancestry(searchIndex.lineage(fileName), target);
+        int targetIndex = Blame.findEntry(lineage, target);
+        if (targetIndex < 0 || lineage.get(targetIndex).isDetached()) {
+            throw new UntrackedFileException(fileName);
+        }
+
+        int[] origin = Blame.attribute(lineage, targetIndex, objectStore::open);
+
+        try (InputStream in = new BufferedInputStream(objectStore.open(lineage.get(targetIndex).hash()))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int lineNumber = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    consumer.accept(toBlameLine(lineNumber, origin[lineNumber], line));
+                    lineNumber++;
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+            if (line.size() > 0) {
+                consumer.accept(toBlameLine(lineNumber, origin[lineNumber], line));
+            }
+        }
+    }
+
+    /**
+     * Merges {@code revision} into the current branch. Files changed on one side only since the nearest common
+     * ancestor take that side's revision without being read; files changed on both sides are merged line by line,
+     * in parallel. A clean merge creates a version with both parents; otherwise the conflicting files are written
+     * with conflict markers and the merge waits for {@link #continueMerge(String)} or {@link #abortMerge()}. The
+     * merged files are written into the working tree, never over uncommitted changes.
+     */
+    @Override
+    public MergeResult merge(String revision, String message) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (Files.exists(mergeFile)) {
+            throw new MergeException("A merge is in progress. Use merge --continue or merge --abort.");
+        }
+        int ours = repoMetaData.getBranchTip();
+        int theirs = resolve(revision);
+        ensureParentLinks();
+        int base = mergeBase(ours, theirs);
+        if (base == theirs) {
+            return new MergeResult(MergeResult.Status.UP_TO_DATE, base, ours, List.of());
+        }
+
+        HeadSnapshot tip = head();
+        String theirsTree = rootTree(readVersion(theirs));
+        Map<String, String> changes = new TreeMap<>();
+        if (base == ours) {
+            treeStore.diff(tip.rootTree(), theirsTree, changes::put);
+            checkLocalChanges(tip, changes.keySet());
+            repoMetaData.moveBranch(theirs);
+            saveRepoMetaData();
+            restoreChanges(changes);
+            return new MergeResult(MergeResult.Status.FAST_FORWARD, base, theirs, List.of());
+        }
+
+        String baseTree = rootTree(readVersion(base));
+        Map<String, String[]> contentMerges = new TreeMap<>();
+        Set<String> conflicted = new TreeSet<>();
+        treeStore.diff(baseTree, theirsTree, (fileName, theirsHash) -> {
+            String oursHash = tip.lookup(fileName);
+            String baseHash = treeStore.lookup(baseTree, fileName);
+            if (Objects.equals(oursHash, baseHash)) {
+                changes.put(fileName, theirsHash);
+            } else if (oursHash == null || theirsHash == null) {
+                // changed on one side and detached on the other; the working tree copy decides on continue
+                if (!Objects.equals(oursHash, theirsHash)) {
+                    conflicted.add(fileName);
+                }
+            } else if (!oursHash.equals(theirsHash)) {
+                contentMerges.put(fileName, new String[] {baseHash, oursHash, theirsHash});
+            }
+        });
+
+        Map<String, String> written = new TreeMap<>(changes);
+        Map<String, MergedFile> merged = mergeContents(contentMerges, repoMetaData.getBranch(), revision);
+        for (Map.Entry<String, MergedFile> file : merged.entrySet()) {
+            written.put(file.getKey(), file.getValue().hash());
+            if (file.getValue().conflicts()) {
+                conflicted.add(file.getKey());
+            } else {
+                changes.put(file.getKey(), file.getValue().hash());
+            }
+        }
+        checkLocalChanges(tip, written.keySet());
+
+        if (conflicted.isEmpty()) {
+            createNewVersion(changes, withUserMessage("Merged version: " + theirs, message), theirs);
+            restoreChanges(changes);
+            return new MergeResult(MergeResult.Status.MERGED, base, versionMetaData.getVersion(), List.of());
+        }
+
+        List<String> conflicts = new ArrayList<>(conflicted);
+        MergeState state = new MergeState(ours, theirs, base, changes, conflicts);
+        writeJson(mergeFile, state);
+        restoreChanges(written);
+        return new MergeResult(MergeResult.Status.CONFLICTS, base, null, conflicts);
+    }
+
+    /**
+     * Creates the merge version of a merge stopped by conflicts, taking the conflicting files from the working tree;
+     * a file that was removed from the working tree is detached.
+     */
+    @Override
+    public MergeResult continueMerge(String message) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        MergeState state = readMergeState();
+        if (state.ours() != repoMetaData.getBranchTip()) {
+            throw new MergeException("The branch has changed since the merge started. Use merge --abort.");
+        }
+        Map<String, String> changes = state.changes();
+        for (String fileName : state.conflicts()) {
+            Path file = root.resolve(fileName);
+            if (!Files.isRegularFile(file)) {
+                changes.put(fileName, null);
+            } else if (hasConflictMarkers(file)) {
+                throw new MergeException("File still has conflict markers. File: " + fileName);
+            } else {
+                changes.put(fileName, objectStore.store(file));
+            }
+        }
+
+        createNewVersion(changes, withUserMessage("Merged version: " + state.theirs(), message), state.theirs());
+        Files.delete(mergeFile);
+        return new MergeResult(MergeResult.Status.MERGED, state.base(), versionMetaData.getVersion(), List.of());
+    }
+
+    /**
+     * Drops a merge stopped by conflicts and restores the revisions of the branch tip for the files it wrote.
+     */
+    @Override
+    public void abortMerge() throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        MergeState state = readMergeState();
+        HeadSnapshot tip = head();
+        Set<String> touched = new TreeSet<>(state.changes().keySet());
+        touched.addAll(state.conflicts());
+        Map<String, String> restore = new TreeMap<>();
+        for (String fileName : touched) {
+            String hash = tip.lookup(fileName);
+            if (hash != null) {
+                restore.put(fileName, hash);
+            }
+        }
+        restoreAll(restore, root);
+        Files.delete(mergeFile);
+    }
+
+    private MergeState readMergeState() throws IOException, MergeException
+    {
+        if (!Files.isRegularFile(mergeFile)) {
+            throw new MergeException("No merge in progress.");
+        }
+        return readJson(mergeFile, MergeState.class);
+    }
+
+    /**
+     * Returns the nearest common ancestor. Parents are numbered below their children, so visiting versions from the
+     * highest down reaches every descendant before its ancestors; the first version reached from both sides is the
+     * nearest.
+     */
+    private int mergeBase(int ours, int theirs)
+    {
+        Map<Integer, Integer> reachedFrom = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator.reverseOrder());
+        reach(reachedFrom, queue, ours, 1);
+        reach(reachedFrom, queue, theirs, 2);
+        while (!queue.isEmpty()) {
+            int version = queue.poll();
+            int sides = reachedFrom.get(version);
+            if (sides == 3) {
+                return version;
+            }
+            reach(reachedFrom, queue, parentLinks.parent(version), sides);
+            reach(reachedFrom, queue, parentLinks.merged(version), sides);
+        }
+        return -1;
+    }
+
+    private static void reach(Map<Integer, Integer> reachedFrom, PriorityQueue<Integer> queue, int version, int sides)
+    {
+        if (version < 0) {
+            return;
+        }
+        Integer previous = reachedFrom.put(version, reachedFrom.getOrDefault(version, 0) | sides);
+        if (previous == null) {
+            queue.add(version);
+        }
+    }
+
+    private record MergedFile(String hash, boolean conflicts)
+    {
+    }
+
+    /**
+     * Merges the files changed on both sides, each into a temporary file that is then stored, on up to one thread
+     * per processor.
+     */
+    private Map<String, MergedFile> mergeContents(Map<String, String[]> files, String oursLabel, String theirsLabel)
+        throws IOException
+    {
+        Map<String, MergedFile> merged = new TreeMap<>();
+        if (files.isEmpty()) {
+            return merged;
+        }
+
+        ThreeWayMerge engine = new ThreeWayMerge(objectStore);
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-merge", threads);
+        try {
+            Map<String, Future<MergedFile>> futures = new TreeMap<>();
+            for (Map.Entry<String, String[]> file : files.entrySet()) {
+                String[] hashes = file.getValue();
+                futures.put(file.getKey(), pool.submit(() -> {
+                    Path temp = Files.createTempFile(gvtDir, "merge-", ".tmp");
+                    try {
+                        boolean conflicts;
+                        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                            conflicts = engine.merge(hashes[0], hashes[1], hashes[2], oursLabel, theirsLabel, out);
+                        }
+                        return new MergedFile(objectStore.store(temp), conflicts);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<MergedFile>> future : futures.entrySet()) {
+                merged.put(future.getKey(), future.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return merged;
+    }
+
+    private void checkLocalChanges(HeadSnapshot tip, Set<String> fileNames) throws IOException, MergeException
+    {
+        for (String fileName : fileNames) {
+            Path file = root.resolve(fileName);
+            if (!Files.exists(file)) {
+                continue;
+            }
+            String hash = tip.lookup(fileName);
+            if (hash == null || !Files.isRegularFile(file) || !sameContent(file, hash)) {
+                throw new MergeException("Local changes would be overwritten by merge. File: " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Writes the new revisions into the working tree; detached files are left in place, as with detach.
+     */
+    private void restoreChanges(Map<String, String> changes) throws IOException
+    {
+        Map<String, String> revisions = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                revisions.put(change.getKey(), change.getValue());
+            }
+        }
+        restoreAll(revisions, root);
+    }
+
+    /**
+     * Saves the content of the modified tracked files and the list of missing ones on the stash, then restores
+     * those files from the branch tip.
+     */
+    @Override
+    public StashResult stash() throws GvtException, IOException
+    {
+        ensureLoaded();
+        if (Files.exists(mergeFile)) {
+            throw new StashException("A merge is in progress. Use merge --continue or merge --abort.");
+        }
+
+        Map<String, FileStatus> changes = workingTreeChanges();
+        if (changes.isEmpty()) {
+            return new StashResult(0, List.of());
+        }
+        HeadSnapshot tip = head();
+        Map<String, String> modified = new TreeMap<>();
+        List<String> missing = new ArrayList<>();
+        Map<String, String> restore = new TreeMap<>();
+        for (FileStatus status : changes.values()) {
+            String fileName = status.fileName();
+            if (status.state() == FileStatus.State.MODIFIED) {
+                modified.put(fileName, objectStore.store(root.resolve(fileName)));
+            } else {
+                missing.add(fileName);
+            }
+            restore.put(fileName, tip.lookup(fileName));
+        }
+
+        StashState stack = readStash();
+        stack.push(new StashState.Entry(tip.version(), modified, missing));
+        writeJson(stashFile, stack);
+        restoreAll(restore, root);
+        return new StashResult(changes.size(), List.of());
+    }
+
+    /**
+     * Restores the latest stash entry and drops it. Files the branch tip has not changed since the entry was saved
+     * get the stashed content back; the others are merged with it, conflicts marked as by merge. Refuses when a
+     * stashed file has local changes.
+     */
+    @Override
+    public StashResult stashPop() throws GvtException, IOException
+    {
+        ensureLoaded();
+        StashState stack = readStash();
+        StashState.Entry entry = stack.peek();
+        if (entry == null) {
+            throw new StashException("No stash entries.");
+        }
+
+        HeadSnapshot tip = head();
+        String baseTree = repoMetaData.isVersionExisting(entry.base()) ? rootTree(readVersion(entry.base())) : null;
+        Set<String> fileNames = new TreeSet<>(entry.modified().keySet());
+        fileNames.addAll(entry.missing());
+        for (String fileName : fileNames) {
+            Path file = root.resolve(fileName);
+            String hash = tip.lookup(fileName);
+            boolean clean = (hash == null) ? !Files.exists(file) : Files.isRegularFile(file) && sameContent(file, hash);
+            if (!clean) {
+                throw new StashException("Local changes would be overwritten by stash pop. File: " + fileName);
+            }
+        }
+
+        Map<String, String> restore = new TreeMap<>();
+        Map<String, String[]> toMerge = new TreeMap<>();
+        List<String> conflicts = new ArrayList<>();
+        for (Map.Entry<String, String> stashed : entry.modified().entrySet()) {
+            String fileName = stashed.getKey();
+            String base = (baseTree == null) ? null : treeStore.lookup(baseTree, fileName);
+            String ours = tip.lookup(fileName);
+            if (ours == null || Objects.equals(ours, base)) {
+                restore.put(fileName, stashed.getValue());
+            } else if (!ours.equals(stashed.getValue())) {
+                toMerge.put(fileName, new String[] {base, ours, stashed.getValue()});
+            }
+        }
+        Map<String, MergedFile> mergedFiles = mergeContents(toMerge, repoMetaData.getBranch(), "stash");
+        for (Map.Entry<String, MergedFile> merged : mergedFiles.entrySet()) {
+            restore.put(merged.getKey(), merged.getValue().hash());
+            if (merged.getValue().conflicts()) {
+                conflicts.add(merged.getKey());
+            }
+        }
+        for (String fileName : entry.missing()) {
+            String base = (baseTree == null) ? null : treeStore.lookup(baseTree, fileName);
+            String ours = tip.lookup(fileName);
+            if (ours != null && !ours.equals(base)) {
+                conflicts.add(fileName);
+            } else {
+                Files.deleteIfExists(root.resolve(fileName));
+            }
+        }
+
+        restoreAll(restore, root);
+        stack.pop();
+        if (stack.isEmpty()) {
+            Files.deleteIfExists(stashFile);
+        } else {
+            writeJson(stashFile, stack);
+        }
+        return new StashResult(fileNames.size(), conflicts);
+    }
+
+    private StashState readStash() throws IOException
+    {
+        return Files.isRegularFile(stashFile) ? readJson(stashFile, StashState.class) : new StashState();
+    }
+
+    private static boolean hasConflictMarkers(Path file) throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(ThreeWayMerge.OURS_MARKER) || line.startsWith(ThreeWayMerge.THEIRS_MARKER)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first bad version on the line of descent from {@code good} to {@code bad}, testing up to
+     * {@code jobs} versions at a time. Each candidate is restored into a temporary directory of its own; the
+     * working tree is not touched. Candidates' trees are resolved on this thread, so the workers only read objects
+     * and the shared cache, which are safe for concurrent use, and restore their files one by one.
+     */
+    @Override
+    public BisectResult bisect(int good, int bad, int jobs, BisectPredicate predicate) throws GvtException, IOException
+    {
+        ensureLoaded();
+        if (!repoMetaData.isVersionExisting(good)) {
+            throw new InvalidVersionException(good);
+        }
+        if (!repoMetaData.isVersionExisting(bad)) {
+            throw new InvalidVersionException(bad);
+        }
+
+        List<Integer> line = new ArrayList<>();
+        int v = bad;
+        ensureParentLinks();
+        for (; v > good; v = parentLinks.parent(v)) {
+            line.add(v);
+        }
+        if (v != good) {
+            throw new BisectException("Version " + good + " is not an ancestor of version " + bad + ".");
+        }
+        if (line.isEmpty()) {
+            throw new BisectException("Good and bad versions must differ.");
+        }
+        line.add(good);
+        Collections.reverse(line);
+        Bisect.Materialiser materialiser = version -> {
+            String tree = rootTree(readVersion(version));
+            return directory -> restoreTree(tree, directory);
+        };
+        return new Bisect(materialiser, predicate, jobs).run(line);
+    }
+
+    @Override
+    public Ref currentBranch() throws GvtException, IOException
+    {
+        ensureLoaded();
+        return new Ref(repoMetaData.getBranch(), repoMetaData.getBranchTip());
+    }
+
+    @Override
+    public List<Ref> branches() throws GvtException, IOException
+    {
+        ensureLoaded();
+        return toRefs(repoMetaData.getBranches());
+    }
+
+    @Override
+    public List<Ref> tags() throws GvtException, IOException
+    {
+        ensureLoaded();
+        return toRefs(repoMetaData.getTags());
+    }
+
+    /**
+     * Points a new branch at {@code startPoint} (a version number or ref name), or at the current branch tip when it
+     * is {@code null}. Only the ref table is written, whatever the size of the repository.
+     */
+    @Override
+    public Ref createBranch(String name, String startPoint) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        int version = (startPoint == null) ? repoMetaData.getBranchTip() : resolve(startPoint);
+        checkNewRef(name);
+        repoMetaData.addBranch(name, version);
+        saveRepoMetaData();
+        return new Ref(name, version);
+    }
+
+    @Override
+    public Ref createTag(String name, String startPoint) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        int version = (startPoint == null) ? repoMetaData.getBranchTip() : resolve(startPoint);
+        checkNewRef(name);
+        repoMetaData.addTag(name, version);
+        saveRepoMetaData();
+        return new Ref(name, version);
+    }
+
+    /**
+     * Makes {@code name} the branch new versions are created on. The working tree is left alone, use
+     * {@link #checkout(Integer)} to restore the branch's files; the head snapshot is rebuilt by the next change.
+     */
+    @Override
+    public Ref switchBranch(String name) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        if (!repoMetaData.getBranches().containsKey(name)) {
+            throw new RefException("Branch not found: ", name);
+        }
+        repoMetaData.switchBranch(name);
+        saveRepoMetaData();
+        return new Ref(name, repoMetaData.getBranchTip());
+    }
+
+    /**
+     * Returns the version a version number, branch or tag name stands for.
+     */
+    @Override
+    public int resolve(String revision) throws GvtException, IOException
+    {
+        ensureLoaded();
+
+        Integer version = repoMetaData.resolveRef(revision);
+        if (version != null) {
+            return version;
+        }
+        try {
+            version = Integer.valueOf(revision);
+        } catch (NumberFormatException e) {
+            throw new RefException("Branch or tag not found: ", revision);
+        }
+        if (!repoMetaData.isVersionExisting(version)) {
+            throw new InvalidVersionException(version);
+        }
+        return version;
+    }
+
+    private void checkNewRef(String name) throws RefException
+    {
+        if (name == null || !REF_NAME.matcher(name).matches() || name.chars().allMatch(Character::isDigit)) {
+            throw new RefException("Invalid branch or tag name: ", name);
+        }
+        if (repoMetaData.isRefExisting(name)) {
+            throw new RefException("Branch or tag already exists: ", name);
+        }
+    }
+
+    private static List<Ref> toRefs(Map<String, Integer> refs)
+    {
+        List<Ref> list = new ArrayList<>(refs.size());
+        for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+            list.add(new Ref(ref.getKey(), ref.getValue()));
+        }
+        return list;
+    }
+
+    /**
+     * Keeps the lineage entries of the versions {@code target} descends from, following first parents: changes made
+     * on other branches do not take part in its blame, lines brought in by a merge are attributed to the merge.
+     */
+    private List<FileLineage.Entry> ancestry(List<FileLineage.Entry> lineage, int target)
+    {
+        List<FileLineage.Entry> ancestors = new ArrayList<>();
+        int ancestor = target;
+        for (int i = Blame.findEntry(lineage, target); i >= 0 && ancestor >= 0; i--) {
+            int version = lineage.get(i).version();
+            while (ancestor > version) {
+                ancestor = parentLinks.parent(ancestor);
+            }
+            if (ancestor == version) {
+                ancestors.add(lineage.get(i));
+            }
+        }
+        Collections.reverse(ancestors);
+        return ancestors;
+    }
+
+    private BlameLine toBlameLine(int lineNumber, int version, ByteArrayOutputStream line)
+    {
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        return new BlameLine(lineNumber + 1, version, text);
+    }
+
+    /**
+     * Returns the {@code /}-separated path relative to the working tree root, an empty string for the root itself
+     * or {@code null} when the path lies outside the working tree or inside {@code .gvt}.
+     */
+    private String relativePath(String path)
+    {
+        Path absolute = root.resolve(path).normalize();
+        if (!absolute.startsWith(root)) {
+            return null;
+        }
+        String relative = TreeStore.toTreePath(root.relativize(absolute));
+        if (relative.equals(".gvt") || relative.startsWith(".gvt/")) {
+            return null;
+        }
+        return relative;
+    }
+
+    private String fileHash(VersionMetaData metaData, String fileName) throws IOException
+    {
+        if (metaData.hasTree()) {
+            return treeStore.lookup(metaData.getTree(), fileName);
+        }
+        return legacyHash(metaData, fileName);
+    }
+
+    private String rootTree(VersionMetaData metaData) throws IOException
+    {
+        if (metaData.hasTree()) {
+            return metaData.getTree();
+        }
+        Map<String, String> files = new HashMap<>();
+        for (String fileName : metaData.getFileNames()) {
+            String hash = legacyHash(metaData, fileName);
+            if (hash != null) {
+                files.put(fileName, hash);
+            }
+        }
+        return treeStore.update(null, files);
+    }
+
+    private String legacyHash(VersionMetaData metaData, String fileName) throws IOException
+    {
+        if (!metaData.isFileExist(fileName)) {
+            return null;
+        }
+        String hash = metaData.getFileHash(fileName);
+        if (hash == null) {
+            Path legacy = gvtDir.resolve(metaData.getVersion().toString()).resolve(fileName);
+            if (Files.exists(legacy)) {
+                hash = objectStore.store(legacy);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Packs the groups of versions that have gone cold with the last commit. A failure leaves them loose, to be
+     * packed after a later commit or by maintenance, and is recorded for fsck to report until then.
+     */
+    private void tierColdGroups()
+    {
+        if (!VersionSegments.AUTO) {
+            return;
+        }
+        try {
+            tier(VersionSegments.KEEP_VERSIONS, VersionSegments.AGE_DAYS, true);
+            segments.clearFailure();
+        } catch (IOException e) {
+            // the version itself is stored; reads work the same whether its predecessors are packed or not
+            try {
+                segments.recordFailure(e);
+            } catch (IOException ignored) {
+                // the loose versions left behind are packed by the next commit or maintenance that succeeds
+            }
+        }
+    }
+
+    /**
+     * Packs versions at least {@code keep} versions behind the latest one and, with a positive {@code ageDays},
+     * versions written more than that many days ago. With {@code wholeGroups} a group is packed only once all its
+     * versions are cold, so that each group is written once instead of growing by a segment per commit.
+     */
+    private MaintenanceResult tier(int keep, int ageDays, boolean wholeGroups) throws IOException
+    {
+        int latest = repoMetaData.getLatestVersion();
+        long cutoff = (ageDays > 0) ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(ageDays) : Long.MIN_VALUE;
+        MaintenanceResult result = new MaintenanceResult(0, 0, 0, 0);
+        for (int first = 0; first <= latest; first += VersionSegments.GROUP_VERSIONS) {
+            int last = Math.min(first + VersionSegments.GROUP_VERSIONS - 1, latest);
+            boolean complete = last - first + 1 == VersionSegments.GROUP_VERSIONS;
+            if (wholeGroups && !(complete && isCold(last, latest, keep, cutoff))) {
+                break;
+            }
+            int existing = 0;
+            for (int v = first; v <= last; v++) {
+                existing += repoMetaData.isVersionExisting(v) ? 1 : 0;
+            }
+            if (segments.count(first) >= existing) {
+                continue;
+            }
+            List<Integer> cold = new ArrayList<>();
+            for (int v = first; v <= last; v++) {
+                if (repoMetaData.isVersionExisting(v) && Files.isDirectory(gvtDir.resolve(Integer.toString(v)))
+                        && isCold(v, latest, keep, cutoff)) {
+                    cold.add(v);
+                }
+            }
+            if (!cold.isEmpty()) {
+                result = result.plus(segments.pack(first, cold));
+            }
+        }
+        return result;
+    }
+
+    private boolean isCold(int version, int latest, int keep, long cutoff) throws IOException
+    {
+        if (latest - version >= keep) {
+            return true;
+        }
+        if (cutoff == Long.MIN_VALUE) {
+            return false;
+        }
+        Path metaFile = gvtDir.resolve(Integer.toString(version)).resolve(VersionMetaData.FILE_NAME);
+        return !Files.exists(metaFile) || Files.getLastModifiedTime(metaFile).toMillis() < cutoff;
+    }
+
+    private void indexVersion(Map<String, String> changedFiles)
+    {
+        try {
+            synchronized (indexLock) {
+                if (searchIndex.getIndexedVersion() == versionMetaData.getVersion() - 1) {
+                    searchIndex.record(versionMetaData.getVersion(), versionMetaData.getMessage(), changedFiles);
+                }
+            }
+        } catch (IOException e) {
+            // the version itself is stored; ensureIndexed() rebuilds the missing postings on the next query
+        }
+    }
+
+    /**
+     * Indexes the versions the search and history indexes do not cover yet. Queries run alongside each other, also
+     * in other instances on the same directory, so the appends are serialised per directory.
+     */
+    private void ensureIndexed() throws IOException
+    {
+        synchronized (indexLock) {
+            ensureParentLinks();
+            int indexed = searchIndex.getIndexedVersion();
+            VersionMetaData previous = repoMetaData.isVersionExisting(indexed) ? readVersion(indexed) : null;
+
+            for (int v = indexed + 1; v <= repoMetaData.getLatestVersion(); v++) {
+                if (!repoMetaData.isVersionExisting(v)) {
+                    continue;
+                }
+                VersionMetaData current = readVersion(v);
+                int parent = parentLinks.parent(v);
+                if (previous == null || previous.getVersion() != parent) {
+                    previous = repoMetaData.isVersionExisting(parent) ? readVersion(parent) : null;
+                }
+                searchIndex.record(v, current.getMessage(), changedFiles(previous, current));
+                previous = current;
+            }
+        }
+    }
+
+    private Map<String, String> changedFiles(VersionMetaData previous, VersionMetaData current) throws IOException
+    {
+        Map<String, String> changed = new HashMap<>();
+        treeStore.diff(previous == null ? null : rootTree(previous), rootTree(current), changed::put);
+        return changed;
+    }
+
+    private VersionInfo toInfo(HistoryIndex.Reader history, int version) throws IOException
+    {
+        String message = history.message(version);
+        return (message == null) ? toInfo(readVersion(version)) : new VersionInfo(version, message);
+    }
+
+    private VersionInfo toInfo(VersionMetaData metaData)
+    {
+        String message = metaData.getMessage();
+        return new VersionInfo(metaData.getVersion(), message == null ? "" : message);
+    }
+
+    private String withUserMessage(String defaultMessage, String message)
+    {
+        if (message == null || message.isEmpty()) {
+            return defaultMessage;
+        }
+        return defaultMessage + System.lineSeparator() + message;
+    }
+
+    private synchronized void ensureLoaded() throws GvtException, IOException
+    {
+        if (!isInitialized()) {
+            throw new NotInitializedException();
+        }
+        if (repoMetaData == null) {
+            unlock();
+            loadMetaData();
+            registerSharedStore();
+        } else if (!stamp().equals(repoMetaStamp)) {
+            // written by another instance since it was loaded; replaced in one step, as other threads may be reading
+            // it, and the head snapshot is checked against the new tip when next used
+            loadMetaData();
+        }
+    }
+
+    /**
+     * Supplies the key to an encrypted repository, failing early when there is none or it is not the right one.
+     */
+    private void unlock() throws GvtException, IOException
+    {
+        if (!objectStore.isEncrypted()) {
+            return;
+        }
+        if (key() == null) {
+            throw new EncryptionException("Repository is encrypted. Set " + RepositoryKey.KEY_VARIABLE + " or "
+                + RepositoryKey.KEY_FILE_VARIABLE + " to its key.");
+        }
+        if (!objectStore.unlock(key)) {
+            throw new EncryptionException("Wrong encryption key.");
+        }
+        encryptIndexes();
+    }
+
+    private void encryptIndexes() throws IOException
+    {
+        searchIndex.encryptWith(objectStore.encryption());
+        segments.encryptWith(objectStore.encryption());
+        dirtyState.encryptWith(objectStore.encryption());
+    }
+
+    /**
+     * Checks that objects and metadata transferred from a repository encrypted with the key of {@code check},
+     * {@code null} for plain text, can be taken over as they are: by a repository encrypted alike or, by one that
+     * is being created, with the key supplied to it. {@code source} names the other side in messages.
+     */
+    private void checkEncryption(String check, boolean initialized, String source) throws GvtException, IOException
+    {
+        if (!initialized) {
+            if (check != null && key() == null) {
+                throw new EncryptionException(source + " is encrypted. Set " + RepositoryKey.KEY_VARIABLE + " or "
+                    + RepositoryKey.KEY_FILE_VARIABLE + " to its key.");
+            }
+            if (check != null && !key.check().equals(check)) {
+                throw new EncryptionException(source + " is encrypted with another key.");
+            }
+            return;
+        }
+        String own = objectStore.encryptionCheck();
+        if (Objects.equals(own, check)) {
+            return;
+        }
+        if (check == null) {
+            throw new EncryptionException(source + " is not encrypted, but this repository is.");
+        }
+        throw new EncryptionException((own == null) ? source + " is encrypted, but this repository is not."
+            : source + " is encrypted with another key.");
+    }
+
+    /**
+     * Encrypts the repository being created with the key of {@code check}, already checked, like the other side.
+     */
+    private void adoptEncryption(String check) throws IOException
+    {
+        if (check != null) {
+            objectStore.enableEncryption(key);
+            encryptIndexes();
+        }
+    }
+
+    private RepositoryKey key() throws EncryptionException
+    {
+        if (key == null) {
+            key = RepositoryKey.fromEnvironment();
+        }
+        return key;
+    }
+
+    /**
+     * Reads a version's metadata through the shared cache, filling it on a miss.
+     */
+    private VersionMetaData readVersion(Integer v) throws IOException
+    {
+        VersionMetaData metaData = cache.getMetadata(cacheKey, v);
+        if (metaData == null) {
+            metaData = readStoredVersion(v);
+            cache.putMetadata(cacheKey, v, metaData);
+        }
+        return metaData;
+    }
+
+    /**
+     * Reads a version from its segment once it is cold, from its own directory before. A version found in neither
+     * may just have been packed by another instance, so the segments are listed again before giving up.
+     */
+    private VersionMetaData readStoredVersion(int v) throws IOException
+    {
+        byte[] packed = segments.read(v);
+        if (packed == null) {
+            try {
+                return readJson(gvtDir.resolve(Integer.toString(v)).resolve(VersionMetaData.FILE_NAME),
+                    VersionMetaData.class);
+            } catch (NoSuchFileException e) {
+                segments.rescan();
+                packed = segments.read(v);
+                if (packed == null) {
+                    throw e;
+                }
+            }
+        }
+        try {
+            VersionMetaData metaData = gson.fromJson(new String(packed, StandardCharsets.UTF_8), VersionMetaData.class);
+            if (metaData == null) {
+                throw new IOException("Empty metadata of version " + v + " in its segment");
+            }
+            return metaData;
+        } catch (JsonParseException e) {
+            throw new IOException("Corrupted metadata of version " + v + " in its segment", e);
+        }
+    }
+
+    private void restoreAll(Map<String, String> files, Path destination) throws IOException
+    {
+        int threads = Math.min(files.size(), GvtExecutors.ioThreads());
+        if (threads <= 1) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                restoreRevision(file.getValue(), destination.resolve(file.getKey()));
+            }
+            return;
+        }
+
+        int maxInFlight = threads * 4;
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-checkout", threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                inFlight.acquireUninterruptibly();
+                if (failure.get() != null) {
+                    inFlight.release();
+                    break;
+                }
+                pool.execute(() -> {
+                    try {
+                        restoreRevision(file.getValue(), destination.resolve(file.getKey()));
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, new IOException(e));
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            pool.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Restores every file of {@code tree} on the calling thread, for callers that already run in parallel.
+     */
+    private void restoreTree(String tree, Path destination) throws IOException
+    {
+        treeStore.walk(tree, (fileName, hash) -> restoreRevision(hash, destination.resolve(fileName)));
+    }
+
+    private void restoreRevision(String hash, Path destination) throws IOException
+    {
+        Files.createDirectories(destination.getParent());
+
+        byte[] content = cache.getBlob(hash);
+        if (content == null && cache.acceptsBlob(objectStore.size(hash))) {
+            content = objectStore.read(hash);
+            cache.putBlob(hash, content);
+        }
+        if (content != null) {
+            Files.write(destination, content);
+        } else {
+            objectStore.copyTo(hash, destination);
+        }
+    }
+
+    /**
+     * Reads and deduplicates through the shared store, which holds plain text and so only serves plain repositories.
+     */
+    private void registerSharedStore() throws IOException
+    {
+        if (sharedStore != null && !objectStore.isEncrypted()) {
+            objectStore.addAlternate(sharedStore.getDirectory());
+        }
+    }
+
+    private <T> T readJson(Path file, Class<T> type) throws IOException
+    {
+        Encryption encryption = objectStore.encryption();
+        InputStream in = Files.newInputStream(file);
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+                (encryption == null) ? in : encryption.decrypt(in), StandardCharsets.UTF_8))) {
+            T value = gson.fromJson(reader, type);
+            if (value == null) {
+                throw new IOException("Empty metadata file: " + file);
+            }
+            return value;
+        } catch (JsonParseException e) {
+            throw new IOException("Corrupted metadata file: " + file, e);
+        }
+    }
+
+    /**
+     * Creates the next version on top of the current branch tip: the tip's tree with {@code changes} (file name to
+     * new content hash, {@code null} to detach) applied. Only trees along changed paths are rewritten, everything
+     * else is shared with the parent.
+     */
+    private void createNewVersion(Map<String, String> changes, String message) throws IOException
+    {
+        createNewVersion(changes, message, -1);
+    }
+
+    private void createNewVersion(Map<String, String> changes, String message, int merged) throws IOException
+    {
+        HeadSnapshot base = head();
+        String tree = treeStore.update(base.rootTree(), changes);
+
+        Map<String, String> changedFiles = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (!Objects.equals(base.lookup(change.getKey()), change.getValue())) {
+                changedFiles.put(change.getKey(), change.getValue());
+            }
+        }
+
+        Integer newVersion = repoMetaData.getLatestVersion() + 1;
+        Path newVersionDir = gvtDir.resolve(newVersion.toString());
+        Files.createDirectory(newVersionDir);
+
+        versionMetaFile = newVersionDir.resolve(VersionMetaData.FILE_NAME);
+        versionMetaData = new VersionMetaData(newVersion, message, tree, base.version(), (merged < 0) ? null : merged);
+        saveVersionMetaData();
+        appendParentLinks(versionMetaData);
+
+        repoMetaData.addVersion(newVersion);
+        repoMetaData.setVersion(newVersion);
+        saveRepoMetaData();
+        head = HeadSnapshot.update(headFile, objectStore.encryption(), base, repoMetaData.getBranchTip(),
+            repoMetaData.getCurrentVersion(), tree, changedFiles);
+
+        indexVersion(changedFiles);
+        tierColdGroups();
+    }
+
+    /**
+     * Returns the snapshot of the current branch tip. It is rebuilt from the version's tree when it is missing,
+     * fails its checksum or describes another version, e.g. after switching branches or after a crash between
+     * saving a version and its snapshot.
+     */
+    private HeadSnapshot head() throws IOException
+    {
+        int tip = repoMetaData.getBranchTip();
+        if (head == null || head.version() != tip) {
+            head = HeadSnapshot.read(headFile, objectStore.encryption());
+        }
+        if (head == null || head.version() != tip) {
+            String tree = rootTree(readVersion(tip));
+            Map<String, String> manifest = new HashMap<>();
+            treeStore.walk(tree, manifest::put);
+            writeHead(tree, manifest);
+        }
+        return head;
+    }
+
+    private void writeHead(String tree, Map<String, String> manifest) throws IOException
+    {
+        Encryption encryption = objectStore.encryption();
+        HeadSnapshot.write(headFile, encryption, repoMetaData.getBranchTip(), repoMetaData.getCurrentVersion(), tree,
+            manifest);
+        head = HeadSnapshot.read(headFile, encryption);
+        if (head == null) {
+            throw new IOException("Cannot read back head snapshot: " + headFile);
+        }
+    }
+
+    /**
+     * Appends the parent links of any versions the links file does not cover yet, from their metadata, and maps it.
+     */
+    private void ensureParentLinks() throws IOException
+    {
+        synchronized (indexLock) {
+            int latest = repoMetaData.getLatestVersion();
+            for (int v = parentLinks.size(); v <= latest; v++) {
+                if (repoMetaData.isVersionExisting(v)) {
+                    appendParentLinks(readVersion(v));
+                } else {
+                    parentLinks.append(v, -1, -1);
+                }
+            }
+            parentLinks.map(latest);
+        }
+    }
+
+    private void appendParentLinks(VersionMetaData metaData) throws IOException
+    {
+        Integer parent = metaData.getParent();
+        Integer merged = metaData.getMerged();
+        synchronized (indexLock) {
+            parentLinks.append(metaData.getVersion(), (parent == null) ? -1 : parent, (merged == null) ? -1 : merged);
+        }
+    }
+
+    private void createVersionDir(Integer version, String message) throws IOException
+    {
+        Path versionDirPath = gvtDir.resolve(version.toString());
+        Path versionMetaFilePath = versionDirPath.resolve(VersionMetaData.FILE_NAME);
+
+        if (Files.isRegularFile(versionMetaFilePath)) {
+            return;
+        }
+
+        Files.createDirectories(versionDirPath);
+
+        versionMetaFile = versionMetaFilePath;
+        versionMetaData = new VersionMetaData(version, message, TreeStore.EMPTY_TREE);
+
+        saveVersionMetaData();
+    }
+
+    private void loadMetaData() throws IOException
+    {
+        repoMetaStamp = stamp();
+        repoMetaData = readJson(repoMetaFile, RepoMetaData.class);
+        repoMetaData.compact();
+    }
+
+    private void saveRepoMetaData() throws IOException
+    {
+        writeJson(repoMetaFile, repoMetaData);
+        repoMetaStamp = stamp();
+    }
+
+    /**
+     * Identifies the current {@code repo.json}. Every write replaces the file, so a new file key or modification
+     * time means another instance has written it.
+     */
+    private Stamp stamp() throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(repoMetaFile, BasicFileAttributes.class);
+        return new Stamp(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    }
+
+    private record Stamp(Object fileKey, FileTime modified, long size) {}
+
+    /**
+     * Writes the metadata and its checksum, which covers the bytes as stored, so that it can be verified without
+     * the key of an encrypted repository.
+     */
+    private void saveVersionMetaData() throws IOException
+    {
+        cache.invalidateMetadata(cacheKey, versionMetaData.getVersion());
+        byte[] json = writeJson(versionMetaFile, versionMetaData);
+        AtomicFiles.write(versionMetaFile.resolveSibling(VersionMetaData.CHECKSUM_FILE_NAME),
+            Hashing.hash(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes {@code value} as JSON, encrypted in an encrypted repository, and returns the bytes written.
+     */
+    private byte[] writeJson(Path file, Object value) throws IOException
+    {
+        byte[] json = gson.toJson(value).getBytes(StandardCharsets.UTF_8);
+        Encryption encryption = objectStore.encryption();
+        if (encryption != null) {
+            json = encryption.encrypt(json);
+        }
+        AtomicFiles.write(file, json);
+        return json;
+    }
+}
@@ -0,0 +1,70 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+final class Hashing
+{
+    static final String ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Hashing() {}
+
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    static String hash(Path file) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file)) {
+            return hash(in);
+        }
+    }
+
+    static String hash(InputStream in) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest);
+    }
+
+    static String hash(byte[] content)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(content);
+        return toHex(digest);
+    }
+
+    static String toHex(MessageDigest digest)
+    {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static boolean isHash(String value)
+    {
+        if (value == null || value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,353 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The tip of the current branch in one memory-mapped file, {@code .gvt/head}: the version, the repository's current
+ * version, the root tree and the full manifest (every tracked path with its content hash), so mutating commands find
+ * their base without reading version metadata or walking trees.
+ *
+ * <p>Layout: {@code GVTH}, format, version, current version, root tree (64 ASCII bytes), entry count, one
+ * offset per entry, the entries (unsigned {@code short} path length, UTF-8 path, 64 ASCII hash bytes) sorted by their UTF-8
+ * bytes, and the SHA-256 of everything before it. A new version that only changes the content of tracked files
+ * patches their hashes and the header in place; one that adds or removes paths writes a new file from the previous
+ * one's entries and the changes, replacing it atomically. A snapshot that fails its checksum, e.g. after a crash
+ * during a patch, or does not describe the branch tip is rebuilt.
+ *
+ * <p>In an encrypted repository the file is sealed as a whole and read into memory instead of mapped, so every new
+ * version rewrites it.
+ */
+final class HeadSnapshot
+{
+    private static final int MAGIC = 0x47565448;
+    private static final int FORMAT = 1;
+    private static final int HASH_LENGTH = 64;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int MAX_PATH_LENGTH = 0xFFFF;
+    private static final int HEADER_LENGTH = 4 * Integer.BYTES + HASH_LENGTH + Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final Object fileKey;
+    private final int version;
+    private final int currentVersion;
+    private final String rootTree;
+    private final int entries;
+
+    private HeadSnapshot(ByteBuffer buffer, Object fileKey)
+    {
+        this.buffer = buffer;
+        this.fileKey = fileKey;
+        this.version = buffer.getInt(2 * Integer.BYTES);
+        this.currentVersion = buffer.getInt(3 * Integer.BYTES);
+        this.rootTree = ascii(4 * Integer.BYTES, HASH_LENGTH);
+        this.entries = buffer.getInt(4 * Integer.BYTES + HASH_LENGTH);
+    }
+
+    /**
+     * Maps {@code file}, or reads and decrypts it when {@code encryption} is given, and returns {@code null} when it
+     * is missing, of another format or fails its checksum.
+     */
+    static HeadSnapshot read(Path file, Encryption encryption) throws IOException
+    {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        if (encryption != null) {
+            byte[] content;
+            try {
+                content = encryption.decrypt(Files.readAllBytes(file));
+            } catch (IOException e) {
+                return null;
+            }
+            return parse(ByteBuffer.wrap(content), null);
+        }
+        Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), fileKey);
+        }
+    }
+
+    private static HeadSnapshot parse(ByteBuffer buffer, Object fileKey)
+    {
+        if (buffer.capacity() < HEADER_LENGTH + DIGEST_LENGTH
+            || buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != FORMAT) {
+            return null;
+        }
+
+        int contentLength = buffer.capacity() - DIGEST_LENGTH;
+        MessageDigest digest = Hashing.newDigest();
+        digest.update(buffer.slice(0, contentLength));
+        byte[] expected = new byte[DIGEST_LENGTH];
+        buffer.get(contentLength, expected);
+        if (!MessageDigest.isEqual(expected, digest.digest())) {
+            return null;
+        }
+
+        int entries = buffer.getInt(4 * Integer.BYTES + HASH_LENGTH);
+        if (entries < 0 || HEADER_LENGTH + (long) entries * Integer.BYTES > contentLength) {
+            return null;
+        }
+        return new HeadSnapshot(buffer, fileKey);
+    }
+
+    /**
+     * Atomically replaces {@code file} with a snapshot of the given version.
+     */
+    static void write(Path file, Encryption encryption, int version, int currentVersion, String rootTree,
+        Map<String, String> manifest) throws IOException
+    {
+        TreeMap<byte[], String> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        int length = HEADER_LENGTH;
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (path.length > MAX_PATH_LENGTH) {
+                throw new IOException("Path too long for the head snapshot: " + entry.getKey());
+            }
+            sorted.put(path, entry.getValue());
+            length += Integer.BYTES + Short.BYTES + path.length + HASH_LENGTH;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(length + DIGEST_LENGTH);
+        out.putInt(MAGIC).putInt(FORMAT).putInt(version).putInt(currentVersion)
+            .put(rootTree.getBytes(StandardCharsets.US_ASCII))
+            .putInt(sorted.size());
+
+        int offset = HEADER_LENGTH + sorted.size() * Integer.BYTES;
+        for (byte[] path : sorted.keySet()) {
+            out.putInt(offset);
+            offset += Short.BYTES + path.length + HASH_LENGTH;
+        }
+        for (Map.Entry<byte[], String> entry : sorted.entrySet()) {
+            out.putShort((short) entry.getKey().length).put(entry.getKey())
+                .put(entry.getValue().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        MessageDigest digest = Hashing.newDigest();
+        digest.update(out.array(), 0, length);
+        out.put(digest.digest());
+        AtomicFiles.write(file, (encryption == null) ? out.array() : encryption.encrypt(out.array()));
+    }
+
+    /**
+     * Turns the snapshot in {@code file}, which {@code base} maps, into one of the given version: {@code base} with
+     * {@code changes} (path to new content hash, {@code null} to remove) applied. Only the changed entries are
+     * touched when no path is added or removed and the file is not encrypted; {@code base} then sees the new hashes
+     * as well.
+     *
+     * @return the updated snapshot, or {@code null} when it cannot be read back
+     */
+    static HeadSnapshot update(Path file, Encryption encryption, HeadSnapshot base, int version, int currentVersion,
+        String rootTree, Map<String, String> changes) throws IOException
+    {
+        if (encryption == null && patch(file, base, version, currentVersion, rootTree, changes)) {
+            return new HeadSnapshot(base.buffer, base.fileKey);
+        }
+        rewrite(file, encryption, base, version, currentVersion, rootTree, changes);
+        return read(file, encryption);
+    }
+
+    private static boolean patch(Path file, HeadSnapshot base, int version, int currentVersion, String rootTree,
+        Map<String, String> changes) throws IOException
+    {
+        int[] positions = new int[changes.size()];
+        byte[][] hashes = new byte[changes.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            byte[] path = change.getKey().getBytes(StandardCharsets.UTF_8);
+            int entry = base.find(path);
+            if (change.getValue() == null || entry < 0) {
+                return false;
+            }
+            positions[i] = entry + Short.BYTES + path.length;
+            hashes[i++] = change.getValue().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        // the offsets of base are only valid for the very file it maps
+        if (base.fileKey == null || !Files.isRegularFile(file)
+            || !base.fileKey.equals(Files.readAttributes(file, BasicFileAttributes.class).fileKey())) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != base.buffer.capacity()) {
+                return false;
+            }
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            out.putInt(2 * Integer.BYTES, version).putInt(3 * Integer.BYTES, currentVersion)
+                .put(4 * Integer.BYTES, rootTree.getBytes(StandardCharsets.US_ASCII));
+            for (i = 0; i < positions.length; i++) {
+                out.put(positions[i], hashes[i]);
+            }
+            int contentLength = out.capacity() - DIGEST_LENGTH;
+            MessageDigest digest = Hashing.newDigest();
+            digest.update(out.slice(0, contentLength));
+            out.put(contentLength, digest.digest());
+            out.force();
+        }
+        return true;
+    }
+
+    /**
+     * Writes a new snapshot from the entries of {@code base}, copied as they are, merged with the changes.
+     */
+    private static void rewrite(Path file, Encryption encryption, HeadSnapshot base, int version, int currentVersion,
+        String rootTree, Map<String, String> changes) throws IOException
+    {
+        TreeMap<byte[], String> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            byte[] path = change.getKey().getBytes(StandardCharsets.UTF_8);
+            if (path.length > MAX_PATH_LENGTH) {
+                throw new IOException("Path too long for the head snapshot: " + change.getKey());
+            }
+            sorted.put(path, change.getValue());
+        }
+        byte[][] changedPaths = sorted.keySet().toArray(new byte[0][]);
+        String[] changedHashes = sorted.values().toArray(new String[0]);
+
+        // the merged entries in order: an offset into base, or -1 - i for the i-th change
+        int[] plan = new int[base.entries + changedPaths.length];
+        int count = 0;
+        int length = HEADER_LENGTH;
+        int b = 0;
+        int c = 0;
+        while (b < base.entries || c < changedPaths.length) {
+            int entry = (b < base.entries) ? base.buffer.getInt(HEADER_LENGTH + b * Integer.BYTES) : -1;
+            int cmp = (entry < 0) ? 1 : (c == changedPaths.length) ? -1 : base.compare(entry, changedPaths[c]);
+            if (cmp < 0) {
+                plan[count++] = entry;
+                length += Integer.BYTES + entryLength(base.buffer, entry);
+                b++;
+                continue;
+            }
+            if (changedHashes[c] != null) {
+                plan[count++] = -1 - c;
+                length += Integer.BYTES + Short.BYTES + changedPaths[c].length + HASH_LENGTH;
+            }
+            c++;
+            if (cmp == 0) {
+                b++;
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(length + DIGEST_LENGTH);
+        out.putInt(MAGIC).putInt(FORMAT).putInt(version).putInt(currentVersion)
+            .put(rootTree.getBytes(StandardCharsets.US_ASCII))
+            .putInt(count);
+        int offset = HEADER_LENGTH + count * Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            out.putInt(offset);
+            offset += (plan[i] >= 0)
+                ? entryLength(base.buffer, plan[i])
+                : Short.BYTES + changedPaths[-1 - plan[i]].length + HASH_LENGTH;
+        }
+        for (int i = 0; i < count; i++) {
+            if (plan[i] >= 0) {
+                int entryLength = entryLength(base.buffer, plan[i]);
+                out.put(out.position(), base.buffer, plan[i], entryLength);
+                out.position(out.position() + entryLength);
+            } else {
+                byte[] path = changedPaths[-1 - plan[i]];
+                out.putShort((short) path.length).put(path)
+                    .put(changedHashes[-1 - plan[i]].getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+
+        MessageDigest digest = Hashing.newDigest();
+        digest.update(out.array(), 0, length);
+        out.put(digest.digest());
+        AtomicFiles.write(file, (encryption == null) ? out.array() : encryption.encrypt(out.array()));
+    }
+
+    private static int entryLength(ByteBuffer buffer, int entry)
+    {
+        return Short.BYTES + Short.toUnsignedInt(buffer.getShort(entry)) + HASH_LENGTH;
+    }
+
+    int version()
+    {
+        return version;
+    }
+
+    int currentVersion()
+    {
+        return currentVersion;
+    }
+
+    String rootTree()
+    {
+        return rootTree;
+    }
+
+    int size()
+    {
+        return entries;
+    }
+
+    /**
+     * Returns the content hash of {@code path} in the snapshot's version, or {@code null} when it is not tracked.
+     * Safe for concurrent use: the mapping is only read with absolute accessors.
+     */
+    String lookup(String path)
+    {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int entry = find(key);
+        return (entry < 0) ? null : ascii(entry + Short.BYTES + key.length, HASH_LENGTH);
+    }
+
+    /**
+     * Returns the offset of the entry of {@code key}, or -1.
+     */
+    private int find(byte[] key)
+    {
+        int low = 0;
+        int high = entries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = buffer.getInt(HEADER_LENGTH + mid * Integer.BYTES);
+            int cmp = compare(entry, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int entry, byte[] key)
+    {
+        int length = Short.toUnsignedInt(buffer.getShort(entry));
+        int start = entry + Short.BYTES;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int cmp = Byte.compareUnsigned(buffer.get(start + i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private String ascii(int position, int length)
+    {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
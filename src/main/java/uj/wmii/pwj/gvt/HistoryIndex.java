@@ -0,0 +1,178 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Messages of all versions in two append-only files: {@code history.dat} holds length-prefixed UTF-8 messages and
+ * {@code history.idx} the offset of every version's record ({@code -1} for a missing version). Reads go through
+ * read-only memory mappings of bounded windows, so listing the history neither parses per-version metadata nor
+ * grows the heap with the number of versions. In an encrypted repository every message is encrypted on its own.
+ */
+final class HistoryIndex
+{
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final Path indexFile;
+    private final Path dataFile;
+    private Encryption encryption;
+
+    HistoryIndex(Path indexDir)
+    {
+        this.indexFile = indexDir.resolve("history.idx");
+        this.dataFile = indexDir.resolve("history.dat");
+    }
+
+    void encryptWith(Encryption encryption)
+    {
+        this.encryption = encryption;
+    }
+
+    /**
+     * Appends {@code version}; records left behind by an interrupted append of the same version are replaced.
+     */
+    void append(int version, String message) throws IOException
+    {
+        Files.createDirectories(indexFile.getParent());
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long count = index.size() / Long.BYTES;
+            if (count > version) {
+                index.truncate((long) version * Long.BYTES);
+                count = version;
+            }
+
+            byte[] bytes = (message == null ? "" : message).getBytes(StandardCharsets.UTF_8);
+            if (encryption != null) {
+                bytes = encryption.encrypt(bytes);
+            }
+            long offset = data.size();
+            write(data, offset, ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes).flip());
+
+            ByteBuffer offsets = ByteBuffer.allocate((int) (version - count + 1) * Long.BYTES);
+            for (long v = count; v < version; v++) {
+                offsets.putLong(-1);
+            }
+            offsets.putLong(offset).flip();
+            write(index, count * Long.BYTES, offsets);
+        }
+    }
+
+    Reader reader() throws IOException
+    {
+        return new Reader();
+    }
+
+    private static void write(FileChannel channel, long position, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    final class Reader implements Closeable
+    {
+        private final MappedFile index;
+        private final MappedFile data;
+
+        private Reader() throws IOException
+        {
+            boolean present = Files.isRegularFile(indexFile) && Files.isRegularFile(dataFile);
+            this.index = present ? new MappedFile(indexFile) : null;
+            MappedFile opened = null;
+            try {
+                opened = present ? new MappedFile(dataFile) : null;
+            } finally {
+                if (present && opened == null) {
+                    index.close();
+                }
+            }
+            this.data = opened;
+        }
+
+        /**
+         * Returns the message of {@code version}, or {@code null} when it is not indexed.
+         */
+        String message(int version) throws IOException
+        {
+            if (index == null || version < 0 || (long) version >= index.size / Long.BYTES) {
+                return null;
+            }
+            long offset = index.get((long) version * Long.BYTES, Long.BYTES).getLong();
+            if (offset < 0) {
+                return null;
+            }
+            int length = data.get(offset, Integer.BYTES).getInt();
+            ByteBuffer bytes = data.get(offset + Integer.BYTES, length);
+            if (encryption != null) {
+                byte[] sealed = new byte[length];
+                bytes.get(sealed);
+                bytes = ByteBuffer.wrap(encryption.decrypt(sealed));
+            }
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (index != null) {
+                try {
+                    index.close();
+                } finally {
+                    data.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a file through one mapped window at a time. Ranges larger than a window are read directly.
+     */
+    private static final class MappedFile implements AutoCloseable
+    {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedFile(Path file) throws IOException
+        {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        ByteBuffer get(long position, int length) throws IOException
+        {
+            if (position < 0 || length < 0 || position + length > size) {
+                throw new IOException("Corrupted history index");
+            }
+            if (length > WINDOW_BYTES) {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Corrupted history index");
+                    }
+                }
+                return buffer.flip();
+            }
+            if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+            }
+            return window.slice((int) (position - windowStart), length);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
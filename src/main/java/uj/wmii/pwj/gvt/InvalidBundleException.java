@@ -0,0 +1,16 @@
+package uj.wmii.pwj.gvt;
+
+public class InvalidBundleException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public InvalidBundleException(String message)
+    {
+        super(message);
+    }
+
+    public InvalidBundleException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+public class InvalidVersionException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Integer version;
+
+    public InvalidVersionException(Integer version)
+    {
+        super("Invalid version number: " + version);
+        this.version = version;
+    }
+
+    public Integer getVersion()
+    {
+        return version;
+    }
+}
@@ -0,0 +1,145 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Line-based diff working on 64-bit line hashes, so revisions never have to be held in memory as text.
+ */
+final class LineDiff
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private LineDiff() {}
+
+    static long[] hashLines(InputStream input) throws IOException
+    {
+        long[] hashes = new long[256];
+        int count = 0;
+        long hash = FNV_OFFSET;
+        boolean pending = false;
+
+        InputStream in = new BufferedInputStream(input, 64 * 1024);
+        int b;
+        while ((b = in.read()) >= 0) {
+            hash = (hash ^ b) * FNV_PRIME;
+            pending = true;
+            if (b == '\n') {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = hash;
+                hash = FNV_OFFSET;
+                pending = false;
+            }
+        }
+        if (pending) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count + 1);
+            }
+            hashes[count++] = hash;
+        }
+        return Arrays.copyOf(hashes, count);
+    }
+
+    /**
+     * For every line of {@code b} returns the index of the matching line of {@code a}, or -1 when the line
+     * was inserted. Matches form a longest common subsequence, found with the linear-space variant of Myers'
+     * algorithm: each step looks for the middle snake of an optimal path and recurses on both sides of it, so
+     * besides the result only two diagonal vectors of the size of the inputs are kept.
+     */
+    static int[] match(long[] a, long[] b)
+    {
+        int[] result = new int[b.length];
+        Arrays.fill(result, -1);
+        int size = (a.length + b.length + 1) / 2 + 1;
+        int[] forward = new int[2 * size + 1];
+        int[] backward = new int[2 * size + 1];
+        match(a, 0, a.length, b, 0, b.length, result, forward, backward);
+        return result;
+    }
+
+    private static void match(long[] a, int aLow, int aHigh, long[] b, int bLow, int bHigh, int[] result,
+                              int[] forward, int[] backward)
+    {
+        while (aLow < aHigh && bLow < bHigh && a[aLow] == b[bLow]) {
+            result[bLow++] = aLow++;
+        }
+        while (aLow < aHigh && bLow < bHigh && a[aHigh - 1] == b[bHigh - 1]) {
+            result[--bHigh] = --aHigh;
+        }
+        if (aLow == aHigh || bLow == bHigh) {
+            return;
+        }
+
+        int[] snake = middleSnake(a, aLow, aHigh, b, bLow, bHigh, forward, backward);
+        int x = snake[0];
+        int y = snake[1];
+        int u = snake[2];
+        match(a, aLow, aLow + x, b, bLow, bLow + y, result, forward, backward);
+        for (int i = 0; i < u - x; i++) {
+            result[bLow + y + i] = aLow + x + i;
+        }
+        match(a, aLow + u, aHigh, b, bLow + snake[3], bHigh, result, forward, backward);
+    }
+
+    /**
+     * Returns {@code {x, y, u, v}}, relative to the lower bounds, of the middle snake of an optimal path through
+     * the given ranges: the diagonal run, possibly empty, where the path searched from the start meets the one
+     * searched backwards from the end. Both vectors are indexed by diagonal; the backward one holds distances from
+     * the end.
+     */
+    private static int[] middleSnake(long[] a, int aLow, int aHigh, long[] b, int bLow, int bHigh, int[] forward,
+                                     int[] backward)
+    {
+        int n = aHigh - aLow;
+        int m = bHigh - bLow;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        for (int d = 0; d <= maxD; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                    ? forward[offset + k + 1]
+                    : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLow + x] == b[bLow + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int reverse = delta - k;
+                if (odd && reverse >= -(d - 1) && reverse <= d - 1 && x + backward[offset + reverse] >= n) {
+                    return new int[] {startX, startY, x, y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]))
+                    ? backward[offset + k + 1]
+                    : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHigh - 1 - x] == b[bHigh - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int ahead = delta - k;
+                if (!odd && ahead >= -d && ahead <= d && x + forward[offset + ahead] >= n) {
+                    return new int[] {n - x, m - y, n - startX, m - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake between " + n + " and " + m + " lines");
+    }
+}
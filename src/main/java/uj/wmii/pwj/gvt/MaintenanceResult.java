@@ -0,0 +1,14 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * Outcome of packing cold versions: {@code bytesBefore} is the size of the loose metadata and of the segments
+ * that were replaced, {@code bytesAfter} the size of the segments written instead.
+ */
+public record MaintenanceResult(int versions, int segments, long bytesBefore, long bytesAfter)
+{
+    MaintenanceResult plus(MaintenanceResult other)
+    {
+        return new MaintenanceResult(versions + other.versions, segments + other.segments,
+            bytesBefore + other.bytesBefore, bytesAfter + other.bytesAfter);
+    }
+}
@@ -0,0 +1,58 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.Locale;
+
+/**
+ * Heap budget for gvt's caches and in-memory working sets, set with {@code -Dgvt.memory.budget} or the
+ * {@code GVT_MEMORY_BUDGET} environment variable (bytes, with an optional {@code k}, {@code m} or {@code g} suffix).
+ * Defaults to a quarter of the maximum heap. Everything that grows with the size of the history is streamed or
+ * paged from disk instead.
+ */
+final class MemoryBudget
+{
+    static final long BYTES = resolve();
+
+    private MemoryBudget() {}
+
+    /**
+     * Returns the given fraction of the budget, but at most {@code max} bytes.
+     */
+    static long share(double fraction, long max)
+    {
+        return Math.min(max, (long) (BYTES * fraction));
+    }
+
+    static long parse(String value)
+    {
+        String trimmed = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (trimmed.endsWith("k")) {
+            unit = 1024L;
+        } else if (trimmed.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (trimmed.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit != 1) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        long bytes = Long.parseLong(trimmed) * unit;
+        if (bytes <= 0) {
+            throw new NumberFormatException("Memory budget must be positive: " + value);
+        }
+        return bytes;
+    }
+
+    private static long resolve()
+    {
+        String configured = System.getProperty("gvt.memory.budget", System.getenv("GVT_MEMORY_BUDGET"));
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return parse(configured);
+            } catch (NumberFormatException e) {
+                // fall back to the default below
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+}
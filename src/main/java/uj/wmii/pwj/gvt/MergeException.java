@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class MergeException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public MergeException(String message)
+    {
+        super(message);
+    }
+}
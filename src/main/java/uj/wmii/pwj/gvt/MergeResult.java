@@ -0,0 +1,14 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.List;
+
+public record MergeResult(Status status, int base, Integer version, List<String> conflicts)
+{
+    public enum Status
+    {
+        UP_TO_DATE,
+        FAST_FORWARD,
+        MERGED,
+        CONFLICTS
+    }
+}
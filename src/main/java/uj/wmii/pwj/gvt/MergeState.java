@@ -0,0 +1,77 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A merge stopped by conflicts, kept in {@code .gvt/merge.json} until it is continued or aborted: the branch tip it
+ * started from, the merged version, their common ancestor, the files merged cleanly (new hash, or listed in
+ * {@code detached}) and the conflicting files, whose resolution is taken from the working tree.
+ */
+class MergeState
+{
+    private int ours;
+    private int theirs;
+    private int base;
+    private TreeMap<String, String> resolved;
+    private ArrayList<String> detached;
+    private ArrayList<String> conflicts;
+
+    MergeState() {}
+
+    MergeState(int ours, int theirs, int base, Map<String, String> changes, List<String> conflicts)
+    {
+        this.ours = ours;
+        this.theirs = theirs;
+        this.base = base;
+        this.resolved = new TreeMap<>();
+        this.detached = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                detached.add(change.getKey());
+            } else {
+                resolved.put(change.getKey(), change.getValue());
+            }
+        }
+        this.conflicts = new ArrayList<>(conflicts);
+    }
+
+    int ours()
+    {
+        return ours;
+    }
+
+    int theirs()
+    {
+        return theirs;
+    }
+
+    int base()
+    {
+        return base;
+    }
+
+    /**
+     * Returns the clean changes, file name to new hash or {@code null} when the file is detached.
+     */
+    Map<String, String> changes()
+    {
+        Map<String, String> changes = new TreeMap<>();
+        if (resolved != null) {
+            changes.putAll(resolved);
+        }
+        if (detached != null) {
+            for (String fileName : detached) {
+                changes.put(fileName, null);
+            }
+        }
+        return changes;
+    }
+
+    List<String> conflicts()
+    {
+        return (conflicts == null) ? List.of() : conflicts;
+    }
+}
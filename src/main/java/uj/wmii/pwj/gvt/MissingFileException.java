@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+public class MissingFileException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+
+    public MissingFileException(String path)
+    {
+        super("File not found. File: " + path);
+        this.path = path;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+}
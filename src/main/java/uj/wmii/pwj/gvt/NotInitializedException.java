@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class NotInitializedException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public NotInitializedException()
+    {
+        super("Current directory is not initialized. Please use \"init\" command to initialize.");
+    }
+}
@@ -0,0 +1,608 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed storage of file revisions, laid out as {@code objects/ab/cdef...}.
+ * Other stores listed in {@code objects/info/alternates} are consulted for reads and deduplication.
+ * The store named in {@code objects/info/origin}, set by lazy clones, counts as containing its objects too, but
+ * an object is copied from it into this store the first time its content is read.
+ * A store holding {@code objects/info/encryption} keeps every object sealed by {@link Encryption} and names it by a
+ * keyed hash of its SHA-256, so names do not reveal which known content it holds. Objects are only shared between
+ * stores that name them alike, plain or encrypted with the same key: other alternates are ignored and such an
+ * origin is refused.
+ */
+public class ObjectStore
+{
+    private final Path objectsDir;
+    private final Path alternatesFile;
+    private final Path originFile;
+    private final Path encryptionFile;
+    private final ObjectStore writeTarget;
+
+    private List<ObjectStore> alternates;
+    private Optional<ObjectStore> origin;
+    private volatile Boolean encrypted;
+    private volatile RepositoryKey key;
+    private volatile Encryption encryption;
+
+    public ObjectStore(Path objectsDir)
+    {
+        this(objectsDir, null);
+    }
+
+    public ObjectStore(Path objectsDir, ObjectStore writeTarget)
+    {
+        this.objectsDir = objectsDir;
+        this.alternatesFile = objectsDir.resolve("info").resolve("alternates");
+        this.originFile = objectsDir.resolve("info").resolve("origin");
+        this.encryptionFile = objectsDir.resolve("info").resolve("encryption");
+        this.writeTarget = writeTarget;
+    }
+
+    public Path getDirectory()
+    {
+        return objectsDir;
+    }
+
+    public Path locate(String hash)
+    {
+        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    public boolean containsLocally(String hash)
+    {
+        return Files.isRegularFile(locate(hash));
+    }
+
+    public boolean contains(String hash) throws IOException
+    {
+        return find(hash) != null;
+    }
+
+    /**
+     * Returns where the object is stored, here, in an alternate or in the origin, without copying it.
+     */
+    public Path find(String hash) throws IOException
+    {
+        ObjectStore owner = owner(hash);
+        return (owner == null) ? null : owner.locate(hash);
+    }
+
+    /**
+     * Returns the store holding the object itself, without copying it from an origin.
+     */
+    private ObjectStore owner(String hash) throws IOException
+    {
+        ObjectStore found = sharedOwner(hash);
+        ObjectStore source = getOrigin();
+        return (found == null && source != null) ? source.owner(hash) : found;
+    }
+
+    private ObjectStore sharedOwner(String hash) throws IOException
+    {
+        if (containsLocally(hash)) {
+            return this;
+        }
+        for (ObjectStore alternate : getAlternates()) {
+            ObjectStore found = alternate.owner(hash);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    public InputStream open(String hash) throws IOException
+    {
+        return require(hash).openLocal(hash);
+    }
+
+    public byte[] read(String hash) throws IOException
+    {
+        ObjectStore owner = require(hash);
+        if (owner.encryption() == null) {
+            return Files.readAllBytes(owner.locate(hash));
+        }
+        try (InputStream in = owner.openLocal(hash)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Returns the size of the content, which for an encrypted store is computed from the size of the sealed file.
+     */
+    public long size(String hash) throws IOException
+    {
+        ObjectStore owner = require(hash);
+        long size = Files.size(owner.locate(hash));
+        return (owner.isEncrypted()) ? Encryption.contentSize(size) : size;
+    }
+
+    public void copyTo(String hash, Path destination) throws IOException
+    {
+        ObjectStore owner = require(hash);
+        if (owner.encryption() == null) {
+            Files.copy(owner.locate(hash), destination, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (InputStream in = owner.openLocal(hash)) {
+            Files.copy(in, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Names the content of the object as the store holding it names objects, without copying it from an origin, or
+     * returns {@code null} when it is not stored at all.
+     */
+    public String hashContent(String hash) throws IOException
+    {
+        ObjectStore owner = owner(hash);
+        if (owner == null) {
+            return null;
+        }
+        try (InputStream in = owner.openLocal(hash)) {
+            return owner.name(Hashing.hash(in));
+        }
+    }
+
+    /**
+     * Returns the name {@code file} would be stored under.
+     */
+    String name(Path file) throws IOException
+    {
+        return name(Hashing.hash(file));
+    }
+
+    private String name(String contentHash) throws IOException
+    {
+        Encryption sealed = encryption();
+        return (sealed == null) ? contentHash : sealed.name(HexFormat.of().parseHex(contentHash));
+    }
+
+    /**
+     * Returns the size of the object as stored, sealed in an encrypted store, for transfer to a store that names
+     * objects alike.
+     */
+    long storedSize(String hash) throws IOException
+    {
+        return Files.size(require(hash).locate(hash));
+    }
+
+    /**
+     * Opens the object as stored, without decrypting it, for transfer to a store that names objects alike.
+     */
+    InputStream openStored(String hash) throws IOException
+    {
+        return Files.newInputStream(require(hash).locate(hash));
+    }
+
+    /**
+     * Stores an object read in the stored form of a store that names objects alike; the stream is not closed. The
+     * returned name is computed from the content, so a corrupted or forged transfer does not match its offer.
+     */
+    String storeTransferred(InputStream in) throws IOException
+    {
+        Encryption sealed = encryption();
+        return store((sealed == null) ? in : sealed.decrypt(in));
+    }
+
+    private InputStream openLocal(String hash) throws IOException
+    {
+        InputStream in = Files.newInputStream(locate(hash));
+        Encryption sealed = encryption();
+        return (sealed == null) ? in : sealed.decrypt(in);
+    }
+
+    public boolean isEncrypted()
+    {
+        Boolean marked = encrypted;
+        if (marked == null) {
+            marked = Files.isRegularFile(encryptionFile);
+            encrypted = marked;
+        }
+        return marked;
+    }
+
+    /**
+     * Marks this new, still empty store as encrypted with {@code key}: every object stored from now on is sealed.
+     */
+    public synchronized void enableEncryption(RepositoryKey key) throws IOException
+    {
+        Files.createDirectories(encryptionFile.getParent());
+        Files.writeString(encryptionFile, key.check() + System.lineSeparator(), StandardCharsets.UTF_8);
+        encrypted = true;
+        unlock(key);
+    }
+
+    /**
+     * Supplies the key of the repository to this store and the stores it reads from. Returns {@code false}, leaving
+     * the store locked, when this store is encrypted with another key.
+     */
+    public synchronized boolean unlock(RepositoryKey key) throws IOException
+    {
+        if (isEncrypted() && !Files.readString(encryptionFile, StandardCharsets.UTF_8).trim().equals(key.check())) {
+            return false;
+        }
+        this.key = key;
+        if (alternates != null) {
+            for (ObjectStore alternate : alternates) {
+                alternate.unlock(key);
+            }
+        }
+        if (origin != null && origin.isPresent()) {
+            origin.get().unlock(key);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how content is sealed in this store, or {@code null} when it is stored in plain text.
+     */
+    Encryption encryption() throws IOException
+    {
+        if (!isEncrypted()) {
+            return null;
+        }
+        Encryption active = encryption;
+        if (active == null) {
+            RepositoryKey unlocked = key;
+            if (unlocked == null) {
+                throw new IOException("Object store " + objectsDir + " is encrypted and no key was supplied");
+            }
+            active = new Encryption(unlocked);
+            encryption = active;
+        }
+        return active;
+    }
+
+    public String store(Path file) throws IOException
+    {
+        if (writeTarget != null && !isEncrypted()) {
+            String hash = Hashing.hash(file);
+            if (contains(hash)) {
+                return hash;
+            }
+            return writeTarget.store(file);
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            return store(in);
+        }
+    }
+
+    /**
+     * Stores everything remaining in {@code in}; the stream is not closed.
+     */
+    public String store(InputStream in) throws IOException
+    {
+        if (writeTarget != null && !isEncrypted()) {
+            return writeTarget.store(in);
+        }
+
+        Files.createDirectories(objectsDir);
+        Path temp = Files.createTempFile(objectsDir, "incoming-", ".tmp");
+        try {
+            MessageDigest digest = Hashing.newDigest();
+            try (OutputStream out = new DigestOutputStream(newObjectStream(temp), digest)) {
+                in.transferTo(out);
+            }
+            String hash = name(Hashing.toHex(digest));
+            if (!contains(hash)) {
+                publish(temp, hash);
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public String store(byte[] content) throws IOException
+    {
+        String hash = name(Hashing.hash(content));
+        if (contains(hash)) {
+            return hash;
+        }
+        if (writeTarget != null && !isEncrypted()) {
+            return writeTarget.store(content);
+        }
+
+        Files.createDirectories(objectsDir);
+        Path temp = Files.createTempFile(objectsDir, "incoming-", ".tmp");
+        try {
+            try (OutputStream out = newObjectStream(temp)) {
+                out.write(content);
+            }
+            publish(temp, hash);
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private OutputStream newObjectStream(Path temp) throws IOException
+    {
+        OutputStream out = Files.newOutputStream(temp);
+        Encryption sealed = encryption();
+        return (sealed == null) ? out : sealed.encrypt(out);
+    }
+
+    public synchronized List<ObjectStore> getAlternates() throws IOException
+    {
+        if (alternates == null) {
+            List<ObjectStore> loaded = new ArrayList<>();
+            if (Files.isRegularFile(alternatesFile)) {
+                for (String line : Files.readAllLines(alternatesFile, StandardCharsets.UTF_8)) {
+                    String trimmed = line.trim();
+                    if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                        ObjectStore alternate = related(objectsDir.resolve(trimmed));
+                        if (namesLike(alternate)) {
+                            loaded.add(alternate);
+                        }
+                    }
+                }
+            }
+            alternates = loaded;
+        }
+        return List.copyOf(alternates);
+    }
+
+    public synchronized void addAlternate(Path otherObjectsDir) throws IOException
+    {
+        Path absolute = otherObjectsDir.toAbsolutePath().normalize();
+        for (ObjectStore alternate : getAlternates()) {
+            if (alternate.getDirectory().toAbsolutePath().normalize().equals(absolute)) {
+                return;
+            }
+        }
+        ObjectStore alternate = related(absolute);
+        if (!namesLike(alternate)) {
+            throw new IOException("Object store " + absolute + " is not encrypted like " + objectsDir);
+        }
+        Files.createDirectories(alternatesFile.getParent());
+        Files.writeString(
+            alternatesFile,
+            absolute + System.lineSeparator(),
+            StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND
+        );
+        alternates.add(alternate);
+    }
+
+    public synchronized ObjectStore getOrigin() throws IOException
+    {
+        if (origin == null) {
+            ObjectStore loaded = null;
+            if (Files.isRegularFile(originFile)) {
+                String line = Files.readString(originFile, StandardCharsets.UTF_8).trim();
+                if (!line.isEmpty()) {
+                    loaded = related(objectsDir.resolve(line));
+                    if (!namesLike(loaded)) {
+                        throw new IOException("Origin " + loaded.getDirectory() + " is not encrypted like " + objectsDir);
+                    }
+                }
+            }
+            origin = Optional.ofNullable(loaded);
+        }
+        return origin.orElse(null);
+    }
+
+    public synchronized void setOrigin(Path otherObjectsDir) throws IOException
+    {
+        Path absolute = otherObjectsDir.toAbsolutePath().normalize();
+        ObjectStore source = related(absolute);
+        if (!namesLike(source)) {
+            throw new IOException("Origin " + absolute + " is not encrypted like " + objectsDir);
+        }
+        Files.createDirectories(originFile.getParent());
+        Files.writeString(originFile, absolute + System.lineSeparator(), StandardCharsets.UTF_8);
+        origin = Optional.of(source);
+    }
+
+    /**
+     * Returns whether {@code other} names and seals objects the way this store does, so they can be shared as they
+     * are stored.
+     */
+    private boolean namesLike(ObjectStore other) throws IOException
+    {
+        return Objects.equals(encryptionCheck(), other.encryptionCheck());
+    }
+
+    /**
+     * Returns the check of the key this store is encrypted with, or {@code null} when it stores plain text.
+     */
+    String encryptionCheck() throws IOException
+    {
+        return isEncrypted() ? Files.readString(encryptionFile, StandardCharsets.UTF_8).trim() : null;
+    }
+
+    /**
+     * Opens another store this one reads from, unlocked with the same key.
+     */
+    private ObjectStore related(Path otherObjectsDir) throws IOException
+    {
+        ObjectStore related = new ObjectStore(otherObjectsDir);
+        if (key != null) {
+            related.unlock(key);
+        }
+        return related;
+    }
+
+    /**
+     * Hard-links every object stored in {@code source} itself into this store, a fan-out directory per task. Returns
+     * the number of objects linked, or -1 when the file system cannot link between the two stores, in which case
+     * nothing has been linked.
+     */
+    public long linkFrom(ObjectStore source) throws IOException
+    {
+        List<Path> fanOut;
+        try (Stream<Path> dirs = Files.list(source.objectsDir)) {
+            fanOut = dirs.filter(dir -> dir.getFileName().toString().length() == 2 && Files.isDirectory(dir))
+                .sorted().toList();
+        }
+        if (fanOut.isEmpty()) {
+            return 0;
+        }
+        if (!canLink(fanOut)) {
+            return -1;
+        }
+
+        AtomicLong linked = new AtomicLong();
+        int threads = Math.min(fanOut.size(), GvtExecutors.ioThreads());
+        ExecutorService pool = GvtExecutors.newBoundedPool("gvt-clone", threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Path dir : fanOut) {
+                tasks.add(pool.submit(() -> {
+                    linked.addAndGet(linkDirectory(dir));
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while linking objects", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return linked.get();
+    }
+
+    /**
+     * Tries a link into a scratch file, so that a store on another file system is detected before anything is
+     * linked.
+     */
+    private boolean canLink(List<Path> fanOut) throws IOException
+    {
+        Path sample;
+        try (Stream<Path> files = Files.list(fanOut.get(0))) {
+            sample = files.filter(Files::isRegularFile).findFirst().orElse(null);
+        }
+        if (sample == null) {
+            return true;
+        }
+        Files.createDirectories(objectsDir);
+        Path probe = objectsDir.resolve("link-probe.tmp");
+        try {
+            Files.deleteIfExists(probe);
+            Files.createLink(probe, sample);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    private long linkDirectory(Path sourceDir) throws IOException
+    {
+        Path targetDir = objectsDir.resolve(sourceDir.getFileName().toString());
+        Files.createDirectories(targetDir);
+        long linked = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(sourceDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp") || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                try {
+                    Files.createLink(targetDir.resolve(name), file);
+                    linked++;
+                } catch (FileAlreadyExistsException e) {
+                    // already shared
+                }
+            }
+        }
+        return linked;
+    }
+
+    /**
+     * Returns the store holding the object, copying it from the origin into this store first when only the origin
+     * has it.
+     */
+    private ObjectStore require(String hash) throws IOException
+    {
+        ObjectStore found = sharedOwner(hash);
+        if (found == null) {
+            ObjectStore source = getOrigin();
+            ObjectStore remote = (source == null) ? null : source.owner(hash);
+            if (remote != null) {
+                materialise(remote, hash);
+                found = this;
+            }
+        }
+        if (found == null) {
+            throw new NoSuchFileException(locate(hash).toString(), null, "Missing object " + hash);
+        }
+        return found;
+    }
+
+    private void materialise(ObjectStore owner, String hash) throws IOException
+    {
+        Path remote = owner.locate(hash);
+        Path target = locate(hash);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, remote);
+            return;
+        } catch (FileAlreadyExistsException e) {
+            return;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // another file system, copy instead
+        }
+        Path temp = Files.createTempFile(objectsDir, "incoming-", ".tmp");
+        try {
+            Files.copy(remote, temp, StandardCopyOption.REPLACE_EXISTING);
+            publish(temp, hash);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void publish(Path temp, String hash) throws IOException
+    {
+        Path target = locate(hash);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // stored concurrently by another writer, content is identical
+        } catch (AtomicMoveNotSupportedException e) {
+            if (!Files.exists(target)) {
+                Files.move(temp, target);
+            }
+        }
+    }
+}
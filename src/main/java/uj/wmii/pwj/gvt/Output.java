@@ -0,0 +1,127 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Buffered standard output of one CLI invocation. Text is collected in a reusable char buffer and encoded with
+ * the charset {@link System#out} uses, so printing a line allocates nothing and {@code System.out} is written in
+ * large blocks. {@link #flush()} must be called when the command finishes and before the process exits.
+ */
+final class Output
+{
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes;
+
+    Output()
+    {
+        this(stdoutCharset());
+    }
+
+    Output(Charset charset)
+    {
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * (double) encoder.maxBytesPerChar()));
+    }
+
+    Output print(CharSequence text)
+    {
+        int length = text.length();
+        for (int start = 0; start < length; ) {
+            if (!chars.hasRemaining()) {
+                drain();
+            }
+            int end = Math.min(length, start + chars.remaining());
+            chars.append(text, start, end);
+            start = end;
+        }
+        return this;
+    }
+
+    Output print(int value)
+    {
+        if (value < 0) {
+            print(Integer.toString(value));
+            return this;
+        }
+        if (chars.remaining() < 10) {
+            drain();
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int position = chars.position();
+        for (int i = position + digits - 1; i >= position; i--) {
+            chars.put(i, (char) ('0' + value % 10));
+            value /= 10;
+        }
+        chars.position(position + digits);
+        return this;
+    }
+
+    Output println(CharSequence text)
+    {
+        return print(text).println();
+    }
+
+    Output println()
+    {
+        return print(LINE_SEPARATOR);
+    }
+
+    /**
+     * Encodes everything printed so far and flushes {@link System#out}.
+     */
+    void flush()
+    {
+        drain();
+        System.out.flush();
+    }
+
+    private void drain()
+    {
+        if (chars.position() == 0) {
+            return;
+        }
+        PrintStream out = System.out;
+        chars.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, false);
+            write(out);
+        } while (result.isOverflow());
+        chars.compact();
+    }
+
+    private void write(PrintStream out)
+    {
+        out.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+
+    /**
+     * The charset {@code System.out} encodes with: the console encoding when attached to a terminal, the default
+     * charset otherwise.
+     */
+    private static Charset stdoutCharset()
+    {
+        String name = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+        try {
+            return (name == null) ? Charset.defaultCharset() : Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return Charset.defaultCharset();
+        }
+    }
+}
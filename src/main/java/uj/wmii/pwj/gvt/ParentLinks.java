@@ -0,0 +1,89 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parent links of all versions in one append-only file, {@code .gvt/parents}: at {@code 8 * version} the version's
+ * parent and the second parent of a merge, {@code -1} when there is none. Walks over the version graph read them
+ * through a read-only memory mapping instead of every version's metadata, which stays authoritative: versions the
+ * file does not cover yet, e.g. in a repository written by an older release, are appended from it.
+ */
+final class ParentLinks
+{
+    private static final int RECORD_BYTES = 2 * Integer.BYTES;
+
+    private final Path file;
+    private ByteBuffer mapping;
+
+    ParentLinks(Path gvtDir)
+    {
+        this.file = gvtDir.resolve("parents");
+    }
+
+    /**
+     * Returns the number of versions the file covers.
+     */
+    synchronized int size() throws IOException
+    {
+        return Files.isRegularFile(file) ? (int) (Files.size(file) / RECORD_BYTES) : 0;
+    }
+
+    /**
+     * Records the links of {@code version}, replacing those left behind by an interrupted commit of the same
+     * version. Versions skipped over get no parents.
+     */
+    synchronized void append(int version, int parent, int merged) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            int from = (int) Math.min(version, channel.size() / RECORD_BYTES);
+            ByteBuffer records = ByteBuffer.allocate((version - from + 1) * RECORD_BYTES);
+            for (int v = from; v < version; v++) {
+                records.putInt(-1).putInt(-1);
+            }
+            records.putInt(parent).putInt(merged).flip();
+            long position = (long) from * RECORD_BYTES;
+            while (records.hasRemaining()) {
+                position += channel.write(records, position);
+            }
+        }
+    }
+
+    /**
+     * Maps the links of versions {@code 0..latest}, which the file must cover.
+     */
+    synchronized void map(int latest) throws IOException
+    {
+        long length = (long) (latest + 1) * RECORD_BYTES;
+        if (mapping != null && mapping.capacity() >= length) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < length) {
+                throw new IOException("Parent links do not cover version " + latest + ": " + file);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /**
+     * Returns the version {@code version} was created on top of, or -1 for version 0.
+     */
+    synchronized int parent(int version)
+    {
+        return (version <= 0) ? -1 : mapping.getInt(version * RECORD_BYTES);
+    }
+
+    /**
+     * Returns the version merged into {@code version}, or -1 when it is not a merge.
+     */
+    synchronized int merged(int version)
+    {
+        return (version <= 0) ? -1 : mapping.getInt(version * RECORD_BYTES + Integer.BYTES);
+    }
+}
@@ -0,0 +1,5 @@
+package uj.wmii.pwj.gvt;
+
+public record Ref(String name, int version)
+{
+}
@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+public class RefException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+
+    public RefException(String message, String name)
+    {
+        super(message + name);
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+}
@@ -1,13 +1,31 @@
 package uj.wmii.pwj.gvt;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
-public class RepoMetaData 
+/**
+ * Versions are numbered contiguously from 0 to {@code latestVersion}. Repositories written by older releases
+ * list them explicitly in {@code versions}; that set is dropped as soon as it is known to be contiguous.
+ *
+ * <p>The ref table maps branch and tag names to versions. New versions extend the tip of the current branch;
+ * until a second branch is created {@code branches} stays {@code null} and {@value #DEFAULT_BRANCH} is simply the
+ * latest version. Parent links live in each version's metadata and in {@link ParentLinks}, so this file does not
+ * grow with the history.
+ */
+public class RepoMetaData
 {
+    static final String DEFAULT_BRANCH = "main";
+
     private Integer latestVersion;
     private Integer currentVersion;
-    private HashSet<Integer> versions;    
+    private HashSet<Integer> versions;
+    private String branch;
+    private TreeMap<String, Integer> branches;
+    private TreeMap<String, Integer> tags;
 
     public RepoMetaData() {};
 
@@ -15,22 +33,131 @@ public class RepoMetaData
     {
         this.latestVersion = version;
         this.currentVersion = version;
-        this.versions = new HashSet<Integer>();
-        this.versions.add(version);
+        if (version != 0) {
+            this.versions = new HashSet<Integer>();
+            this.versions.add(version);
+        }
     }
 
     public void setVersion(int version)
-    {   
-        if(versions.contains(version))
+    {
+        if(isVersionExisting(version))
         {
             this.currentVersion = version;
         }
     }
 
+    /**
+     * Records {@code version}, created on top of the tip of the current branch, and moves the branch to it.
+     */
     public void addVersion(int version)
     {
         this.latestVersion = version;
-        this.versions.add(version);
+        if (versions != null) {
+            this.versions.add(version);
+            compact();
+        }
+        if (branches != null) {
+            branches.put(getBranch(), version);
+        }
+    }
+
+    /**
+     * Moves the current branch to {@code version}, which becomes the current version.
+     */
+    public void moveBranch(int version)
+    {
+        if (branches == null) {
+            branches = new TreeMap<String, Integer>(getBranches());
+        }
+        branches.put(getBranch(), version);
+        this.currentVersion = version;
+    }
+
+    public String getBranch()
+    {
+        return (branch == null) ? DEFAULT_BRANCH : branch;
+    }
+
+    /**
+     * Returns the version new versions are created on top of: the tip of the current branch.
+     */
+    public int getBranchTip()
+    {
+        return (branches == null) ? latestVersion : branches.get(getBranch());
+    }
+
+    public SortedMap<String, Integer> getBranches()
+    {
+        if (branches == null) {
+            TreeMap<String, Integer> implicit = new TreeMap<String, Integer>();
+            implicit.put(DEFAULT_BRANCH, latestVersion);
+            return Collections.unmodifiableSortedMap(implicit);
+        }
+        return Collections.unmodifiableSortedMap(branches);
+    }
+
+    public SortedMap<String, Integer> getTags()
+    {
+        return Collections.unmodifiableSortedMap(tags == null ? new TreeMap<String, Integer>() : tags);
+    }
+
+    /**
+     * Returns the version a branch or tag points to, or {@code null} when there is no such ref.
+     */
+    public Integer resolveRef(String name)
+    {
+        Integer version = getBranches().get(name);
+        return (version != null) ? version : getTags().get(name);
+    }
+
+    public boolean isRefExisting(String name)
+    {
+        return resolveRef(name) != null;
+    }
+
+    public void addBranch(String name, int version)
+    {
+        if (branches == null) {
+            branches = new TreeMap<String, Integer>(getBranches());
+        }
+        branches.put(name, version);
+    }
+
+    public void addTag(String name, int version)
+    {
+        if (tags == null) {
+            tags = new TreeMap<String, Integer>();
+        }
+        tags.put(name, version);
+    }
+
+    /**
+     * Takes over the branches and tags of a replica this repository was synchronised with, then moves the current
+     * version to the tip of the current branch. Refs to versions this repository does not have are skipped.
+     */
+    public void mergeRefs(Map<String, Integer> otherBranches, Map<String, Integer> otherTags)
+    {
+        for (Map.Entry<String, Integer> ref : otherBranches.entrySet()) {
+            if (isVersionExisting(ref.getValue()) && !ref.getValue().equals(getBranches().get(ref.getKey()))) {
+                addBranch(ref.getKey(), ref.getValue());
+            }
+        }
+        for (Map.Entry<String, Integer> ref : otherTags.entrySet()) {
+            if (isVersionExisting(ref.getValue())) {
+                addTag(ref.getKey(), ref.getValue());
+            }
+        }
+        this.currentVersion = getBranchTip();
+    }
+
+    /**
+     * Makes {@code name} the current branch and its tip the current version.
+     */
+    public void switchBranch(String name)
+    {
+        this.branch = DEFAULT_BRANCH.equals(name) ? null : name;
+        this.currentVersion = getBranchTip();
     }
 
     public Integer getCurrentVersion()
@@ -43,14 +170,44 @@ public class RepoMetaData
         return latestVersion;
     }
 
+    /**
+     * Lists every version; prefer iterating up to {@link #getLatestVersion()} on large repositories.
+     */
     public ArrayList<Integer> getVersions()
     {
-        return new ArrayList<Integer>(versions);
-    } 
+        if (versions != null) {
+            return new ArrayList<Integer>(versions);
+        }
+        ArrayList<Integer> all = new ArrayList<Integer>(latestVersion + 1);
+        for (int v = 0; v <= latestVersion; v++) {
+            all.add(v);
+        }
+        return all;
+    }
 
     public boolean isVersionExisting(int x)
     {
+        if (versions == null) {
+            return latestVersion != null && x >= 0 && x <= latestVersion;
+        }
         return versions.contains(x);
     }
 
+    /**
+     * Drops the explicit version set once it covers exactly {@code 0..latestVersion}.
+     */
+    public void compact()
+    {
+        if (versions != null && latestVersion != null && versions.size() == latestVersion + 1
+                && versions.contains(0) && versions.contains(latestVersion)) {
+            boolean contiguous = true;
+            for (int v = 0; v <= latestVersion && contiguous; v++) {
+                contiguous = versions.contains(v);
+            }
+            if (contiguous) {
+                versions = null;
+            }
+        }
+    }
+
 }
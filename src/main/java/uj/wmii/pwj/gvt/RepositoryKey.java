@@ -0,0 +1,106 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Master key of an encrypted repository: at least 16 random bytes, written in base64. It is never stored in the
+ * repository; only a check value derived from it is, so that a wrong key is rejected before anything is read.
+ * Every encrypted file gets its own AES key, derived from the master key and a random salt with HMAC-SHA256.
+ */
+public final class RepositoryKey
+{
+    public static final String KEY_VARIABLE = "GVT_KEY";
+    public static final String KEY_FILE_VARIABLE = "GVT_KEY_FILE";
+
+    private static final int MIN_LENGTH = 16;
+    private static final int GENERATED_LENGTH = 32;
+    private static final String MAC = "HmacSHA256";
+
+    private final SecretKeySpec key;
+
+    private RepositoryKey(byte[] key)
+    {
+        this.key = new SecretKeySpec(key, MAC);
+    }
+
+    public static RepositoryKey generate()
+    {
+        byte[] key = new byte[GENERATED_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return new RepositoryKey(key);
+    }
+
+    public static RepositoryKey parse(String base64) throws EncryptionException
+    {
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(base64.trim());
+        } catch (IllegalArgumentException e) {
+            throw new EncryptionException("Encryption key is not valid base64.");
+        }
+        if (key.length < MIN_LENGTH) {
+            throw new EncryptionException("Encryption key must be at least " + MIN_LENGTH + " bytes long.");
+        }
+        return new RepositoryKey(key);
+    }
+
+    /**
+     * Reads the key from {@value #KEY_VARIABLE}, or from the file named by {@value #KEY_FILE_VARIABLE}. Returns
+     * {@code null} when neither is set.
+     */
+    public static RepositoryKey fromEnvironment() throws EncryptionException
+    {
+        String key = System.getenv(KEY_VARIABLE);
+        if (key != null && !key.isBlank()) {
+            return parse(key);
+        }
+        String file = System.getenv(KEY_FILE_VARIABLE);
+        if (file != null && !file.isBlank()) {
+            try {
+                return parse(Files.readString(Path.of(file), StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                throw new EncryptionException("Cannot read encryption key file " + file + ".");
+            }
+        }
+        return null;
+    }
+
+    public String encode()
+    {
+        return Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+
+    /**
+     * Identifies the key without revealing it.
+     */
+    String check()
+    {
+        return HexFormat.of().formatHex(Arrays.copyOf(derive("check", new byte[0]), 8));
+    }
+
+    /**
+     * Returns HMAC-SHA256 of {@code data} under the master key, domain-separated by {@code purpose}.
+     */
+    byte[] derive(String purpose, byte[] data)
+    {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(key);
+            mac.update(("gvt-" + purpose).getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) 0);
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC + " is not available", e);
+        }
+    }
+}
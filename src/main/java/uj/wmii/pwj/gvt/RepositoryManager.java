@@ -0,0 +1,70 @@
+package uj.wmii.pwj.gvt;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps many repositories open at once. All of them share one {@link SharedCache}, and optionally one
+ * {@link ObjectStore} that each repository uses as an alternate and writes new revisions into.
+ */
+public class RepositoryManager
+{
+    private final SharedCache cache;
+    private final ObjectStore sharedStore;
+    private final Map<Path, GvtRepository> repositories = new ConcurrentHashMap<>();
+
+    public RepositoryManager()
+    {
+        this(new SharedCache(), null);
+    }
+
+    public RepositoryManager(SharedCache cache)
+    {
+        this(cache, null);
+    }
+
+    public RepositoryManager(SharedCache cache, Path sharedObjectsDir)
+    {
+        this.cache = cache;
+        this.sharedStore = (sharedObjectsDir == null) ? null : new ObjectStore(sharedObjectsDir.toAbsolutePath().normalize());
+    }
+
+    public GvtRepository open(Path path)
+    {
+        Path key = path.toAbsolutePath().normalize();
+        return repositories.computeIfAbsent(key, p -> new GvtRepositoryImpl(p, cache, sharedStore));
+    }
+
+    public Map<Path, GvtRepository> openAll(Collection<Path> paths)
+    {
+        Map<Path, GvtRepository> opened = new LinkedHashMap<>();
+        for (Path path : paths) {
+            opened.put(path, open(path));
+        }
+        return opened;
+    }
+
+    public List<GvtRepository> getRepositories()
+    {
+        return List.copyOf(repositories.values());
+    }
+
+    public boolean close(Path path)
+    {
+        return repositories.remove(path.toAbsolutePath().normalize()) != null;
+    }
+
+    public SharedCache getCache()
+    {
+        return cache;
+    }
+
+    public ObjectStore getSharedStore()
+    {
+        return sharedStore;
+    }
+}
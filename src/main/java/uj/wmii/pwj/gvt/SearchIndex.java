@@ -0,0 +1,222 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Inverted index of commit message tokens and per-file lineage, kept in {@code .gvt/index}.
+ * Every token owns an append-only posting file of version numbers in ascending order, every file name a
+ * {@link FileLineage}, so a lookup reads only the postings of the searched terms, never the whole history.
+ * In an encrypted repository tokens and file names are named by a keyed hash and messages are encrypted.
+ */
+class SearchIndex
+{
+    private final Path indexDir;
+    private static final String FORMAT = "3";
+
+    private final Path wordsDir;
+    private final Path stateFile;
+    private final FileLineage lineage;
+    private final HistoryIndex history;
+    private Encryption encryption;
+
+    @FunctionalInterface
+    interface VersionVisitor
+    {
+        void visit(int version) throws IOException;
+    }
+
+    SearchIndex(Path indexDir)
+    {
+        this.indexDir = indexDir;
+        this.wordsDir = indexDir.resolve("words");
+        this.stateFile = indexDir.resolve("state");
+        this.lineage = new FileLineage(indexDir.resolve("lineage"));
+        this.history = new HistoryIndex(indexDir);
+    }
+
+    void encryptWith(Encryption encryption)
+    {
+        this.encryption = encryption;
+        lineage.encryptWith(encryption);
+        history.encryptWith(encryption);
+    }
+
+    int getIndexedVersion() throws IOException
+    {
+        if (!Files.isRegularFile(stateFile)) {
+            return -1;
+        }
+        String[] state = Files.readString(stateFile, StandardCharsets.UTF_8).trim().split(" ");
+        if (state.length != 2 || !FORMAT.equals(state[0])) {
+            reset();
+            return -1;
+        }
+        try {
+            return Integer.parseInt(state[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Indexes one version. {@code changedFiles} maps every file whose content changed in this version to its
+     * new content hash, or to {@code null} when the file was detached.
+     */
+    void record(int version, String message, Map<String, String> changedFiles) throws IOException
+    {
+        if (version <= getIndexedVersion()) {
+            return;
+        }
+        history.append(version, message);
+        for (String token : tokenize(message)) {
+            append(postingFile(wordsDir, token), version);
+        }
+        for (Map.Entry<String, String> change : changedFiles.entrySet()) {
+            lineage.append(change.getKey(), version, change.getValue());
+        }
+        Files.createDirectories(indexDir);
+        Files.writeString(stateFile, FORMAT + " " + version, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Visits every version whose message contains all tokens of {@code query}, in ascending
+     * order. Posting lists are mapped and intersected in a single merge pass.
+     */
+    void findByMessage(String query, VersionVisitor visitor) throws IOException
+    {
+        Set<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return;
+        }
+
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            IntBuffer[] postings = new IntBuffer[tokens.size()];
+            int i = 0;
+            for (String token : tokens) {
+                Path file = postingFile(wordsDir, token);
+                if (!Files.isRegularFile(file)) {
+                    return;
+                }
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                channels.add(channel);
+                long size = channel.size() - channel.size() % Integer.BYTES;
+                postings[i++] = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asIntBuffer();
+            }
+            intersect(postings, visitor);
+        } finally {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    void findByFile(String fileName, VersionVisitor visitor) throws IOException
+    {
+        lineage.versions(fileName, visitor);
+    }
+
+    HistoryIndex.Reader history() throws IOException
+    {
+        return history.reader();
+    }
+
+    List<FileLineage.Entry> lineage(String fileName) throws IOException
+    {
+        return lineage.read(fileName);
+    }
+
+    private void reset() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(indexDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    static Set<String> tokenize(String text)
+    {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private Path postingFile(Path dir, String key)
+    {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        String hash = (encryption == null) ? Hashing.hash(bytes) : encryption.name(bytes);
+        return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private void append(Path postingFile, int version) throws IOException
+    {
+        Files.createDirectories(postingFile.getParent());
+        try (OutputStream out = Files.newOutputStream(postingFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+             DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(version);
+        }
+    }
+
+    private static void intersect(IntBuffer[] postings, VersionVisitor visitor) throws IOException
+    {
+        int last = Integer.MIN_VALUE;
+        while (true) {
+            int candidate = Integer.MIN_VALUE;
+            for (IntBuffer posting : postings) {
+                if (!posting.hasRemaining()) {
+                    return;
+                }
+                candidate = Math.max(candidate, posting.get(posting.position()));
+            }
+            boolean everywhere = true;
+            for (IntBuffer posting : postings) {
+                while (posting.hasRemaining() && posting.get(posting.position()) < candidate) {
+                    posting.get();
+                }
+                if (!posting.hasRemaining()) {
+                    return;
+                }
+                everywhere &= posting.get(posting.position()) == candidate;
+            }
+            if (everywhere) {
+                if (candidate > last) {
+                    visitor.visit(candidate);
+                    last = candidate;
+                }
+                for (IntBuffer posting : postings) {
+                    posting.get();
+                }
+            }
+        }
+    }
+}
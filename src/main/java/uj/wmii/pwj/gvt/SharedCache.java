@@ -0,0 +1,106 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache shared by repositories: revision contents are keyed by their content hash,
+ * parsed version metadata by repository directory and version number.
+ */
+public class SharedCache
+{
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("gvt.cache.bytes",
+        MemoryBudget.share(0.5, 64L * 1024 * 1024));
+    private static final int DEFAULT_MAX_METADATA = Integer.getInteger("gvt.cache.metadata",
+        (int) (MemoryBudget.share(0.125, 10_000L * 1024) / 1024));
+
+    private final long maxBytes;
+    private final long maxBlobBytes;
+    private final int maxMetadata;
+
+    private final LinkedHashMap<String, byte[]> blobs = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, VersionMetaData> metadata = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+
+    private long hits;
+    private long misses;
+
+    public SharedCache()
+    {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_METADATA);
+    }
+
+    public SharedCache(long maxBytes, int maxMetadata)
+    {
+        this.maxBytes = maxBytes;
+        this.maxBlobBytes = Math.max(0, maxBytes / 8);
+        this.maxMetadata = maxMetadata;
+    }
+
+    public synchronized byte[] getBlob(String hash)
+    {
+        byte[] content = blobs.get(hash);
+        if (content == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return content;
+    }
+
+    public boolean acceptsBlob(long size)
+    {
+        return size <= maxBlobBytes;
+    }
+
+    public synchronized void putBlob(String hash, byte[] content)
+    {
+        if (!acceptsBlob(content.length) || blobs.containsKey(hash)) {
+            return;
+        }
+        blobs.put(hash, content);
+        usedBytes += content.length;
+
+        Iterator<Map.Entry<String, byte[]>> it = blobs.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized VersionMetaData getMetadata(String repository, int version)
+    {
+        return metadata.get(repository + '#' + version);
+    }
+
+    public synchronized void putMetadata(String repository, int version, VersionMetaData value)
+    {
+        metadata.put(repository + '#' + version, value);
+        Iterator<String> it = metadata.keySet().iterator();
+        while (metadata.size() > maxMetadata && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidateMetadata(String repository, int version)
+    {
+        metadata.remove(repository + '#' + version);
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+}
@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class StashException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public StashException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.List;
+
+public record StashResult(int files, List<String> conflicts)
+{
+}
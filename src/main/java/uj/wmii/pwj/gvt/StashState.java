@@ -0,0 +1,77 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The stack of stashed working-tree changes, kept in {@code .gvt/stash.json}. An entry records the branch tip it was
+ * taken from, the new content hash of every modified tracked file and the tracked files that were missing. The
+ * content itself lives in the object store, deduplicated like any other revision.
+ */
+class StashState
+{
+    private ArrayList<Entry> entries;
+
+    static class Entry
+    {
+        private int base;
+        private TreeMap<String, String> modified;
+        private ArrayList<String> missing;
+
+        Entry() {}
+
+        Entry(int base, Map<String, String> modified, List<String> missing)
+        {
+            this.base = base;
+            this.modified = new TreeMap<>(modified);
+            this.missing = new ArrayList<>(missing);
+        }
+
+        int base()
+        {
+            return base;
+        }
+
+        Map<String, String> modified()
+        {
+            return (modified == null) ? Map.of() : modified;
+        }
+
+        List<String> missing()
+        {
+            return (missing == null) ? List.of() : missing;
+        }
+
+        int size()
+        {
+            return modified().size() + missing().size();
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return entries == null || entries.isEmpty();
+    }
+
+    void push(Entry entry)
+    {
+        if (entries == null) {
+            entries = new ArrayList<>();
+        }
+        entries.add(entry);
+    }
+
+    Entry peek()
+    {
+        return isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
+    void pop()
+    {
+        if (!isEmpty()) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The push/pull protocol between two replicas of a repository, the receiving one holding a prefix of the sending
+ * one's history. After a plain handshake ({@code GVTS}, format, command) both directions are deflate streams,
+ * flushed at every turn:
+ * <ol>
+ *   <li>the receiver sends its latest version, the hash of that version's metadata and the check of the key it is
+ *       encrypted with; the sender refuses when it does not have the same version or is not encrypted alike,
+ *       otherwise it answers with the range of versions it will send and its own key check, which an empty
+ *       receiver adopts;</li>
+ *   <li>the sender offers, in batches, the objects each new version adds to the one before it, and the receiver
+ *       answers every batch with a bitmap of the objects it lacks. Up to {@value #WINDOW} batches are in flight,
+ *       so offers, answers and the wanted objects stream without waiting for round trips;</li>
+ *   <li>the sender sends the version metadata and its refs; the receiver imports them and acknowledges.</li>
+ * </ol>
+ * Objects travel as stored and the metadata of encrypted repositories sealed, so an encrypted repository only
+ * sends what is encrypted already.
+ */
+final class Sync
+{
+    static final int DEFAULT_PORT = 9780;
+    static final byte PUSH = 1;
+    static final byte PULL = 2;
+
+    private static final int MAGIC = 0x47565453;
+    private static final int FORMAT = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_LENGTH = 64;
+    private static final int BATCH_SIZE = 256;
+    private static final int WINDOW = 8;
+
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+    private static final byte ENCRYPTION_MISMATCH = 2;
+    private static final byte OFFER = 1;
+    private static final byte OBJECT = 2;
+    private static final byte END = 3;
+
+    /**
+     * The sending repository.
+     */
+    interface Source
+    {
+        int latest();
+
+        /**
+         * Returns the transferred form of {@code version}, or {@code null} when the version does not exist.
+         */
+        Bundle.Version version(int version) throws IOException;
+
+        SortedMap<String, Integer> branches();
+
+        SortedMap<String, Integer> tags();
+    }
+
+    /**
+     * The receiving repository; {@link #latest()} is -1 when it is empty.
+     */
+    interface Sink
+    {
+        int latest();
+
+        /**
+         * Returns the hash of the transferred form of the latest version's metadata.
+         */
+        String latestId() throws IOException;
+
+        /**
+         * Returns the check of the key the repository is encrypted with, or {@code null} for plain text.
+         */
+        String encryptionCheck() throws IOException;
+
+        /**
+         * Makes the empty repository store objects as a repository encrypted with the key of {@code check} does,
+         * {@code null} for plain text.
+         */
+        void adoptEncryption(String check) throws GvtException, IOException;
+
+        void importVersion(int version, byte[] metadata) throws GvtException, IOException;
+
+        void finish(SortedMap<String, Integer> branches, SortedMap<String, Integer> tags) throws GvtException, IOException;
+    }
+
+    private Sync() {}
+
+    /**
+     * Parses {@code host:port}, {@code host} or {@code :port}.
+     */
+    static InetSocketAddress address(String spec) throws SyncException
+    {
+        int colon = spec.lastIndexOf(':');
+        String host = (colon < 0) ? spec : spec.substring(0, colon);
+        int port = DEFAULT_PORT;
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(spec.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new SyncException("Invalid remote address: " + spec);
+            }
+        }
+        if (port < 0 || port > 0xFFFF) {
+            throw new SyncException("Invalid remote address: " + spec);
+        }
+        return new InetSocketAddress(host.isEmpty() ? "localhost" : host, port);
+    }
+
+    static Connection connect(String spec, byte command) throws GvtException, IOException
+    {
+        InetSocketAddress address = address(spec);
+        Socket socket = new Socket();
+        try {
+            socket.connect(address);
+        } catch (IOException e) {
+            socket.close();
+            throw new SyncException("Cannot connect to " + spec + ": " + e.getMessage(), e);
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeByte(command);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new SyncException("Not a gvt server or unsupported protocol: " + spec);
+            }
+            return new Connection(socket, command);
+        } catch (EOFException e) {
+            socket.close();
+            throw new SyncException("Connection closed by " + spec, e);
+        } catch (GvtException | IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static Connection accept(Socket socket) throws GvtException, IOException
+    {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            throw new SyncException("Unsupported protocol.");
+        }
+        byte command = in.readByte();
+        if (command != PUSH && command != PULL) {
+            throw new SyncException("Unknown command " + command + ".");
+        }
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.flush();
+        return new Connection(socket, command);
+    }
+
+    static SyncResult send(Source source, ObjectStore objectStore, TreeStore treeStore, Connection connection)
+        throws GvtException, IOException
+    {
+        DataInputStream in = connection.in;
+        DataOutputStream out = connection.out;
+        try {
+            int since = in.readInt();
+            String sinceId = in.readUTF();
+            String receiverCheck = in.readUTF();
+            String check = objectStore.encryptionCheck();
+            int latest = source.latest();
+
+            if (since >= 0 && !receiverCheck.equals((check == null) ? "" : check)) {
+                String refusal = encryptionMismatch(check, receiverCheck.isEmpty() ? null : receiverCheck);
+                out.writeByte(ENCRYPTION_MISMATCH);
+                out.writeUTF(refusal);
+                out.flush();
+                throw new EncryptionException(refusal);
+            }
+
+            Bundle.Version base = (since >= 0 && since <= latest) ? source.version(since) : null;
+            String refusal = null;
+            if (since > latest) {
+                refusal = "The receiving repository has version " + since + ", newer than the latest version " + latest + ".";
+            } else if (since >= 0 && (base == null || !Hashing.hash(base.metadata()).equals(sinceId))) {
+                refusal = "Histories have diverged at version " + since + ".";
+            }
+            if (refusal != null) {
+                out.writeByte(ERROR);
+                out.writeUTF(refusal);
+                out.flush();
+                throw new SyncException(refusal);
+            }
+            out.writeByte(OK);
+            out.writeInt(since);
+            out.writeInt(latest);
+            out.writeUTF((check == null) ? "" : check);
+
+            Offers offers = new Offers(objectStore, in, out);
+            String previous = (base == null) ? null : base.tree();
+            int count = 0;
+            for (int v = since + 1; v <= latest; v++) {
+                Bundle.Version version = source.version(v);
+                if (version != null) {
+                    offerTree(treeStore, version.tree(), previous, offers);
+                    previous = version.tree();
+                    count++;
+                }
+            }
+            offers.finish();
+
+            out.writeInt(count);
+            for (int v = since + 1; v <= latest; v++) {
+                Bundle.Version version = source.version(v);
+                if (version != null) {
+                    byte[] metadata = Bundle.seal(objectStore, version.metadata());
+                    out.writeInt(version.version());
+                    out.writeInt(metadata.length);
+                    out.write(metadata);
+                }
+            }
+            writeRefs(source.branches(), out);
+            writeRefs(source.tags(), out);
+            out.flush();
+
+            if (in.readByte() != OK) {
+                throw new SyncException("The receiving repository failed: " + in.readUTF());
+            }
+            return new SyncResult(count, offers.sent, connection.bytes());
+        } catch (EOFException | ZipException e) {
+            throw new SyncException("Connection closed or corrupted.", e);
+        }
+    }
+
+    static SyncResult receive(Sink sink, ObjectStore objectStore, Connection connection) throws GvtException, IOException
+    {
+        DataInputStream in = connection.in;
+        DataOutputStream out = connection.out;
+        try {
+            int local = sink.latest();
+            String localCheck = (local >= 0) ? sink.encryptionCheck() : null;
+            out.writeInt(local);
+            out.writeUTF(local >= 0 ? sink.latestId() : "");
+            out.writeUTF((localCheck == null) ? "" : localCheck);
+            out.flush();
+            byte status = in.readByte();
+            if (status == ENCRYPTION_MISMATCH) {
+                throw new EncryptionException(in.readUTF());
+            }
+            if (status != OK) {
+                throw new SyncException(in.readUTF());
+            }
+            int since = in.readInt();
+            int latest = in.readInt();
+            String sent = in.readUTF();
+            String check = sent.isEmpty() ? null : sent;
+            if (since != local || latest < since) {
+                throw new SyncException("Protocol error: unexpected version range.");
+            }
+
+            try {
+                if (local < 0) {
+                    sink.adoptEncryption(check);
+                } else if (!Objects.equals(check, localCheck)) {
+                    throw new EncryptionException(encryptionMismatch(check, localCheck));
+                }
+                int objects = receiveObjects(objectStore, in, out);
+                int count = in.readInt();
+                int previous = since;
+                for (int i = 0; i < count; i++) {
+                    int version = in.readInt();
+                    int length = in.readInt();
+                    if (version <= previous || version > latest || length < 0) {
+                        throw new SyncException("Protocol error: unexpected version " + version + ".");
+                    }
+                    if (length > VersionMetaData.MAX_LENGTH) {
+                        throw new SyncException("Protocol error: metadata of version " + version + " is " + length
+                            + " bytes long, more than " + VersionMetaData.MAX_LENGTH + ".");
+                    }
+                    byte[] metadata = new byte[length];
+                    in.readFully(metadata);
+                    sink.importVersion(version, unseal(objectStore, version, metadata));
+                    previous = version;
+                }
+                sink.finish(readRefs(in), readRefs(in));
+                out.writeByte(OK);
+                out.flush();
+                return new SyncResult(count, objects, connection.bytes());
+            } catch (GvtException | IOException e) {
+                reportFailure(out, e);
+                throw e;
+            }
+        } catch (EOFException | ZipException e) {
+            throw new SyncException("Connection closed or corrupted.", e);
+        }
+    }
+
+    private static int receiveObjects(ObjectStore objectStore, DataInputStream in, DataOutputStream out)
+        throws GvtException, IOException
+    {
+        int objects = 0;
+        byte[] hashBytes = new byte[HASH_LENGTH];
+        while (true) {
+            byte frame = in.readByte();
+            if (frame == END) {
+                return objects;
+            } else if (frame == OFFER) {
+                int count = in.readInt();
+                if (count <= 0 || count > BATCH_SIZE) {
+                    throw new SyncException("Protocol error: invalid offer.");
+                }
+                byte[] wanted = new byte[(count + 7) / 8];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(hashBytes);
+                    String hash = new String(hashBytes, StandardCharsets.US_ASCII);
+                    if (!Hashing.isHash(hash)) {
+                        throw new SyncException("Protocol error: invalid object hash.");
+                    }
+                    if (!objectStore.contains(hash)) {
+                        wanted[i / 8] |= (byte) (1 << (i % 8));
+                    }
+                }
+                out.write(wanted);
+                out.flush();
+            } else if (frame == OBJECT) {
+                in.readFully(hashBytes);
+                String hash = new String(hashBytes, StandardCharsets.US_ASCII);
+                long size = in.readLong();
+                if (!Hashing.isHash(hash) || size < 0) {
+                    throw new SyncException("Protocol error: invalid object.");
+                }
+                if (!hash.equals(objectStore.storeTransferred(new Bundle.LimitedInputStream(in, size)))) {
+                    throw new SyncException("Received corrupted object: " + hash);
+                }
+                objects++;
+            } else {
+                throw new SyncException("Protocol error: unknown frame " + frame + ".");
+            }
+        }
+    }
+
+    private static byte[] unseal(ObjectStore objectStore, int version, byte[] metadata) throws GvtException, IOException
+    {
+        try {
+            return Bundle.unseal(objectStore, metadata);
+        } catch (IOException e) {
+            throw new SyncException("Received corrupted version " + version + ".", e);
+        }
+    }
+
+    private static String encryptionMismatch(String sending, String receiving)
+    {
+        if (sending == null) {
+            return "The receiving repository is encrypted, the sending one is not.";
+        }
+        if (receiving == null) {
+            return "The sending repository is encrypted, the receiving one is not.";
+        }
+        return "The sending and receiving repositories are encrypted with different keys.";
+    }
+
+    private static void reportFailure(DataOutputStream out, Exception failure)
+    {
+        try {
+            out.writeByte(ERROR);
+            out.writeUTF(String.valueOf(failure.getMessage()));
+            out.flush();
+        } catch (IOException e) {
+            // the connection is gone, the other side notices by itself
+        }
+    }
+
+    /**
+     * Offers {@code tree} and everything below it that {@code previous} does not contain at the same path.
+     */
+    private static void offerTree(TreeStore treeStore, String tree, String previous, Offers offers) throws IOException
+    {
+        if (TreeStore.EMPTY_TREE.equals(tree) || tree.equals(previous)) {
+            return;
+        }
+        SortedMap<String, TreeStore.Entry> before = treeStore.read(previous);
+        offers.offer(tree);
+        for (TreeStore.Entry entry : treeStore.read(tree).values()) {
+            TreeStore.Entry old = before.get(entry.name());
+            if (entry.directory()) {
+                offerTree(treeStore, entry.hash(), (old != null && old.directory()) ? old.hash() : null, offers);
+            } else if (old == null || old.directory() || !old.hash().equals(entry.hash())) {
+                offers.offer(entry.hash());
+            }
+        }
+    }
+
+    private static void writeRefs(Map<String, Integer> refs, DataOutputStream out) throws IOException
+    {
+        out.writeInt(refs.size());
+        for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+            out.writeUTF(ref.getKey());
+            out.writeInt(ref.getValue());
+        }
+    }
+
+    private static SortedMap<String, Integer> readRefs(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        SortedMap<String, Integer> refs = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            refs.put(in.readUTF(), in.readInt());
+        }
+        return refs;
+    }
+
+    /**
+     * The sending side of the object negotiation: batches of offered hashes, each answered by a bitmap of wanted
+     * objects, with a bounded number of batches awaiting their answer.
+     */
+    private static final class Offers
+    {
+        private final ObjectStore objectStore;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Set<String> offered = new HashSet<>();
+        private final ArrayDeque<List<String>> pending = new ArrayDeque<>();
+        private List<String> batch = new ArrayList<>(BATCH_SIZE);
+        private int sent;
+
+        Offers(ObjectStore objectStore, DataInputStream in, DataOutputStream out)
+        {
+            this.objectStore = objectStore;
+            this.in = in;
+            this.out = out;
+        }
+
+        void offer(String hash) throws IOException
+        {
+            if (!offered.add(hash)) {
+                return;
+            }
+            batch.add(hash);
+            if (batch.size() == BATCH_SIZE) {
+                sendBatch();
+            }
+        }
+
+        void finish() throws IOException
+        {
+            if (!batch.isEmpty()) {
+                sendBatch();
+            }
+            while (!pending.isEmpty()) {
+                sendWanted();
+            }
+            out.writeByte(END);
+        }
+
+        private void sendBatch() throws IOException
+        {
+            out.writeByte(OFFER);
+            out.writeInt(batch.size());
+            for (String hash : batch) {
+                out.write(hash.getBytes(StandardCharsets.US_ASCII));
+            }
+            out.flush();
+            pending.add(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+            if (pending.size() >= WINDOW) {
+                sendWanted();
+            }
+        }
+
+        private void sendWanted() throws IOException
+        {
+            List<String> hashes = pending.poll();
+            byte[] wanted = new byte[(hashes.size() + 7) / 8];
+            in.readFully(wanted);
+            for (int i = 0; i < hashes.size(); i++) {
+                if ((wanted[i / 8] & (1 << (i % 8))) != 0) {
+                    sendObject(hashes.get(i));
+                }
+            }
+        }
+
+        private void sendObject(String hash) throws IOException
+        {
+            long size = objectStore.storedSize(hash);
+            out.writeByte(OBJECT);
+            out.write(hash.getBytes(StandardCharsets.US_ASCII));
+            out.writeLong(size);
+            try (InputStream object = new Bundle.LimitedInputStream(objectStore.openStored(hash), size)) {
+                object.transferTo(out);
+            }
+            sent++;
+        }
+    }
+
+    /**
+     * A connected socket with deflate streams in both directions; a flush of {@link #out} is a sync flush, so the
+     * other side can read everything written so far.
+     */
+    static final class Connection implements Closeable
+    {
+        private final Socket socket;
+        private final byte command;
+        private final CountingInputStream rawIn;
+        private final CountingOutputStream rawOut;
+        private final Inflater inflater = new Inflater();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        private Connection(Socket socket, byte command) throws IOException
+        {
+            this.socket = socket;
+            this.command = command;
+            this.rawIn = new CountingInputStream(socket.getInputStream());
+            this.rawOut = new CountingOutputStream(socket.getOutputStream());
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(rawOut, deflater, BUFFER_SIZE, true), BUFFER_SIZE));
+            this.in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(rawIn, inflater, BUFFER_SIZE), BUFFER_SIZE));
+        }
+
+        byte command()
+        {
+            return command;
+        }
+
+        /**
+         * Returns the compressed bytes sent and received so far.
+         */
+        long bytes()
+        {
+            return rawIn.count + rawOut.count;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                socket.close();
+            } finally {
+                inflater.end();
+                deflater.end();
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private long count;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
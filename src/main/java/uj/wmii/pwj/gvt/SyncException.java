@@ -0,0 +1,16 @@
+package uj.wmii.pwj.gvt;
+
+public class SyncException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public SyncException(String message)
+    {
+        super(message);
+    }
+
+    public SyncException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,89 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Accepts push and pull connections for one repository. Every connection is served on its own thread; sessions
+ * that change the repository are serialized by the session handler.
+ */
+public final class SyncServer implements Closeable
+{
+    private static final int MAX_SESSIONS = 8;
+
+    @FunctionalInterface
+    interface Session
+    {
+        void serve(Socket socket) throws GvtException, IOException;
+    }
+
+    private final ServerSocket serverSocket;
+    private final Session session;
+    private final ExecutorService pool = GvtExecutors.newBoundedPool("gvt-serve", MAX_SESSIONS);
+    private volatile boolean closed;
+
+    private SyncServer(ServerSocket serverSocket, Session session)
+    {
+        this.serverSocket = serverSocket;
+        this.session = session;
+    }
+
+    /**
+     * Binds {@code port}, or a free port when it is 0.
+     */
+    static SyncServer bind(int port, Session session) throws IOException
+    {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return new SyncServer(serverSocket, session);
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until {@link #close()} is called.
+     */
+    public void run() throws IOException
+    {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (closed) {
+                    return;
+                }
+                throw e;
+            }
+            pool.execute(() -> {
+                try (socket) {
+                    session.serve(socket);
+                } catch (GvtException | IOException e) {
+                    // the peer has been told when possible, or sees the connection drop
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        pool.shutdown();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,192 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Line-based three-way merge of stored revisions. Lines are aligned on their 64-bit hashes (see {@link LineDiff}),
+ * so memory grows with the number of lines, not with their length; the merged content is then streamed from the
+ * three revisions in one forward pass. Chunks changed on one side only take that side; chunks changed differently
+ * on both sides are written between conflict markers.
+ */
+final class ThreeWayMerge
+{
+    static final String OURS_MARKER = "<<<<<<< ";
+    static final String SEPARATOR = "=======";
+    static final String THEIRS_MARKER = ">>>>>>> ";
+
+    private final ObjectStore objectStore;
+
+    ThreeWayMerge(ObjectStore objectStore)
+    {
+        this.objectStore = objectStore;
+    }
+
+    /**
+     * Writes the merge of {@code ours} and {@code theirs} to {@code out}. {@code base} is {@code null} when the file
+     * was added on both sides. Returns {@code true} when conflicting chunks were written.
+     */
+    boolean merge(String base, String ours, String theirs, String oursLabel, String theirsLabel, OutputStream out)
+        throws IOException
+    {
+        long[] baseLines = hashLines(base);
+        long[] oursLines = hashLines(ours);
+        long[] theirsLines = hashLines(theirs);
+        int[] baseToOurs = invert(LineDiff.match(baseLines, oursLines), baseLines.length);
+        int[] baseToTheirs = invert(LineDiff.match(baseLines, theirsLines), baseLines.length);
+
+        boolean conflicts = false;
+        try (LineCursor b = open(base); LineCursor o = open(ours); LineCursor t = open(theirs)) {
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (true) {
+                int stable = i;
+                while (stable < baseLines.length && (baseToOurs[stable] < 0 || baseToTheirs[stable] < 0)) {
+                    stable++;
+                }
+                int oursEnd = (stable < baseLines.length) ? baseToOurs[stable] : oursLines.length;
+                int theirsEnd = (stable < baseLines.length) ? baseToTheirs[stable] : theirsLines.length;
+
+                boolean oursChanged = !equal(baseLines, i, stable, oursLines, j, oursEnd);
+                boolean theirsChanged = !equal(baseLines, i, stable, theirsLines, k, theirsEnd);
+                if (oursChanged && theirsChanged && !equal(oursLines, j, oursEnd, theirsLines, k, theirsEnd)) {
+                    conflicts = true;
+                    marker(out, OURS_MARKER + oursLabel);
+                    endLine(o.copy(oursEnd - j, out), out);
+                    marker(out, SEPARATOR);
+                    endLine(t.copy(theirsEnd - k, out), out);
+                    marker(out, THEIRS_MARKER + theirsLabel);
+                } else if (theirsChanged && !oursChanged) {
+                    o.skip(oursEnd - j);
+                    t.copy(theirsEnd - k, out);
+                } else {
+                    o.copy(oursEnd - j, out);
+                    t.skip(theirsEnd - k);
+                }
+                b.skip(stable - i);
+
+                if (stable == baseLines.length) {
+                    return conflicts;
+                }
+                o.copy(1, out);
+                b.skip(1);
+                t.skip(1);
+                i = stable + 1;
+                j = oursEnd + 1;
+                k = theirsEnd + 1;
+            }
+        }
+    }
+
+    private long[] hashLines(String hash) throws IOException
+    {
+        if (hash == null) {
+            return new long[0];
+        }
+        try (InputStream in = objectStore.open(hash)) {
+            return LineDiff.hashLines(in);
+        }
+    }
+
+    private LineCursor open(String hash) throws IOException
+    {
+        return new LineCursor(hash == null ? InputStream.nullInputStream() : objectStore.open(hash));
+    }
+
+    private static int[] invert(int[] matches, int length)
+    {
+        int[] inverse = new int[length];
+        Arrays.fill(inverse, -1);
+        for (int line = 0; line < matches.length; line++) {
+            if (matches[line] >= 0) {
+                inverse[matches[line]] = line;
+            }
+        }
+        return inverse;
+    }
+
+    private static boolean equal(long[] a, int aFrom, int aTo, long[] b, int bFrom, int bTo)
+    {
+        return Arrays.equals(a, aFrom, aTo, b, bFrom, bTo);
+    }
+
+    private static void marker(OutputStream out, String line) throws IOException
+    {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private static void endLine(int last, OutputStream out) throws IOException
+    {
+        if (last >= 0 && last != '\n') {
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reads a revision forward, a whole line at a time.
+     */
+    private static final class LineCursor implements AutoCloseable
+    {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+
+        LineCursor(InputStream in)
+        {
+            this.in = in;
+        }
+
+        /**
+         * Copies {@code lines} lines and returns the last byte written, -1 when nothing was.
+         */
+        int copy(int lines, OutputStream out) throws IOException
+        {
+            return advance(lines, out);
+        }
+
+        void skip(int lines) throws IOException
+        {
+            advance(lines, null);
+        }
+
+        private int advance(int lines, OutputStream out) throws IOException
+        {
+            int last = -1;
+            while (lines > 0) {
+                if (position == limit && !fill()) {
+                    return last;
+                }
+                int start = position;
+                while (position < limit && lines > 0) {
+                    if (buffer[position++] == '\n') {
+                        lines--;
+                    }
+                }
+                if (out != null) {
+                    out.write(buffer, start, position - start);
+                    last = buffer[position - 1] & 0xFF;
+                }
+            }
+            return last;
+        }
+
+        private boolean fill() throws IOException
+        {
+            limit = Math.max(0, in.read(buffer));
+            position = 0;
+            return limit > 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
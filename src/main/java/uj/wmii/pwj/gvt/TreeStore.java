@@ -0,0 +1,279 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Hierarchical snapshot of tracked files. A tree is an object in the {@link ObjectStore} listing its entries,
+ * one {@code blob|tree <hash> <name>} line per entry, sorted by name. Unchanged subtrees keep their hash,
+ * so versions share them and an update only rewrites the trees along the changed paths.
+ */
+class TreeStore
+{
+    static final String EMPTY_TREE = Hashing.hash(new byte[0]);
+
+    private static final String BLOB = "blob";
+    private static final String TREE = "tree";
+
+    private final ObjectStore objectStore;
+    private final SharedCache cache;
+
+    record Entry(String name, boolean directory, String hash)
+    {
+    }
+
+    @FunctionalInterface
+    interface Visitor
+    {
+        void visit(String path, String hash) throws IOException;
+    }
+
+    TreeStore(ObjectStore objectStore, SharedCache cache)
+    {
+        this.objectStore = objectStore;
+        this.cache = cache;
+    }
+
+    SortedMap<String, Entry> read(String treeHash) throws IOException
+    {
+        if (treeHash == null || EMPTY_TREE.equals(treeHash)) {
+            return Collections.emptySortedMap();
+        }
+        byte[] content = cache.getBlob(treeHash);
+        if (content == null) {
+            content = objectStore.read(treeHash);
+            cache.putBlob(treeHash, content);
+        }
+        return parse(treeHash, content);
+    }
+
+    String write(Collection<Entry> entries) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(entry.directory() ? TREE : BLOB)
+                .append(' ').append(entry.hash())
+                .append(' ').append(entry.name())
+                .append('\n');
+        }
+        return objectStore.store(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    String lookup(String root, String path) throws IOException
+    {
+        Entry entry = find(root, path);
+        return (entry == null || entry.directory()) ? null : entry.hash();
+    }
+
+    /**
+     * Returns the entry of a file or directory, {@code null} when the path does not exist in the tree.
+     */
+    Entry find(String root, String path) throws IOException
+    {
+        String current = root;
+        String[] segments = path.split("/");
+        for (int i = 0; i < segments.length; i++) {
+            Entry entry = read(current).get(segments[i]);
+            if (entry == null) {
+                return null;
+            }
+            if (i == segments.length - 1) {
+                return entry;
+            }
+            if (!entry.directory()) {
+                return null;
+            }
+            current = entry.hash();
+        }
+        return null;
+    }
+
+    /**
+     * Applies {@code changes} (path to new blob hash, or to {@code null} to remove the file) and returns the
+     * new root. Directories left empty are removed.
+     */
+    String update(String root, Map<String, String> changes) throws IOException
+    {
+        if (changes.isEmpty()) {
+            return root == null ? EMPTY_TREE : root;
+        }
+
+        Map<String, String> direct = new TreeMap<>();
+        Map<String, Map<String, String>> nested = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                direct.put(path, change.getValue());
+            } else {
+                nested.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+
+        TreeMap<String, Entry> entries = new TreeMap<>(read(root));
+        for (Map.Entry<String, String> change : direct.entrySet()) {
+            if (change.getValue() == null) {
+                Entry existing = entries.get(change.getKey());
+                if (existing != null && !existing.directory()) {
+                    entries.remove(change.getKey());
+                }
+            } else {
+                entries.put(change.getKey(), new Entry(change.getKey(), false, change.getValue()));
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> change : nested.entrySet()) {
+            Entry existing = entries.get(change.getKey());
+            String childRoot = (existing != null && existing.directory()) ? existing.hash() : null;
+            String newChild = update(childRoot, change.getValue());
+            if (EMPTY_TREE.equals(newChild)) {
+                if (existing != null && existing.directory()) {
+                    entries.remove(change.getKey());
+                }
+            } else {
+                entries.put(change.getKey(), new Entry(change.getKey(), true, newChild));
+            }
+        }
+
+        if (entries.isEmpty()) {
+            return EMPTY_TREE;
+        }
+        return write(entries.values());
+    }
+
+    void walk(String root, Visitor visitor) throws IOException
+    {
+        walk(root, "", visitor);
+    }
+
+    /**
+     * Visits every file whose blob differs between the two trees, with its new hash or {@code null} when the
+     * file no longer exists. Subtrees with equal hashes are skipped without being read.
+     */
+    void diff(String oldRoot, String newRoot, Visitor visitor) throws IOException
+    {
+        diff(oldRoot, newRoot, "", visitor);
+    }
+
+    /**
+     * Visits the files of {@code tree}, prefixing their paths with {@code prefix}.
+     */
+    void walk(String tree, String prefix, Visitor visitor) throws IOException
+    {
+        for (Entry entry : read(tree).values()) {
+            String path = prefix + entry.name();
+            if (entry.directory()) {
+                walk(entry.hash(), path + "/", visitor);
+            } else {
+                visitor.visit(path, entry.hash());
+            }
+        }
+    }
+
+    private void diff(String oldTree, String newTree, String prefix, Visitor visitor) throws IOException
+    {
+        if (oldTree != null && oldTree.equals(newTree)) {
+            return;
+        }
+        SortedMap<String, Entry> oldEntries = read(oldTree);
+        SortedMap<String, Entry> newEntries = read(newTree);
+
+        Iterator<Entry> oldIt = oldEntries.values().iterator();
+        Iterator<Entry> newIt = newEntries.values().iterator();
+        Entry oldEntry = oldIt.hasNext() ? oldIt.next() : null;
+        Entry newEntry = newIt.hasNext() ? newIt.next() : null;
+
+        while (oldEntry != null || newEntry != null) {
+            int cmp = (oldEntry == null) ? 1 : (newEntry == null) ? -1 : oldEntry.name().compareTo(newEntry.name());
+            if (cmp < 0) {
+                removed(oldEntry, prefix, visitor);
+                oldEntry = oldIt.hasNext() ? oldIt.next() : null;
+            } else if (cmp > 0) {
+                added(newEntry, prefix, visitor);
+                newEntry = newIt.hasNext() ? newIt.next() : null;
+            } else {
+                String path = prefix + newEntry.name();
+                if (oldEntry.directory() && newEntry.directory()) {
+                    diff(oldEntry.hash(), newEntry.hash(), path + "/", visitor);
+                } else if (!oldEntry.directory() && !newEntry.directory()) {
+                    if (!oldEntry.hash().equals(newEntry.hash())) {
+                        visitor.visit(path, newEntry.hash());
+                    }
+                } else {
+                    removed(oldEntry, prefix, visitor);
+                    added(newEntry, prefix, visitor);
+                }
+                oldEntry = oldIt.hasNext() ? oldIt.next() : null;
+                newEntry = newIt.hasNext() ? newIt.next() : null;
+            }
+        }
+    }
+
+    private void added(Entry entry, String prefix, Visitor visitor) throws IOException
+    {
+        if (entry.directory()) {
+            walk(entry.hash(), prefix + entry.name() + "/", visitor);
+        } else {
+            visitor.visit(prefix + entry.name(), entry.hash());
+        }
+    }
+
+    private void removed(Entry entry, String prefix, Visitor visitor) throws IOException
+    {
+        if (entry.directory()) {
+            walk(entry.hash(), prefix + entry.name() + "/", (path, hash) -> visitor.visit(path, null));
+        } else {
+            visitor.visit(prefix + entry.name(), null);
+        }
+    }
+
+    /**
+     * Converts a relative file system path to the {@code /}-separated form used in trees.
+     */
+    static String toTreePath(Path relative)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Path segment : relative) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.toString();
+    }
+
+    static SortedMap<String, Entry> parse(String treeHash, byte[] content) throws IOException
+    {
+        SortedMap<String, Entry> entries = new TreeMap<>();
+        String text = new String(content, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            String line = text.substring(start, end);
+            start = end + 1;
+
+            int first = line.indexOf(' ');
+            int second = (first < 0) ? -1 : line.indexOf(' ', first + 1);
+            if (second < 0) {
+                throw new IOException("Malformed tree object " + treeHash);
+            }
+            String type = line.substring(0, first);
+            if (!BLOB.equals(type) && !TREE.equals(type)) {
+                throw new IOException("Malformed tree object " + treeHash);
+            }
+            String name = line.substring(second + 1);
+            entries.put(name, new Entry(name, TREE.equals(type), line.substring(first + 1, second)));
+        }
+        return entries;
+    }
+}
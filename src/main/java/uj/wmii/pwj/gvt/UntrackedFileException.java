@@ -0,0 +1,19 @@
+package uj.wmii.pwj.gvt;
+
+public class UntrackedFileException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+
+    public UntrackedFileException(String fileName)
+    {
+        super("File is not added to gvt. File: " + fileName);
+        this.fileName = fileName;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+}
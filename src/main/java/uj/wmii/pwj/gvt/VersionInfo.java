@@ -0,0 +1,10 @@
+package uj.wmii.pwj.gvt;
+
+public record VersionInfo(int version, String message)
+{
+    public String firstLine()
+    {
+        int idx = message.indexOf('\n');
+        return (idx >= 0) ? message.substring(0, idx) : message;
+    }
+}
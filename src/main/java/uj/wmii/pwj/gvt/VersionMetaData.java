@@ -1,20 +1,33 @@
 package uj.wmii.pwj.gvt;
 
 import java.lang.Runtime.Version;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
 
 public class VersionMetaData 
 {   
+    static final String FILE_NAME = "meta.json";
+    static final String CHECKSUM_FILE_NAME = "meta.sha256";
+    // largest stored metadata a bundle or a sync session accepts, so that a corrupt length cannot exhaust memory
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+
     private final Integer version;
     private StringBuilder message;
     private HashSet<String> trackedFiles;
+    private HashMap<String, String> fileHashes;
+    private String tree;
+    private Integer parent;
+    private Integer merged;
 
     public VersionMetaData() 
     {
         version = 0;
         message = null;
         trackedFiles = null;
+        fileHashes = null;
+        tree = null;
     };
 
     public VersionMetaData(Integer version , String message , HashSet<String> fileNames)
@@ -22,6 +35,26 @@ public class VersionMetaData
         this.trackedFiles = fileNames;
         this.message = new StringBuilder(message); 
         this.version = version;
+        this.fileHashes = new HashMap<String, String>();
+    }
+
+    public VersionMetaData(Integer version, String message, String tree)
+    {
+        this.message = new StringBuilder(message);
+        this.version = version;
+        this.tree = tree;
+    }
+
+    public VersionMetaData(Integer version, String message, String tree, Integer parent)
+    {
+        this(version, message, tree);
+        this.parent = parent;
+    }
+
+    public VersionMetaData(Integer version, String message, String tree, Integer parent, Integer merged)
+    {
+        this(version, message, tree, parent);
+        this.merged = merged;
     }
     
     public Integer getVersion()
@@ -29,19 +62,54 @@ public class VersionMetaData
         return version;
     }
 
+    public String getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * Returns the version this one was created on top of; versions written before parents were recorded follow
+     * the one numbered just before them. {@code null} for version 0.
+     */
+    public Integer getParent()
+    {
+        if (parent != null) {
+            return parent;
+        }
+        return (version > 0) ? version - 1 : null;
+    }
+
+    /**
+     * Returns the second parent of a merge version, {@code null} for other versions.
+     */
+    public Integer getMerged()
+    {
+        return merged;
+    }
+
+    public boolean hasTree()
+    {
+        return tree != null;
+    }
+
     public ArrayList<String> getFileNames()
     {
-        return new ArrayList<String>(trackedFiles);
+        return new ArrayList<String>(trackedFiles == null ? Collections.<String>emptySet() : trackedFiles);
     }
 
     public boolean isFileExist(String name)
     {
-        return trackedFiles.contains(name);
+        return trackedFiles != null && trackedFiles.contains(name);
     }
 
     public void detach(String name)
     {
-        trackedFiles.remove(name);
+        if (trackedFiles != null) {
+            trackedFiles.remove(name);
+        }
+        if (fileHashes != null) {
+            fileHashes.remove(name);
+        }
     }
 
     public void addNewFile(String name)
@@ -49,6 +117,11 @@ public class VersionMetaData
         trackedFiles.add(name);
     }
 
+    public String getFileHash(String name)
+    {
+        return fileHashes == null ? null : fileHashes.get(name);
+    }
+
     public void addNewMessage(String message)
     {
         this.message.append(message);
@@ -0,0 +1,517 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold tier of the version metadata. Versions are grouped by number, {@value #GROUP_VERSIONS} to a group; once
+ * versions of a group are cold, their {@code <n>/meta.json} files are moved into the group's segment, an immutable
+ * file holding their metadata deflated in blocks of about {@value #BLOCK_BYTES} bytes, followed by an index of
+ * where every version is and its checksum. A segment is named {@code <first>.<count>.seg} after the first version
+ * of its group and the number of versions it holds. Packing more versions of a group writes a new segment with
+ * all of them before the old one is removed, so a segment never changes once written and a version is always
+ * readable, loose or packed. In an encrypted repository every block and the index are encrypted on their own.
+ *
+ * <p>Each segment keeps its last few inflated blocks, so that reading neighbouring versions, as history walks
+ * and rebuilding the indexes do, inflates a block only once.
+ */
+final class VersionSegments
+{
+    static final String DIRECTORY = "segments";
+    static final int GROUP_VERSIONS = 256;
+    // versions kept loose; older ones are packed as soon as their whole group is
+    static final int KEEP_VERSIONS = Integer.getInteger("gvt.tiering.keep", 256);
+    // versions whose metadata is older are packed too; 0 packs by count only
+    static final int AGE_DAYS = Integer.getInteger("gvt.tiering.age", 0);
+    static final boolean AUTO = Boolean.parseBoolean(System.getProperty("gvt.tiering.auto", "true"));
+
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int CACHED_BLOCKS = 4;
+    private static final byte[] MAGIC = {'G', 'V', 'T', 'S'};
+    private static final byte FORMAT = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int TRAILER_BYTES = Long.BYTES + Integer.BYTES + MAGIC.length;
+    private static final Pattern NAME = Pattern.compile("(\\d+)\\.(\\d+)\\.seg");
+
+    private final Path gvtDir;
+    private final Path directory;
+    private final Path failureFile;
+    private final Gson gson;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private boolean scanned;
+    private Encryption encryption;
+
+    VersionSegments(Path gvtDir, Gson gson)
+    {
+        this.gvtDir = gvtDir;
+        this.directory = gvtDir.resolve(DIRECTORY);
+        this.failureFile = gvtDir.resolve(DIRECTORY + ".failed");
+        this.gson = gson;
+    }
+
+    void encryptWith(Encryption encryption)
+    {
+        this.encryption = encryption;
+    }
+
+    /**
+     * Returns the metadata of {@code version} as JSON, or {@code null} when it is not packed.
+     */
+    byte[] read(int version) throws IOException
+    {
+        Segment segment = find(version);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return segment.read(version);
+        } catch (NoSuchFileException e) {
+            // replaced by a segment holding more versions of the group
+            rescan();
+            segment = find(version);
+            return (segment == null) ? null : segment.read(version);
+        }
+    }
+
+    /**
+     * Records why packing after a commit failed, for fsck to report until packing succeeds again.
+     */
+    void recordFailure(IOException failure) throws IOException
+    {
+        AtomicFiles.write(failureFile, String.valueOf(failure).getBytes(StandardCharsets.UTF_8));
+    }
+
+    void clearFailure() throws IOException
+    {
+        Files.deleteIfExists(failureFile);
+    }
+
+    /**
+     * Returns the recorded packing failure, or {@code null} when the last packing succeeded.
+     */
+    String failure() throws IOException
+    {
+        try {
+            return Files.readString(failureFile, StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of versions packed in the group starting at {@code first}.
+     */
+    synchronized int count(int first) throws IOException
+    {
+        scanIfNeeded();
+        Segment segment = segments.get(first);
+        return (segment == null) ? 0 : segment.count;
+    }
+
+    /**
+     * Picks up segments written by another instance, e.g. a maintenance run in another process.
+     */
+    synchronized void rescan() throws IOException
+    {
+        Map<Integer, Segment> found = new HashMap<>();
+        for (Path file : list()) {
+            Matcher matcher = NAME.matcher(file.getFileName().toString());
+            if (matcher.matches()) {
+                Segment segment = new Segment(file, Integer.parseInt(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)));
+                found.merge(segment.first, segment, (a, b) -> (a.count >= b.count) ? a : b);
+            }
+        }
+        for (Segment segment : found.values()) {
+            Segment known = segments.get(segment.first);
+            if (known == null || !known.file.equals(segment.file)) {
+                segments.put(segment.first, segment);
+            }
+        }
+        segments.keySet().retainAll(found.keySet());
+        scanned = true;
+    }
+
+    /**
+     * Moves the loose metadata of {@code versions}, all from the group starting at {@code first}, into the group's
+     * segment. Versions whose metadata fails its checksum, and versions of the first releases that keep revisions
+     * in their directory, stay loose.
+     */
+    MaintenanceResult pack(int first, List<Integer> versions) throws IOException
+    {
+        Map<Integer, byte[]> packed = new TreeMap<>();
+        long bytesBefore = 0;
+        Segment previous;
+        synchronized (this) {
+            scanIfNeeded();
+            previous = segments.get(first);
+        }
+        if (previous != null) {
+            packed.putAll(previous.readAll());
+            bytesBefore += Files.size(previous.file);
+        }
+
+        Map<Integer, Path> moved = new TreeMap<>();
+        for (int version : versions) {
+            Path versionDir = gvtDir.resolve(Integer.toString(version));
+            byte[] json = readLoose(version, versionDir);
+            if (json != null) {
+                packed.put(version, json);
+                moved.put(version, versionDir);
+                bytesBefore += size(versionDir);
+            }
+        }
+        if (moved.isEmpty()) {
+            return new MaintenanceResult(0, 0, 0, 0);
+        }
+
+        Files.createDirectories(directory);
+        Path file = directory.resolve(first + "." + packed.size() + ".seg");
+        byte[] content = write(packed);
+        AtomicFiles.write(file, content);
+        synchronized (this) {
+            segments.put(first, new Segment(file, first, packed.size()));
+        }
+        if (previous != null && !previous.file.equals(file)) {
+            Files.deleteIfExists(previous.file);
+        }
+        for (Path versionDir : moved.values()) {
+            Files.deleteIfExists(versionDir.resolve(VersionMetaData.CHECKSUM_FILE_NAME));
+            Files.deleteIfExists(versionDir.resolve(VersionMetaData.FILE_NAME));
+            Files.deleteIfExists(versionDir);
+        }
+        return new MaintenanceResult(moved.size(), 1, bytesBefore, content.length);
+    }
+
+    private synchronized Segment find(int version) throws IOException
+    {
+        scanIfNeeded();
+        Map.Entry<Integer, Segment> entry = segments.floorEntry(version);
+        return (entry == null || version >= entry.getKey() + GROUP_VERSIONS) ? null : entry.getValue();
+    }
+
+    private void scanIfNeeded() throws IOException
+    {
+        if (!scanned) {
+            rescan();
+        }
+    }
+
+    private List<Path> list() throws IOException
+    {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    /**
+     * Returns the metadata of a loose version as JSON, or {@code null} when it must stay loose.
+     */
+    private byte[] readLoose(int version, Path versionDir) throws IOException
+    {
+        byte[] stored;
+        try (Stream<Path> files = Files.list(versionDir)) {
+            if (files.anyMatch(file -> !isMetadata(file))) {
+                return null;
+            }
+            stored = Files.readAllBytes(versionDir.resolve(VersionMetaData.FILE_NAME));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Path checksumFile = versionDir.resolve(VersionMetaData.CHECKSUM_FILE_NAME);
+        if (Files.isRegularFile(checksumFile)
+                && !Files.readString(checksumFile, StandardCharsets.UTF_8).trim().equals(Hashing.hash(stored))) {
+            return null;
+        }
+        byte[] json = (encryption == null) ? stored : encryption.decrypt(stored);
+        try {
+            VersionMetaData metaData = gson.fromJson(new String(json, StandardCharsets.UTF_8), VersionMetaData.class);
+            if (metaData == null || metaData.getVersion() == null || metaData.getVersion() != version
+                    || !metaData.hasTree()) {
+                return null;
+            }
+        } catch (JsonParseException e) {
+            return null;
+        }
+        return json;
+    }
+
+    private static boolean isMetadata(Path file)
+    {
+        String name = file.getFileName().toString();
+        return name.equals(VersionMetaData.FILE_NAME) || name.equals(VersionMetaData.CHECKSUM_FILE_NAME);
+    }
+
+    private static long size(Path versionDir) throws IOException
+    {
+        long size = 0;
+        try (Stream<Path> files = Files.list(versionDir)) {
+            for (Path file : files.toList()) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    private byte[] write(Map<Integer, byte[]> versions) throws IOException
+    {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(MAGIC);
+        file.write(FORMAT);
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(index);
+        ByteArrayOutputStream blockTable = new ByteArrayOutputStream();
+        DataOutputStream blocks = new DataOutputStream(blockTable);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES * 2);
+        int blockCount = 0;
+
+        entries.writeInt(versions.size());
+        for (Map.Entry<Integer, byte[]> version : versions.entrySet()) {
+            byte[] json = version.getValue();
+            entries.writeInt(version.getKey());
+            entries.writeInt(blockCount);
+            entries.writeInt(block.size());
+            entries.writeInt(json.length);
+            entries.write(HexFormat.of().parseHex(Hashing.hash(json)));
+            block.write(json);
+            if (block.size() >= BLOCK_BYTES) {
+                writeBlock(file, blocks, block);
+                blockCount++;
+            }
+        }
+        if (block.size() > 0) {
+            writeBlock(file, blocks, block);
+            blockCount++;
+        }
+        entries.writeInt(blockCount);
+        blockTable.writeTo(entries);
+
+        byte[] indexBytes = seal(index.toByteArray());
+        long indexPosition = file.size();
+        file.write(indexBytes);
+        file.write(ByteBuffer.allocate(TRAILER_BYTES).putLong(indexPosition).putInt(indexBytes.length).put(MAGIC)
+            .array());
+        return file.toByteArray();
+    }
+
+    private void writeBlock(ByteArrayOutputStream file, DataOutputStream blocks, ByteArrayOutputStream block)
+        throws IOException
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(block.size() / 4);
+        try {
+            deflater.setInput(block.toByteArray());
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] sealed = seal(deflated.toByteArray());
+        blocks.writeLong(file.size());
+        blocks.writeInt(sealed.length);
+        blocks.writeInt(block.size());
+        file.write(sealed);
+        block.reset();
+    }
+
+    private byte[] seal(byte[] content) throws IOException
+    {
+        return (encryption == null) ? content : encryption.encrypt(content);
+    }
+
+    private byte[] open(byte[] sealed) throws IOException
+    {
+        return (encryption == null) ? sealed : encryption.decrypt(sealed);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException
+    {
+        if (position < 0 || length < 0) {
+            throw new IOException("Corrupted segment");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private record Entry(int block, int offset, int length, String hash)
+    {
+    }
+
+    private final class Segment
+    {
+        private final Path file;
+        private final int first;
+        private final int count;
+        private Map<Integer, Entry> entries;
+        private long[] blockPositions;
+        private int[] blockLengths;
+        private int[] blockSizes;
+        private final LinkedHashMap<Integer, byte[]> blocks = new LinkedHashMap<>(8, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)
+            {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+        Segment(Path file, int first, int count)
+        {
+            this.file = file;
+            this.first = first;
+            this.count = count;
+        }
+
+        synchronized byte[] read(int version) throws IOException
+        {
+            loadIndex();
+            Entry entry = entries.get(version);
+            if (entry == null) {
+                return null;
+            }
+            byte[] block = block(entry.block());
+            if (entry.offset() + entry.length() > block.length) {
+                throw new IOException("Corrupted segment " + file.getFileName() + ": version " + version);
+            }
+            byte[] json = Arrays.copyOfRange(block, entry.offset(), entry.offset() + entry.length());
+            if (!entry.hash().equals(Hashing.hash(json))) {
+                throw new IOException("Metadata of version " + version + " in segment " + file.getFileName()
+                    + " fails its checksum");
+            }
+            return json;
+        }
+
+        synchronized Map<Integer, byte[]> readAll() throws IOException
+        {
+            loadIndex();
+            Map<Integer, byte[]> all = new TreeMap<>();
+            for (int version : entries.keySet()) {
+                all.put(version, read(version));
+            }
+            return all;
+        }
+
+        private void loadIndex() throws IOException
+        {
+            if (entries != null) {
+                return;
+            }
+            byte[] index;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = readFully(channel, 0, MAGIC.length + 1);
+                ByteBuffer trailer = readFully(channel, size - TRAILER_BYTES, TRAILER_BYTES);
+                long indexPosition = trailer.getLong();
+                int indexLength = trailer.getInt();
+                byte[] magic = new byte[MAGIC.length];
+                trailer.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || !Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)
+                        || indexPosition < 0 || indexLength < 0 || indexPosition + indexLength > size - TRAILER_BYTES) {
+                    throw new IOException("Not a gvt segment: " + file.getFileName());
+                }
+                if (header.get(MAGIC.length) != FORMAT) {
+                    throw new IOException("Unsupported segment format " + header.get(MAGIC.length));
+                }
+                index = open(readFully(channel, indexPosition, indexLength).array());
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            Map<Integer, Entry> parsed = new HashMap<>();
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                int version = in.readInt();
+                int block = in.readInt();
+                int offset = in.readInt();
+                int length = in.readInt();
+                byte[] hash = new byte[HASH_BYTES];
+                in.readFully(hash);
+                parsed.put(version, new Entry(block, offset, length, HexFormat.of().formatHex(hash)));
+            }
+            int blockCount = in.readInt();
+            blockPositions = new long[blockCount];
+            blockLengths = new int[blockCount];
+            blockSizes = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockPositions[i] = in.readLong();
+                blockLengths[i] = in.readInt();
+                blockSizes[i] = in.readInt();
+            }
+            entries = parsed;
+        }
+
+        private byte[] block(int block) throws IOException
+        {
+            byte[] content = blocks.get(block);
+            if (content != null) {
+                return content;
+            }
+            if (block < 0 || block >= blockPositions.length) {
+                throw new IOException("Corrupted segment " + file.getFileName() + ": no block " + block);
+            }
+            byte[] deflated;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                deflated = open(readFully(channel, blockPositions[block], blockLengths[block]).array());
+            }
+            content = new byte[blockSizes[block]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(deflated);
+                int inflated = 0;
+                while (inflated < content.length && !inflater.finished()) {
+                    int n = inflater.inflate(content, inflated, content.length - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != content.length) {
+                    throw new IOException("Corrupted segment " + file.getFileName() + ": block " + block);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted segment " + file.getFileName() + ": block " + block, e);
+            } finally {
+                inflater.end();
+            }
+            blocks.put(block, content);
+            return content;
+        }
+    }
+}
@@ -1,12 +1,42 @@
 package uj.wmii.pwj.gvt;
 
+import java.util.List;
+
 public interface VersionService 
 {    
     void init(String message);
+    void init(String message, boolean encrypted);
     void add(String path, String message);
+    void addRecursive(String directory, String message);
     void detach(String path, String message);
     void commit(String path, String message);
+    void commit(String path, String message, boolean allowEmpty);
     void checkout(Integer version);
+    void checkout(Integer version, String target, List<String> files);
+    void checkout(String revision, String target, List<String> files);
     void version(Integer version);
     void history(Integer n);
+    void status();
+    void watch();
+    void log(String grep, String file);
+    void fileHistory(String file);
+    void blame(String file, Integer version);
+    void fsck();
+    void maintenance(Integer keep, Integer ageDays);
+    void createBundle(String file, Integer since);
+    void importBundle(String file);
+    void archive(String revision, ArchiveFormat format, String output);
+    void branch(String name, String startPoint);
+    void tag(String name, String startPoint);
+    void switchBranch(String name);
+    void merge(String revision, String message);
+    void continueMerge(String message);
+    void abortMerge();
+    void serve(int port);
+    void push(String address);
+    void pull(String address);
+    void cloneFrom(String source, boolean lazy);
+    void stash();
+    void stashPop();
+    void bisect(String command, String good, String bad, Integer jobs);
 }
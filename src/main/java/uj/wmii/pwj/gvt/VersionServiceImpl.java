@@ -1,443 +1,849 @@
 package uj.wmii.pwj.gvt;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
-import java.io.Reader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
 public class VersionServiceImpl implements VersionService
 {
-    private final ExitHandler exitHandler;
-
-    private final Path path;
-    private final Path gvtDir;
-    private final Path repoMetaFile;
-
-    private Path versionDir;
-    private Path versionMetaFile;
+    private static final String SYSTEM_PROBLEM = "Underlying system problem. See ERR for details.";
 
-    private final Gson gson;
-
-    private RepoMetaData repoMetaData;
-    private VersionMetaData versionMetaData;
+    private final ExitHandler exitHandler;
+    private final GvtRepository repository;
+    private final Output out;
 
     public VersionServiceImpl(String path, ExitHandler exitHandler)
     {
-        this.path = Paths.get(path);
-        this.gvtDir = this.path.resolve(".gvt");
-        this.repoMetaFile = gvtDir.resolve("repo.json");
+        this(new GvtRepositoryImpl(Paths.get(path)), exitHandler);
+    }
 
-        this.exitHandler = exitHandler;
-        gson = new GsonBuilder().setPrettyPrinting().create();
+    public VersionServiceImpl(GvtRepository repository, ExitHandler exitHandler)
+    {
+        this(repository, exitHandler, new Output());
+    }
 
-        if (isInitialized()) {
-            try {
-                loadMetaData();
-            } catch (Exception e) {
-                exitHandler.exit(-3, "Underlying system problem. See ERR for details");
-            }
-        }
+    VersionServiceImpl(GvtRepository repository, ExitHandler exitHandler, Output out)
+    {
+        this.repository = repository;
+        this.exitHandler = exitHandler;
+        this.out = out;
     }
 
     @Override
     public void init(String message)
     {
-        if (Files.exists(gvtDir) && Files.isDirectory(gvtDir)) {
-            exitHandler.exit(10, "Current directory is already initialized.");
-        }
+        init(message, false);
+    }
 
+    @Override
+    public void init(String message, boolean encrypted)
+    {
         try {
-            setupDirectory(message);
-        } catch (Exception e) {
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details");
+            repository.init(message, encrypted);
+            exit(0, "Current directory initialized successfully.");
+        } catch (AlreadyInitializedException e) {
+            exit(10, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
-
-        exitHandler.exit(0, "Current directory initialized successfully.");
     }
 
     @Override
     public void add(String path, String message)
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
+        try {
+            ChangeResult result = repository.add(path, message);
+            if (result.status() == ChangeResult.Status.ALREADY_ADDED) {
+                exit(0, "File already added. File: " + path);
+                return;
+            }
+            out.println("File " + path + " added successfully.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (MissingFileException e) {
+            exit(21, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        Path filePath = Paths.get(path);
-        if (!Files.exists(filePath) || (Files.exists(filePath) && Files.isDirectory(filePath))) {
-            exitHandler.exit(21, "File not found. File: " + path);
+    @Override
+    public void addRecursive(String directory, String message)
+    {
+        try {
+            BatchResult result = repository.addRecursive(directory, message);
+            if (!result.isVersionCreated()) {
+                exit(0, "No new files to add. Directory: " + directory);
+                return;
+            }
+            out.println("Directory " + directory + " added successfully. Files added: " + result.files());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (MissingFileException e) {
+            exit(21, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        String fileName = filePath.getFileName().toString();
-
+    @Override
+    public void detach(String path, String message)
+    {
         try {
-            if (versionMetaData.isFileExist(fileName)) {
-                exitHandler.exit(0, "File already added. File: " + path);
+            ChangeResult result = repository.detach(path, message);
+            if (result.status() == ChangeResult.Status.NOT_ADDED) {
+                exit(0, "File " + result.fileName() + " is not added to gvt.");
+                return;
             }
+            exit(0, "File " + result.fileName() + " detached successfully.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            createNewVersionFromLast();
+    @Override
+    public void commit(String path, String message)
+    {
+        commit(path, message, false);
+    }
 
-            Path targetPath = versionDir.resolve(fileName);
-            Files.copy(filePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+    @Override
+    public void commit(String path, String message, boolean allowEmpty)
+    {
+        try {
+            ChangeResult result = repository.commit(path, message, allowEmpty);
+            if (result.status() == ChangeResult.Status.NOT_ADDED) {
+                exit(0, "File is not added to gvt. File: " + result.fileName());
+                return;
+            }
+            if (result.status() == ChangeResult.Status.UNCHANGED) {
+                exit(0, "File not changed, nothing to commit. File: " + result.fileName());
+                return;
+            }
+            out.println("File " + path + " committed successfully.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (MissingFileException e) {
+            exit(51, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(52, "File cannot be committed, see ERR for details. File: " + path, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            versionMetaData.addNewFile(fileName);
+    @Override
+    public void checkout(Integer v)
+    {
+        checkout(v, null, null);
+    }
 
-            String commitMessage;
-            if (message == null || message.isEmpty()) {
-                commitMessage = "Added file: " + fileName;
+    @Override
+    public void checkout(Integer v, String target, List<String> files)
+    {
+        try {
+            repository.checkout(v, (target == null) ? null : Paths.get(target), files);
+            if (target != null) {
+                out.println("Version " + v + " exported to: " + target);
+            } else if (files != null) {
+                out.println("Files restored from version: " + v);
             } else {
-                commitMessage = message + ".";
+                out.println("Checkout successful for version: " + v);
             }
-
-            versionMetaData.addNewMessage(commitMessage);
-            saveVersionMetaData();
-
-            System.out.println("File " + path + " added successfully.");
-
-        } catch (Exception ex) {
-            ex.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(40, e.getMessage());
+        } catch (MissingFileException e) {
+            exit(41, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
+    /**
+     * Checks out the version a branch or tag points to; names that are not refs are reported as invalid versions.
+     */
     @Override
-    public void detach(String path, String message)
+    public void checkout(String revision, String target, List<String> files)
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
+        int version;
+        try {
+            version = repository.resolve(revision);
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+            return;
+        } catch (RefException | InvalidVersionException e) {
+            exit(40, "Invalid version number: " + revision);
+            return;
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+            return;
+        } finally {
+            out.flush();
         }
+        checkout(version, target, files);
+    }
 
-        Path filePath = Paths.get(path);
-        String fileName = filePath.getFileName().toString();
-
-        if (!versionMetaData.isFileExist(fileName)) {
-            exitHandler.exit(0, "File " + fileName + " is not added to gvt.");
+    @Override
+    public void version(Integer version)
+    {
+        try {
+            VersionInfo info = repository.version(version);
+            out.println("Version: " + info.version());
+            out.print(info.message());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(60, e.getMessage() + ".");
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
+    @Override
+    public void history(Integer n)
+    {
         try {
-            createNewVersionFromLast();
+            repository.history(n, this::printSummary);
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            if (versionMetaData.isFileExist(fileName)) {
-                versionMetaData.detach(fileName);
-                try {
-                    Files.deleteIfExists(versionDir.resolve(fileName));
-                } catch (Exception ignore) {
-                }
+    @Override
+    public void status()
+    {
+        try {
+            List<FileStatus> statuses = repository.status();
+            if (statuses.isEmpty()) {
+                out.println("Nothing to commit, working tree clean.");
+                return;
             }
-
-            StringBuilder msg = new StringBuilder("Detached file: " + fileName);
-            if (message != null && !message.isEmpty()) {
-                msg.append(System.lineSeparator()).append(message);
+            for (FileStatus status : statuses) {
+                String label = (status.state() == FileStatus.State.MISSING) ? "Missing: " : "Modified: ";
+                out.println(label + status.fileName());
             }
-            versionMetaData.addNewMessage(msg.toString());
-
-            saveVersionMetaData();
-
-            exitHandler.exit(0, "File " + fileName + " detached successfully.");
-
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
     @Override
-    public void commit(String path, String message)
+    public void watch()
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
-        }
-
-        Path filePath = Paths.get(path);
-        String fileName = filePath.getFileName().toString();
-
-        if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-            exitHandler.exit(51, "File not found. File: " + path);
+        try (WorkingTreeWatcher watcher = repository.watch()) {
+            closeOnShutdown(watcher);
+            out.println("Watching working tree for changes. Press Ctrl+C to stop.").flush();
+            watcher.run();
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (WatcherRunningException e) {
+            exit(110, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        if (!versionMetaData.isFileExist(fileName)) {
-            exitHandler.exit(0, "File is not added to gvt. File: " + fileName);
-        }
+    /**
+     * Closes {@code resource} when the JVM stops, which is how commands that run until interrupted end.
+     */
+    private static void closeOnShutdown(Closeable resource)
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }));
+    }
 
+    @Override
+    public void log(String grep, String file)
+    {
         try {
-            createNewVersionFromLast();
-
-            Path targetPath = versionDir.resolve(fileName);
-            Files.copy(filePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-
-            String commitMessage = "Committed file: " + fileName;
-            if (message != null && !message.isEmpty()) {
-                commitMessage = commitMessage + System.lineSeparator() + message;
+            if (grep != null) {
+                repository.findByMessage(grep, this::printSummary);
+            } else if (file != null) {
+                repository.findByFile(file, this::printSummary);
+            } else {
+                repository.history(0, this::printSummary);
             }
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            versionMetaData.addNewMessage(commitMessage);
-            saveVersionMetaData();
-
-            System.out.println("File " + path + " committed successfully.");
+    private void printSummary(VersionInfo info)
+    {
+        out.print(info.version()).print(": ").println(info.firstLine());
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(52, "File cannot be committed, see ERR for details. File: " + fileName);
-        }
+    @Override
+    public void fileHistory(String file)
+    {
+        log(null, file);
     }
 
     @Override
-    public void checkout(Integer v)
+    public void blame(String file, Integer version)
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
+        try {
+            repository.blame(file, version, line -> out.print(line.version()).print(": ").println(line.text()));
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(60, e.getMessage() + ".");
+        } catch (UntrackedFileException e) {
+            exit(81, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        if (!repoMetaData.isVersionExisting(v)) {
-            exitHandler.exit(40, "Invalid version number: " + v);
+    @Override
+    public void fsck()
+    {
+        try {
+            FsckReport report = repository.fsck();
+            for (FsckReport.Problem problem : report.problems()) {
+                out.println(problem.toString());
+            }
+            if (!report.isClean()) {
+                exit(90, "Repository is damaged. Problems found: " + report.problems().size());
+                return;
+            }
+            out.println("No problems found. Versions checked: " + report.checkedVersions()
+                + ", stored revisions checked: " + report.checkedObjects());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
+    @Override
+    public void maintenance(Integer keep, Integer ageDays)
+    {
         try {
-            VersionMetaData targetMeta = readVersion(v);
-
-            Path targetVersionDir = gvtDir.resolve(v.toString());
-
-            for (String fileName : targetMeta.getFileNames()) {
-                Path src = targetVersionDir.resolve(fileName);
-                Path dest = path.resolve(fileName);
-
-                if (Files.exists(src)) {
-                    Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-                }
+            MaintenanceResult result = repository.maintenance(keep, ageDays);
+            if (result.versions() == 0) {
+                exit(0, "No cold versions to pack.");
+                return;
             }
-
-            System.out.println("Checkout successful for version: " + v);
-
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+            out.println("Cold versions packed: " + result.versions() + ", segments written: " + result.segments()
+                + ", bytes: " + result.bytesBefore() + " -> " + result.bytesAfter());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
     @Override
-    public void version(Integer version)
+    public void createBundle(String file, Integer since)
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
+        try {
+            BundleResult result = repository.createBundle(Paths.get(file), since);
+            out.println("Bundle " + file + " created successfully. Versions: " + result.versions()
+                + ", objects: " + result.objects() + ", bytes: " + result.bytes());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(60, e.getMessage() + ".");
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        if (version == null || version == -1) {
-            Integer curr = repoMetaData.getCurrentVersion();
-            if (curr != null) {
-                version = curr;
-            } else {
-                version = repoMetaData.getLatestVersion();
-            }
+    /**
+     * Writes the archive to {@code output}, or to standard output when it is {@code "-"}; in that case nothing else
+     * is printed on success, so that the archive can be piped.
+     */
+    @Override
+    public void archive(String revision, ArchiveFormat format, String output)
+    {
+        int version;
+        try {
+            version = repository.resolve(revision);
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+            return;
+        } catch (RefException | InvalidVersionException e) {
+            exit(40, "Invalid version number: " + revision);
+            return;
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+            return;
         }
 
-        if (repoMetaData.isVersionExisting(version)) {
-            try {
-                VersionMetaData metaData = readVersion(version);
-
-                String msg = metaData.getMessage();
-                if (msg == null) {
-                    msg = "";
+        Path file = "-".equals(output) ? null : Paths.get(output);
+        try {
+            out.flush();
+            if (file == null) {
+                repository.archive(version, format, System.out);
+                if (System.out.checkError()) {
+                    throw new IOException("Could not write archive to standard output");
                 }
-
-                System.out.println("Version: " + metaData.getVersion());
-                System.out.print(msg);
-
-            } catch (Exception ee) {
-                exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+                return;
             }
-        } else {
-            exitHandler.exit(60, "Invalid version number: " + version + ".");
+            ArchiveResult result;
+            try (OutputStream stream = Files.newOutputStream(file)) {
+                result = repository.archive(version, format, stream);
+            }
+            out.println("Archive " + output + " created successfully. Version: " + result.version() + ", files: "
+                + result.files() + ", bytes: " + result.bytes());
+        } catch (GvtException | IOException e) {
+            deletePartialArchive(file);
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
-    @Override
-    public void history(Integer n)
+    private void deletePartialArchive(Path file)
     {
-        if (!isInitialized()) {
-            exitHandler.exit(
-                -2,
-                "Current directory is not initialized. Please use \"init\" command to initialize."
-            );
+        if (file == null) {
+            return;
         }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
 
-        ArrayList<Integer> versions = repoMetaData.getVersions();
-        ArrayList<String> result = new ArrayList<>();
-
+    @Override
+    public void importBundle(String file)
+    {
         try {
-            int N = versions.size();
-            if (N == 0) {
+            BundleResult result = repository.importBundle(Paths.get(file));
+            if (result.versions() == 0) {
+                exit(0, "No new versions in bundle " + file + ".");
                 return;
             }
+            out.println("Bundle " + file + " imported successfully. Versions: " + result.versions()
+                + ", objects: " + result.objects());
+        } catch (AlreadyInitializedException e) {
+            exit(10, e.getMessage());
+        } catch (MissingFileException e) {
+            exit(21, e.getMessage());
+        } catch (InvalidBundleException e) {
+            exit(101, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            if (n == 0) {
-                n = N;
+    @Override
+    public void branch(String name, String startPoint)
+    {
+        try {
+            if (name == null) {
+                String current = repository.currentBranch().name();
+                for (Ref branch : repository.branches()) {
+                    out.print(branch.name().equals(current) ? "* " : "  ")
+                        .print(branch.name()).print(": ").print(branch.version()).println();
+                }
+                return;
             }
+            Ref branch = repository.createBranch(name, startPoint);
+            out.println("Branch " + branch.name() + " created at version: " + branch.version());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(60, e.getMessage() + ".");
+        } catch (RefException e) {
+            exit(121, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-            int start = Math.max(0, N - n);
-
-            for (int i = start; i < N; i++) {
-                VersionMetaData metaData = readVersion(versions.get(i));
-
-                String fullMessage = metaData.getMessage();
-                if (fullMessage == null) {
-                    fullMessage = "";
+    @Override
+    public void tag(String name, String startPoint)
+    {
+        try {
+            if (name == null) {
+                for (Ref tag : repository.tags()) {
+                    out.print(tag.name()).print(": ").print(tag.version()).println();
                 }
-
-                int idx = fullMessage.indexOf('\n');
-                String firstLine = (idx >= 0) ? fullMessage.substring(0, idx) : fullMessage;
-
-                result.add(metaData.getVersion() + ": " + firstLine);
+                return;
             }
-        } catch (Exception e) {
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+            Ref tag = repository.createTag(name, startPoint);
+            out.println("Tag " + tag.name() + " created at version: " + tag.version());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (InvalidVersionException e) {
+            exit(60, e.getMessage() + ".");
+        } catch (RefException e) {
+            exit(121, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        for (String mess : result) {
-            System.out.println(mess);
+    @Override
+    public void switchBranch(String name)
+    {
+        try {
+            Ref branch = repository.switchBranch(name);
+            out.println("Switched to branch " + branch.name() + " at version: " + branch.version());
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (RefException e) {
+            exit(121, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
-    private boolean isInitialized()
+    @Override
+    public void merge(String revision, String message)
     {
-        if (!Files.exists(gvtDir)
-            || !Files.isDirectory(gvtDir)
-            || !Files.exists(repoMetaFile)
-            || Files.isDirectory(repoMetaFile)) {
-            return false;
+        try {
+            printMerge(repository.merge(revision, message));
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (RefException | InvalidVersionException e) {
+            exit(60, "Invalid version number: " + revision + ".");
+        } catch (MergeException e) {
+            exit(132, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
-        return true;
     }
 
-    private VersionMetaData readVersion(Integer v) throws Exception
+    @Override
+    public void continueMerge(String message)
     {
-        versionDir = gvtDir.resolve(v.toString());
-        versionMetaFile = versionDir.resolve("meta.json");
-
-        try (Reader reader = Files.newBufferedReader(versionMetaFile)) {
-            return gson.fromJson(reader, VersionMetaData.class);
+        try {
+            printMerge(repository.continueMerge(message));
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (MergeException e) {
+            exit(132, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
     }
 
-    private void setupDirectory(String message) throws Exception
+    @Override
+    public void abortMerge()
     {
-        Files.createDirectory(gvtDir);
-
-        this.repoMetaData = new RepoMetaData(0);
-
-        saveRepoMetaData();
-
-        createVersionDir(0, message);
+        try {
+            repository.abortMerge();
+            out.println("Merge aborted.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (MergeException e) {
+            exit(132, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
     }
 
-    private void createNewVersionFromLast() throws Exception
+    @Override
+    public void serve(int port)
     {
-        Integer lastVersion = repoMetaData.getLatestVersion();
-        Integer newVersion = lastVersion + 1;
+        try (SyncServer server = repository.serve(port)) {
+            closeOnShutdown(server);
+            out.print("Serving repository on port ").print(server.getPort()).println(". Press Ctrl+C to stop.").flush();
+            server.run();
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-        Path lastVersionDir = gvtDir.resolve(lastVersion.toString());
-        Path newVersionDir = gvtDir.resolve(newVersion.toString());
+    @Override
+    public void push(String address)
+    {
+        try {
+            SyncResult result = repository.push(address);
+            printSync("Push to " + address, result);
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (SyncException e) {
+            exit(141, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-        Files.createDirectory(newVersionDir);
+    @Override
+    public void pull(String address)
+    {
+        try {
+            SyncResult result = repository.pull(address);
+            printSync("Pull from " + address, result);
+        } catch (AlreadyInitializedException e) {
+            exit(10, e.getMessage());
+        } catch (SyncException e) {
+            exit(141, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-        HashSet<String> newFilesSet = new HashSet<>();
-        for (String fileName : versionMetaData.getFileNames()) {
-            Path src = lastVersionDir.resolve(fileName);
-            Path dest = newVersionDir.resolve(fileName);
-            if (Files.exists(src)) {
-                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
+    @Override
+    public void cloneFrom(String source, boolean lazy)
+    {
+        try {
+            CloneResult result = repository.cloneFrom(Paths.get(source), lazy);
+            out.print("Repository " + source + " cloned at version: ").print(result.version());
+            switch (result.sharing()) {
+                case HARDLINKS:
+                    out.println(", linked objects: " + result.objects());
+                    break;
+                case ALTERNATES:
+                    out.println(", objects shared with the source repository.");
+                    break;
+                default:
+                    out.println(", objects fetched on first use.");
+                    break;
             }
-            newFilesSet.add(fileName);
+        } catch (CloneException e) {
+            exit(151, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
-
-        repoMetaData.addVersion(newVersion);
-        repoMetaData.setVersion(newVersion);
-        saveRepoMetaData();
-
-        versionDir = newVersionDir;
-        versionMetaFile = newVersionDir.resolve("meta.json");
-
-        versionMetaData = new VersionMetaData(
-            newVersion,
-            "",
-            newFilesSet
-        );
-
-        saveVersionMetaData();
     }
 
-    private void createVersionDir(Integer version, String message) throws Exception
+    @Override
+    public void stash()
     {
-        Path versionDirPath = gvtDir.resolve(version.toString());
-
-        if (Files.exists(versionDirPath)) {
-            Path versionMetaFilePath = versionDirPath.resolve("meta.json");
-            if (Files.exists(versionMetaFilePath) && !Files.isDirectory(versionMetaFilePath)) {
+        try {
+            StashResult result = repository.stash();
+            if (result.files() == 0) {
+                out.println("No local changes to stash.");
                 return;
             }
+            out.print("Local changes stashed. Files: ").print(result.files()).println();
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (StashException e) {
+            exit(161, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
         }
+    }
 
-        Files.createDirectory(versionDirPath);
-
-        versionMetaData = new VersionMetaData(version, message, new HashSet<String>());
-        versionMetaFile = versionDirPath.resolve("meta.json");
-
-        saveVersionMetaData();
+    @Override
+    public void stashPop()
+    {
+        try {
+            StashResult result = repository.stashPop();
+            for (String conflict : result.conflicts()) {
+                out.println("Conflict: " + conflict);
+            }
+            if (!result.conflicts().isEmpty()) {
+                exit(162, "Stash applied with conflicts. Resolve them in the working tree.");
+                return;
+            }
+            out.print("Stashed changes restored. Files: ").print(result.files()).println();
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (StashException e) {
+            exit(161, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
     }
 
-    private void loadMetaData() throws Exception
+    private void printSync(String operation, SyncResult result)
     {
-        loadRepoMetaData();
-        loadVersionMetaData();
+        if (result.versions() == 0) {
+            out.println("Already up to date.");
+            return;
+        }
+        out.println(operation + " successful. Versions: " + result.versions() + ", objects: " + result.objects()
+            + ", bytes: " + result.bytes());
     }
 
-    private void loadRepoMetaData() throws Exception
+    private void printMerge(MergeResult result)
     {
-        try (Reader reader = Files.newBufferedReader(repoMetaFile)) {
-            repoMetaData = gson.fromJson(reader, RepoMetaData.class);
+        switch (result.status()) {
+            case UP_TO_DATE:
+                out.print("Already up to date. Version: ").print(result.version()).println();
+                break;
+            case FAST_FORWARD:
+                out.print("Fast-forward to version: ").print(result.version()).println();
+                break;
+            case MERGED:
+                out.print("Merge successful. Version: ").print(result.version()).println();
+                break;
+            default:
+                for (String conflict : result.conflicts()) {
+                    out.println("Conflict: " + conflict);
+                }
+                exit(131, "Merge has conflicts. Resolve them and use merge --continue.");
         }
     }
 
-    private void loadVersionMetaData() throws Exception
+    /**
+     * Runs {@code command} with the shell in a temporary copy of each version tested, with the version number in
+     * {@code GVT_BISECT_VERSION}. As with {@code git bisect run}, exit code 0 marks the version good, 125 skips it,
+     * 1 to 127 mark it bad and anything else aborts. The output of the command is discarded, since several runs go
+     * at once; {@code jobs} defaults to the number of processors.
+     */
+    @Override
+    public void bisect(String command, String good, String bad, Integer jobs)
     {
-        if (repoMetaData.getCurrentVersion() == null) return;
+        String revision = good;
+        try {
+            int goodVersion = repository.resolve(good);
+            revision = bad;
+            int badVersion = repository.resolve(bad);
+            int threads = (jobs == null) ? Runtime.getRuntime().availableProcessors() : jobs;
+            BisectResult result = repository.bisect(goodVersion, badVersion, threads,
+                (version, directory) -> runBisectCommand(command, version, directory));
+
+            if (result.skipped().isEmpty()) {
+                out.println("First bad version: " + result.firstBad());
+            } else {
+                StringBuilder candidates = new StringBuilder();
+                for (int version : result.skipped()) {
+                    candidates.append(version).append(", ");
+                }
+                out.println("First bad version is one of: " + candidates + result.firstBad());
+            }
+            out.println(repository.version(result.firstBad()).message());
+            out.println("Versions tested: " + result.tested() + " in " + result.rounds() + " rounds.");
+        } catch (NotInitializedException e) {
+            exit(-2, e.getMessage());
+        } catch (RefException | InvalidVersionException e) {
+            exit(40, "Invalid version number: " + revision);
+        } catch (BisectException e) {
+            exit(200, e.getMessage());
+        } catch (GvtException | IOException e) {
+            systemProblem(-3, SYSTEM_PROBLEM, e);
+        } finally {
+            out.flush();
+        }
+    }
 
-        versionDir = gvtDir.resolve(repoMetaData.getCurrentVersion().toString());
-        versionMetaFile = versionDir.resolve("meta.json");
+    private BisectPredicate.Verdict runBisectCommand(String command, int version, Path directory)
+        throws BisectException, IOException, InterruptedException
+    {
+        List<String> shell = System.getProperty("os.name", "").startsWith("Windows")
+            ? List.of("cmd", "/c", command)
+            : List.of("sh", "-c", command);
+        ProcessBuilder builder = new ProcessBuilder(shell)
+            .directory(directory.toFile())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD);
+        builder.environment().put("GVT_BISECT_VERSION", Integer.toString(version));
+        Process process = builder.start();
+        process.getOutputStream().close();
+        int code;
+        try {
+            code = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
 
-        try (Reader reader = Files.newBufferedReader(versionMetaFile)) {
-            versionMetaData = gson.fromJson(reader, VersionMetaData.class);
+        BisectPredicate.Verdict verdict;
+        if (code == 0) {
+            verdict = BisectPredicate.Verdict.GOOD;
+        } else if (code == 125) {
+            verdict = BisectPredicate.Verdict.SKIP;
+        } else if (code > 0 && code < 128) {
+            verdict = BisectPredicate.Verdict.BAD;
+        } else {
+            throw new BisectException("Bisect command exited with code " + code + " at version " + version + ".");
+        }
+        synchronized (out) {
+            out.println("Version " + version + ": " + verdict.name().toLowerCase(Locale.ROOT));
+            out.flush();
         }
+        return verdict;
     }
 
-    private void saveRepoMetaData() throws Exception
+    private void systemProblem(int code, String message, Exception e)
     {
-        String json = gson.toJson(repoMetaData);
-        Files.writeString(repoMetaFile, json);
+        // a missing or wrong key is not a system problem, and every command reports it the same way
+        if (e instanceof EncryptionException) {
+            exit(180, e.getMessage());
+            return;
+        }
+        e.printStackTrace(System.err);
+        exit(code, message);
     }
 
-    private void saveVersionMetaData() throws Exception
+    private void exit(int code, String message)
     {
-        String json = gson.toJson(versionMetaData);
-        Files.writeString(versionMetaFile, json);
+        out.flush();
+        exitHandler.exit(code, message);
     }
 }
@@ -0,0 +1,11 @@
+package uj.wmii.pwj.gvt;
+
+public class WatcherRunningException extends GvtException
+{
+    private static final long serialVersionUID = 1L;
+
+    public WatcherRunningException()
+    {
+        super("Working tree watcher is already running.");
+    }
+}
@@ -0,0 +1,193 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link DirtyState} of a working tree up to date from {@link WatchService} events, so {@code status}
+ * only compares the files touched since the last full scan. When events are lost (overflow) the tree is scanned
+ * again.
+ */
+public final class WorkingTreeWatcher implements Closeable
+{
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    @FunctionalInterface
+    interface Scanner
+    {
+        DirtyState.Snapshot scan() throws IOException;
+    }
+
+    private final Path root;
+    private final Path gvtDir;
+    private final DirtyState state;
+    private final Scanner scanner;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    private WatchService watchService;
+    private FileLock lock;
+    private Set<String> dirty = new HashSet<>();
+    private int baseVersion;
+    private volatile boolean closed;
+
+    WorkingTreeWatcher(Path root, DirtyState state, Scanner scanner)
+    {
+        this.root = root.toAbsolutePath().normalize();
+        this.gvtDir = this.root.resolve(".gvt");
+        this.state = state;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Takes the watcher lock, registers every directory of the working tree and records the initial full scan.
+     */
+    void start() throws GvtException, IOException
+    {
+        lock = state.lock();
+        if (lock == null) {
+            throw new WatcherRunningException();
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerAll(root);
+            rescan();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Processes events until {@link #close()} is called or the thread is interrupted.
+     */
+    public void run() throws IOException
+    {
+        boolean pending = false;
+        long lastFlush = System.nanoTime();
+        try {
+            while (!closed) {
+                WatchKey key = watchService.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    pending |= process(key);
+                }
+                boolean due = System.nanoTime() - lastFlush >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+                if (pending && !closed && (key == null || due)) {
+                    state.write(baseVersion, dirty);
+                    pending = false;
+                    lastFlush = System.nanoTime();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed by another thread
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean process(WatchKey key) throws IOException
+    {
+        Path directory = keys.get(key);
+        boolean overflow = false;
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path child = directory.resolve((Path) event.context());
+            if (child.startsWith(gvtDir)) {
+                continue;
+            }
+            dirty.add(TreeStore.toTreePath(root.relativize(child)));
+            changed = true;
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                registerAll(child);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+
+        if (overflow) {
+            registerAll(root);
+            rescan();
+            return true;
+        }
+        return changed;
+    }
+
+    private void rescan() throws IOException
+    {
+        DirtyState.Snapshot snapshot = scanner.scan();
+        baseVersion = snapshot.baseVersion();
+        dirty = new HashSet<>(snapshot.paths());
+        state.write(baseVersion, dirty);
+    }
+
+    private void registerAll(Path start) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                if (dir.equals(gvtDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                keys.put(dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                // removed while walking, its parent reports the deletion
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+            state.clear();
+        } finally {
+            if (lock != null) {
+                state.unlock(lock);
+            }
+        }
+    }
+}
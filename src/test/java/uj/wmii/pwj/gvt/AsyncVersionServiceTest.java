@@ -0,0 +1,162 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncVersionServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void streamHistoryStartsWhenSubscribedAndKeepsOrder() throws Exception {
+        GvtRepository repo = repositoryWithVersions(51);
+        List<Runnable> walks = new CopyOnWriteArrayList<>();
+        Flow.Publisher<VersionInfo> publisher = new AsyncVersionServiceImpl(repo, walks::add).streamHistory(null);
+        assertThat(walks).isEmpty();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        assertThat(walks).hasSize(1);
+        walks.get(0).run();
+        subscriber.done.get(10, TimeUnit.SECONDS);
+
+        assertThat(subscriber.received).extracting(VersionInfo::version)
+            .containsExactly(repo.history(null).stream().map(VersionInfo::version).toArray());
+        assertThat(subscriber.received).hasSize(52);
+
+        RecordingSubscriber second = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(second);
+        assertThat(walks).hasSize(2);
+        walks.get(1).run();
+        second.done.get(10, TimeUnit.SECONDS);
+        assertThat(second.received).hasSize(52);
+    }
+
+    @Test
+    public void streamHistoryDeliversNoMoreThanRequested() throws Exception {
+        GvtRepository repo = repositoryWithVersions(30);
+        RecordingSubscriber subscriber = new RecordingSubscriber(5);
+        new AsyncVersionServiceImpl(repo).streamHistory(null).subscribe(subscriber);
+
+        subscriber.awaitReceived(5);
+        assertThat(subscriber.done.isDone()).isFalse();
+
+        subscriber.request(10);
+        subscriber.awaitReceived(15);
+
+        subscriber.request(Long.MAX_VALUE);
+        subscriber.done.get(10, TimeUnit.SECONDS);
+        assertThat(subscriber.overrun).isFalse();
+        assertThat(subscriber.received).extracting(VersionInfo::version)
+            .containsExactly(repo.history(null).stream().map(VersionInfo::version).toArray());
+    }
+
+    @Test
+    public void concurrentCommitsThroughServicesOnSameDirectoryAreSerialised() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        for (int i = 0; i < 40; i++) {
+            Files.writeString(dir.resolve("f" + i + ".txt"), "before");
+            repo.add("f" + i + ".txt", "");
+            Files.writeString(dir.resolve("f" + i + ".txt"), "after");
+        }
+
+        AsyncVersionService first = new AsyncVersionServiceImpl(new GvtRepositoryImpl(dir));
+        AsyncVersionService second = new AsyncVersionServiceImpl(new GvtRepositoryImpl(dir.resolve("../" + dir.getFileName())));
+        List<CompletableFuture<ChangeResult>> commits = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            AsyncVersionService service = (i % 2 == 0) ? first : second;
+            commits.add(service.commit("f" + i + ".txt", ""));
+        }
+
+        List<Integer> created = new ArrayList<>();
+        for (CompletableFuture<ChangeResult> commit : commits) {
+            ChangeResult result = commit.get(30, TimeUnit.SECONDS);
+            assertThat(result.status()).isEqualTo(ChangeResult.Status.COMMITTED);
+            created.add(result.version());
+        }
+        assertThat(created).doesNotHaveDuplicates().allMatch(v -> v > 40 && v <= 80);
+        assertThat(new GvtRepositoryImpl(dir).history(null)).hasSize(81);
+        assertThat(new GvtRepositoryImpl(dir).fsck().isClean()).isTrue();
+    }
+
+    private GvtRepository repositoryWithVersions(int changes) throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        Files.writeString(dir.resolve("a.txt"), "0");
+        repo.add("a.txt", "");
+        for (int i = 1; i < changes; i++) {
+            Files.writeString(dir.resolve("a.txt"), Integer.toString(i));
+            repo.commit("a.txt", "change " + i);
+        }
+        return repo;
+    }
+
+    /**
+     * Records what it receives and notes any item beyond the demand it has signalled.
+     */
+    private static final class RecordingSubscriber implements Flow.Subscriber<VersionInfo> {
+        final List<VersionInfo> received = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final long initialDemand;
+        private final AtomicLong demand = new AtomicLong();
+        private final Semaphore items = new Semaphore(0);
+        private int awaited;
+        volatile boolean overrun;
+        volatile Flow.Subscription subscription;
+
+        RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        void request(long n) {
+            demand.accumulateAndGet(n, (current, added) -> (current + added < 0) ? Long.MAX_VALUE : current + added);
+            subscription.request(n);
+        }
+
+        void awaitReceived(int count) throws InterruptedException {
+            assertThat(items.tryAcquire(count - awaited, 10, TimeUnit.SECONDS)).isTrue();
+            awaited = count;
+            assertThat(overrun).isFalse();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            request(initialDemand);
+        }
+
+        @Override
+        public void onNext(VersionInfo item) {
+            if (demand.getAndDecrement() <= 0) {
+                overrun = true;
+            }
+            received.add(item);
+            items.release();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommandLineTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void parsesTypedOptionsAnywhereInOnePass() throws Exception {
+        CommandLine line = CommandLine.command("checkout", 40).flag("-f").text("--to").number("-n", 0, 9)
+            .parameters(1).files();
+
+        CommandLine.Arguments args = line.parse("checkout", "--to", "out", "7", "-n", "3", "-f", "--", "a.txt", "-m");
+
+        assertThat(args.parameter(0)).isEqualTo("7");
+        assertThat(args.parameter(1)).isNull();
+        assertThat(args.text("--to", null)).isEqualTo("out");
+        assertThat(args.number("-n")).isEqualTo(3);
+        assertThat(args.flag("-f")).isTrue();
+        assertThat(args.files()).containsExactly("a.txt", "-m");
+        assertThat(line.parse("checkout", "-1").parameter(0)).isEqualTo("-1");
+        assertThat(line.parse("checkout").files()).isNull();
+    }
+
+    @Test
+    public void rejectsUnknownOptionsSurplusParametersAndBadValues() {
+        CommandLine line = CommandLine.command("log", 70).text("--grep").number("--keep", 0, 5).version("--since");
+
+        assertThat(usage(line, "log", "--grepp", "x")).isEqualTo("70 Unknown log option: --grepp");
+        assertThat(usage(line, "log", "extra")).isEqualTo("70 Unexpected argument for log: extra");
+        assertThat(usage(line, "log", "--grep")).isEqualTo("70 Please specify value for --grep.");
+        assertThat(usage(line, "log", "--keep", "6")).isEqualTo("70 Invalid value for --keep: 6.");
+        assertThat(usage(line, "log", "--since", "x")).isEqualTo("60 Invalid version number: x.");
+
+        CommandLine lenient = CommandLine.command("history", 1).number("-last", 0, 9).lenient();
+        assertThat(usage(lenient, "history", "-last", "x", "extra", "--unknown", "-last")).isEqualTo("parsed");
+    }
+
+    @Test
+    public void gvtTakesMessageBeforeOrAfterFileAndRejectsUnknownFlags() throws Exception {
+        assertThat(run("init")).isEqualTo(0);
+        Files.writeString(dir.resolve("a.txt"), "a");
+        assertThat(run("add", "-m", "first", "a.txt")).isEqualTo(0);
+        Files.writeString(dir.resolve("a.txt"), "b");
+        assertThat(run("commit", "a.txt", "--allow-empty", "-m", "second")).isEqualTo(0);
+
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        assertThat(repo.history(null)).extracting(info -> info.message().substring(info.message().lastIndexOf('\n') + 1))
+            .containsExactly("GVT initialized.", "first.", "second");
+
+        assertThat(run("commit", "a.txt", "--alow-empty")).isEqualTo(50);
+        assertThat(run("init", "--encrypted")).isEqualTo(1);
+        assertThat(run("checkout")).isEqualTo(40);
+        assertThat(run("checkout", "1", "--")).isEqualTo(40);
+        assertThat(run("checkout", "1", "--bogus")).isEqualTo(40);
+        assertThat(run("bundle", "create", "b.gvt", "--since", "two")).isEqualTo(60);
+        assertThat(repo.history(null)).hasSize(3);
+    }
+
+    @Test
+    public void historyTreatsBadArgumentsAsNone() throws Exception {
+        assertThat(run("init")).isEqualTo(0);
+        Files.writeString(dir.resolve("a.txt"), "a");
+        assertThat(run("add", "a.txt")).isEqualTo(0);
+        String full = "0: GVT initialized." + System.lineSeparator() + "1: Added file: a.txt" + System.lineSeparator();
+
+        assertThat(output("history", "-last", "abc")).isEqualTo(full);
+        assertThat(output("history", "-last")).isEqualTo(full);
+        assertThat(output("history", "foo")).isEqualTo(full);
+        assertThat(output("history", "-last", "1")).isEqualTo("1: Added file: a.txt" + System.lineSeparator());
+    }
+
+    @Test
+    public void checkoutReportsExportsAndRestoredFilesAsSuch() throws Exception {
+        assertThat(run("init")).isEqualTo(0);
+        Files.writeString(dir.resolve("a.txt"), "a");
+        assertThat(run("add", "a.txt")).isEqualTo(0);
+        String target = dir.resolve("out").toString();
+
+        assertThat(output("checkout", "1", "--to", target))
+            .isEqualTo("Version 1 exported to: " + target + System.lineSeparator());
+        assertThat(Files.readString(dir.resolve("out").resolve("a.txt"))).isEqualTo("a");
+        assertThat(output("checkout", "1", "--", "a.txt"))
+            .isEqualTo("Files restored from version: 1" + System.lineSeparator());
+        assertThat(output("checkout", "1")).isEqualTo("Checkout successful for version: 1" + System.lineSeparator());
+    }
+
+    private String output(String... args) {
+        PrintStream originalOut = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+        try {
+            assertThat(run(args)).isEqualTo(0);
+        } finally {
+            System.setOut(originalOut);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private int run(String... args) {
+        int[] exitCode = {0};
+        new Gvt(new ExitHandler() {
+            @Override
+            void exitOperation(int code) {
+                exitCode[0] = code;
+            }
+        }, dir).mainInternal(args);
+        return exitCode[0];
+    }
+
+    private static String usage(CommandLine line, String... args) {
+        try {
+            line.parse(args);
+            return "parsed";
+        } catch (CommandLine.UsageException e) {
+            return e.code() + " " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,776 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GvtRepositoryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void operationsOnNotInitializedRepoThrow() {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        assertThat(repo.isInitialized()).isFalse();
+        assertThatThrownBy(() -> repo.add("a.txt", "")).isInstanceOf(NotInitializedException.class);
+        assertThatThrownBy(() -> repo.history(0)).isInstanceOf(NotInitializedException.class);
+    }
+
+    @Test
+    public void initTwiceThrows() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        VersionInfo info = repo.init("GVT initialized.");
+        assertThat(info.version()).isZero();
+        assertThatThrownBy(() -> repo.init("GVT initialized.")).isInstanceOf(AlreadyInitializedException.class);
+    }
+
+    @Test
+    public void addCommitAndCheckout() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "first");
+
+        ChangeResult added = repo.add("a.txt", "");
+        assertThat(added.status()).isEqualTo(ChangeResult.Status.ADDED);
+        assertThat(added.version()).isEqualTo(1);
+        assertThat(repo.add("a.txt", "").status()).isEqualTo(ChangeResult.Status.ALREADY_ADDED);
+
+        write("a.txt", "second");
+        ChangeResult committed = repo.commit("a.txt", "Some change");
+        assertThat(committed.version()).isEqualTo(2);
+        assertThat(repo.version(2).message()).isEqualTo("Committed file: a.txt" + System.lineSeparator() + "Some change");
+
+        repo.checkout(1);
+        assertThat(Files.readString(dir.resolve("a.txt"))).isEqualTo("first");
+
+        assertThat(repo.history(2)).extracting(VersionInfo::firstLine)
+            .containsExactly("Added file: a.txt", "Committed file: a.txt");
+    }
+
+    @Test
+    public void commitOfUnchangedFileCreatesNoVersionUnlessAllowed() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "first");
+        repo.add("a.txt", "");
+
+        ChangeResult unchanged = repo.commit("a.txt", "nothing");
+        assertThat(unchanged.status()).isEqualTo(ChangeResult.Status.UNCHANGED);
+        assertThat(repo.version(null).version()).isEqualTo(1);
+
+        write("a.txt", "tsrif");
+        assertThat(repo.commit("a.txt", "").status()).isEqualTo(ChangeResult.Status.COMMITTED);
+        ChangeResult forced = repo.commit("a.txt", "again", true);
+        assertThat(forced.status()).isEqualTo(ChangeResult.Status.COMMITTED);
+        assertThat(forced.version()).isEqualTo(3);
+    }
+
+    @Test
+    public void missingFileAndInvalidVersionThrow() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        assertThatThrownBy(() -> repo.add("missing.txt", "")).isInstanceOf(MissingFileException.class);
+        assertThatThrownBy(() -> repo.checkout(5)).isInstanceOf(InvalidVersionException.class);
+        assertThat(repo.detach("missing.txt", "").status()).isEqualTo(ChangeResult.Status.NOT_ADDED);
+    }
+
+    @Test
+    public void findsVersionsByMessageTokenAndFile() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "a");
+        write("b.txt", "b");
+        repo.add("a.txt", "");
+        repo.add("b.txt", "");
+        write("a.txt", "a2");
+        repo.commit("a.txt", "Hotfix for parser");
+
+        assertThat(repo.findByMessage("hotfix")).extracting(VersionInfo::version).containsExactly(3);
+        assertThat(repo.findByMessage("file a.txt")).extracting(VersionInfo::version).containsExactly(1, 3);
+        assertThat(repo.findByFile("a.txt")).extracting(VersionInfo::version).containsExactly(1, 3);
+        assertThat(repo.findByFile("b.txt")).extracting(VersionInfo::version).containsExactly(2);
+    }
+
+    @Test
+    public void blameAttributesLinesToVersionsThatChangedThem() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "one\ntwo\nthree\n");
+        repo.add("a.txt", "");
+        write("b.txt", "b");
+        repo.add("b.txt", "");
+        write("a.txt", "one\nTWO\nthree\nfour\n");
+        repo.commit("a.txt", "");
+
+        List<BlameLine> lines = new ArrayList<>();
+        repo.blame("a.txt", null, lines::add);
+
+        assertThat(lines).extracting(BlameLine::version).containsExactly(1, 3, 1, 3);
+        assertThat(lines).extracting(BlameLine::text).containsExactly("one", "TWO", "three", "four");
+        assertThat(repo.findByFile("a.txt")).extracting(VersionInfo::version).containsExactly(1, 3);
+    }
+
+    @Test
+    public void fsckReportsCorruptedRevisionsAndMetadata() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "first");
+        repo.add("a.txt", "");
+        write("b.txt", "second");
+        repo.add("b.txt", "");
+        assertThat(repo.fsck().isClean()).isTrue();
+
+        String hash = Hashing.hash("first".getBytes(StandardCharsets.UTF_8));
+        Files.writeString(dir.resolve(".gvt/objects").resolve(hash.substring(0, 2)).resolve(hash.substring(2)), "tampered");
+        Files.writeString(dir.resolve(".gvt/2/meta.json"), "{\"version\": 2, \"message\": \"forged\"}");
+
+        FsckReport report = new GvtRepositoryImpl(dir).fsck();
+        assertThat(report.isClean()).isFalse();
+        assertThat(report.problems()).extracting(FsckReport.Problem::toString)
+            .contains("Version 1: a.txt: stored revision " + hash + " is corrupted",
+                "Version 2: meta.json: metadata checksum mismatch");
+
+        assertThat(exitCode(dir, VersionService::fsck)).isEqualTo(90);
+    }
+
+    @Test
+    public void addsDirectoriesRecursivelyAndRestoresNestedFiles() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("src/main/App.java", "app");
+        write("src/util.txt", "util");
+        write("top.txt", "top");
+
+        BatchResult batch = repo.addRecursive("src", "");
+        assertThat(batch.files()).isEqualTo(2);
+        assertThat(repo.version(batch.version()).message()).isEqualTo("Added directory: src");
+        assertThat(repo.addRecursive("src", "").isVersionCreated()).isFalse();
+        assertThat(repo.add("src/util.txt", "").status()).isEqualTo(ChangeResult.Status.ALREADY_ADDED);
+
+        write("src/main/App.java", "app2");
+        ChangeResult committed = repo.commit("src/main/App.java", "");
+        assertThat(committed.fileName()).isEqualTo("src/main/App.java");
+        repo.detach("src/util.txt", "");
+        assertThat(repo.files(null)).containsExactly("src/main/App.java");
+        assertThat(repo.files(1)).containsExactly("src/main/App.java", "src/util.txt");
+
+        Files.delete(dir.resolve("src/main/App.java"));
+        Files.delete(dir.resolve("src/main"));
+        repo.checkout(1);
+        assertThat(Files.readString(dir.resolve("src/main/App.java"))).isEqualTo("app");
+        assertThat(repo.findByFile("src/main/App.java")).extracting(VersionInfo::version).containsExactly(1, 2);
+        assertThat(repo.fsck().isClean()).isTrue();
+    }
+
+    @Test
+    public void bundlesTransferFullAndIncrementalHistory() throws Exception {
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Path target = Files.createDirectories(dir.resolve("target"));
+        GvtRepository repo = new GvtRepositoryImpl(source);
+        repo.init("GVT initialized.");
+        write("source/a.txt", "a");
+        repo.add("a.txt", "");
+        repo.createBundle(dir.resolve("full.gvtb"), null);
+        write("source/a.txt", "a2");
+        repo.commit("a.txt", "");
+        BundleResult incremental = repo.createBundle(dir.resolve("inc.gvtb"), 1);
+        assertThat(incremental.versions()).isEqualTo(1);
+        assertThat(incremental.objects()).isEqualTo(2);
+
+        GvtRepository copy = new GvtRepositoryImpl(target);
+        assertThatThrownBy(() -> copy.importBundle(dir.resolve("inc.gvtb"))).isInstanceOf(InvalidBundleException.class);
+        assertThat(copy.importBundle(dir.resolve("full.gvtb")).versions()).isEqualTo(2);
+        assertThat(copy.importBundle(dir.resolve("inc.gvtb")).versions()).isEqualTo(1);
+
+        copy.checkout(2);
+        assertThat(Files.readString(target.resolve("a.txt"))).isEqualTo("a2");
+        assertThat(copy.history(0)).extracting(VersionInfo::version).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void statusReportsModifiedAndMissingFilesWithAndWithoutWatcher() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("d/a.txt", "a");
+        write("b.txt", "b");
+        repo.addRecursive(".", "");
+        assertThat(repo.status()).isEmpty();
+
+        write("d/a.txt", "changed");
+        Files.delete(dir.resolve("b.txt"));
+        try (WorkingTreeWatcher watcher = repo.watch()) {
+            assertThatThrownBy(repo::watch).isInstanceOf(WatcherRunningException.class);
+            assertThat(repo.status()).containsExactly(
+                new FileStatus("b.txt", FileStatus.State.MISSING),
+                new FileStatus("d/a.txt", FileStatus.State.MODIFIED));
+        }
+        assertThat(repo.status()).extracting(FileStatus::fileName).containsExactly("b.txt", "d/a.txt");
+    }
+
+    @Test
+    public void checksOutIntoOtherDirectoryAndSelectedFilesOnly() throws Exception {
+        Path work = Files.createDirectories(dir.resolve("work"));
+        GvtRepository repo = new GvtRepositoryImpl(work);
+        repo.init("GVT initialized.");
+        write("work/a.txt", "a1");
+        write("work/d/b.txt", "b1");
+        repo.addRecursive(".", "");
+        write("work/a.txt", "a2");
+        write("work/d/b.txt", "b2");
+        repo.commit("a.txt", "");
+        repo.commit("d/b.txt", "");
+
+        repo.checkout(1, dir.resolve("export"), null);
+        assertThat(Files.readString(dir.resolve("export/a.txt"))).isEqualTo("a1");
+        assertThat(Files.readString(dir.resolve("export/d/b.txt"))).isEqualTo("b1");
+        assertThat(Files.readString(work.resolve("a.txt"))).isEqualTo("a2");
+
+        repo.checkout(1, null, List.of("d"));
+        assertThat(Files.readString(work.resolve("d/b.txt"))).isEqualTo("b1");
+        assertThat(Files.readString(work.resolve("a.txt"))).isEqualTo("a2");
+        assertThatThrownBy(() -> repo.checkout(1, null, List.of("missing.txt"))).isInstanceOf(MissingFileException.class);
+
+        assertThat(exitCode(work, service -> service.checkout(9))).isEqualTo(40);
+        assertThat(exitCode(work, service -> service.checkout("no-such-branch", null, null))).isEqualTo(40);
+    }
+
+    @Test
+    public void historyStreamsLastVersionsOfLegacyVersionList() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "a");
+        repo.add("a.txt", "first");
+        write("a.txt", "a2");
+        repo.commit("a.txt", "second");
+        Files.writeString(dir.resolve(".gvt/repo.json"), "{\"latestVersion\":2,\"currentVersion\":2,\"versions\":[0,1,2]}");
+
+        List<VersionInfo> last = new ArrayList<>();
+        new GvtRepositoryImpl(dir).history(2, last::add);
+        assertThat(last).extracting(VersionInfo::version).containsExactly(1, 2);
+        assertThat(last.get(1).message()).endsWith("second");
+    }
+
+    @Test
+    public void mutationsBuildOnLatestVersionAndRebuildDamagedHeadSnapshot() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "a");
+        repo.add("a.txt", "");
+        write("b.txt", "b");
+        repo.add("b.txt", "");
+        Files.writeString(dir.resolve(".gvt/repo.json"), "{\"latestVersion\":2,\"currentVersion\":0}");
+        Files.write(dir.resolve(".gvt/head"), new byte[] {1, 2, 3});
+
+        GvtRepository reopened = new GvtRepositoryImpl(dir);
+        assertThat(reopened.add("a.txt", "").status()).isEqualTo(ChangeResult.Status.ALREADY_ADDED);
+        write("c.txt", "c");
+        reopened.add("c.txt", "");
+        assertThat(reopened.files(null)).containsExactly("a.txt", "b.txt", "c.txt");
+    }
+
+    @Test
+    public void branchesExtendTheirOwnTipAndShareEarlierVersions() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "one\ntwo\n");
+        repo.add("a.txt", "");
+        assertThat(repo.createTag("v1", null)).isEqualTo(new Ref("v1", 1));
+        assertThat(repo.createBranch("feature", "v1")).isEqualTo(new Ref("feature", 1));
+        assertThatThrownBy(() -> repo.createBranch("v1", null)).isInstanceOf(RefException.class);
+        assertThatThrownBy(() -> repo.createTag("7", null)).isInstanceOf(RefException.class);
+
+        write("a.txt", "one\nTWO\n");
+        repo.commit("a.txt", "");
+        repo.switchBranch("feature");
+        write("a.txt", "one\ntwo\nthree\n");
+        assertThat(repo.commit("a.txt", "").version()).isEqualTo(3);
+
+        List<BlameLine> lines = new ArrayList<>();
+        repo.blame("a.txt", null, lines::add);
+        assertThat(lines).extracting(BlameLine::version).containsExactly(1, 1, 3);
+        assertThat(repo.branches()).containsExactly(new Ref("feature", 3), new Ref("main", 2));
+
+        repo.switchBranch("main");
+        repo.checkout(repo.resolve("main"));
+        assertThat(repo.status()).isEmpty();
+        assertThat(new GvtRepositoryImpl(dir).currentBranch()).isEqualTo(new Ref("main", 2));
+        assertThatThrownBy(() -> repo.switchBranch("v1")).isInstanceOf(RefException.class);
+
+        // parent links stay out of repo.json and are restored from the versions' metadata
+        assertThat(Files.readString(dir.resolve(".gvt/repo.json"))).doesNotContain("parents");
+        Files.delete(dir.resolve(".gvt/parents"));
+        lines.clear();
+        new GvtRepositoryImpl(dir).blame("a.txt", 3, lines::add);
+        assertThat(lines).extracting(BlameLine::version).containsExactly(1, 1, 3);
+        assertThat(Files.size(dir.resolve(".gvt/parents"))).isEqualTo(4 * 2 * Integer.BYTES);
+    }
+
+    @Test
+    public void mergeCombinesChangesFromBothBranchesAndStopsOnConflicts() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "1\n2\n3\n4\n5\n");
+        write("b.txt", "b");
+        repo.addRecursive(".", "");
+        repo.createBranch("feature", null);
+        write("a.txt", "one\n2\n3\n4\n5\n");
+        repo.commit("a.txt", "");
+        repo.switchBranch("feature");
+        write("a.txt", "1\n2\n3\n4\nfive\n");
+        repo.commit("a.txt", "");
+        write("b.txt", "b2");
+        repo.commit("b.txt", "");
+
+        MergeResult merged = repo.merge("main", "");
+        assertThat(merged.status()).isEqualTo(MergeResult.Status.MERGED);
+        assertThat(merged.base()).isEqualTo(1);
+        assertThat(Files.readString(dir.resolve("a.txt"))).isEqualTo("one\n2\n3\n4\nfive\n");
+        assertThat(repo.files(null)).containsExactly("a.txt", "b.txt");
+        assertThat(repo.merge("main", "").status()).isEqualTo(MergeResult.Status.UP_TO_DATE);
+
+        write("a.txt", "one\n2\nthree\n4\nfive\n");
+        repo.commit("a.txt", "");
+        repo.switchBranch("main");
+        repo.checkout(repo.resolve("main"));
+        write("a.txt", "one\n2\nTHREE\n4\n5\n");
+        repo.commit("a.txt", "");
+
+        MergeResult conflicted = repo.merge("feature", "");
+        assertThat(conflicted.status()).isEqualTo(MergeResult.Status.CONFLICTS);
+        assertThat(conflicted.conflicts()).containsExactly("a.txt");
+        assertThat(Files.readString(dir.resolve("a.txt")))
+            .isEqualTo("one\n2\n<<<<<<< main\nTHREE\n=======\nthree\n>>>>>>> feature\n4\nfive\n");
+        assertThat(Files.readString(dir.resolve("b.txt"))).isEqualTo("b2");
+        assertThatThrownBy(() -> repo.continueMerge("")).isInstanceOf(MergeException.class);
+
+        write("a.txt", "one\n2\n3\n4\nfive\n");
+        MergeResult resolved = repo.continueMerge("");
+        assertThat(resolved.status()).isEqualTo(MergeResult.Status.MERGED);
+        assertThat(repo.version(resolved.version()).message()).isEqualTo("Merged version: " + repo.resolve("feature"));
+        assertThat(repo.status()).isEmpty();
+        assertThat(repo.merge("feature", "").status()).isEqualTo(MergeResult.Status.UP_TO_DATE);
+    }
+
+    @Test
+    public void mergeAndStashPopOfLargeDivergentFilesWriteOneConflict() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("big.txt", numbered("base", 6000));
+        repo.add("big.txt", "");
+        repo.createBranch("feature", null);
+        write("big.txt", numbered("main", 6000));
+        repo.commit("big.txt", "");
+        repo.switchBranch("feature");
+        repo.checkout(repo.resolve("feature"));
+        write("big.txt", numbered("feature", 6000));
+        repo.commit("big.txt", "");
+
+        MergeResult merged = repo.merge("main", "");
+        assertThat(merged.conflicts()).containsExactly("big.txt");
+        assertThat(Files.readString(dir.resolve("big.txt")))
+            .isEqualTo("<<<<<<< feature\n" + numbered("feature", 6000) + "=======\n" + numbered("main", 6000)
+                + ">>>>>>> main\n");
+        repo.abortMerge();
+
+        write("big.txt", numbered("stashed", 6000));
+        repo.stash();
+        write("big.txt", numbered("newer", 6000));
+        repo.commit("big.txt", "");
+        assertThat(repo.stashPop().conflicts()).containsExactly("big.txt");
+        assertThat(Files.readString(dir.resolve("big.txt")))
+            .isEqualTo("<<<<<<< feature\n" + numbered("newer", 6000) + "=======\n" + numbered("stashed", 6000)
+                + ">>>>>>> stash\n");
+    }
+
+    @Test
+    public void pushAndPullTransferOnlyMissingVersionsAndObjects() throws Exception {
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Path target = Files.createDirectories(dir.resolve("target"));
+        GvtRepository repo = new GvtRepositoryImpl(source);
+        repo.init("GVT initialized.");
+        write("source/a.txt", "a");
+        write("source/b.txt", "b");
+        repo.add("a.txt", "");
+        repo.add("b.txt", "");
+        repo.createTag("v1", null);
+
+        try (SyncServer server = repo.serve(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            String address = "localhost:" + server.getPort();
+
+            GvtRepository copy = new GvtRepositoryImpl(target);
+            assertThat(copy.pull(address).versions()).isEqualTo(3);
+            assertThat(copy.tags()).containsExactly(new Ref("v1", 2));
+            assertThat(copy.pull(address).versions()).isZero();
+
+            write("source/a.txt", "a2");
+            repo.commit("a.txt", "");
+            SyncResult incremental = copy.pull(address);
+            assertThat(incremental.versions()).isEqualTo(1);
+            assertThat(incremental.objects()).isEqualTo(2);
+
+            copy.checkout(3);
+            write("target/b.txt", "b2");
+            copy.commit("b.txt", "");
+            assertThat(copy.push(address).versions()).isEqualTo(1);
+            assertThat(repo.version(null).version()).isEqualTo(4);
+
+            write("source/a.txt", "a3");
+            repo.commit("a.txt", "");
+            write("target/a.txt", "a4");
+            copy.commit("a.txt", "");
+            assertThatThrownBy(() -> copy.pull(address)).isInstanceOf(SyncException.class);
+        }
+    }
+
+    @Test
+    public void pullRejectsOversizedMetadataWithoutAllocatingIt() throws Exception {
+        try (SyncServer server = SyncServer.bind(0, socket -> {
+            try (Sync.Connection connection = Sync.accept(socket)) {
+                connection.in.readInt();
+                connection.in.readUTF();
+                connection.in.readUTF();
+                connection.out.writeByte(0);
+                connection.out.writeInt(-1);
+                connection.out.writeInt(0);
+                connection.out.writeUTF("");
+                connection.out.writeByte(3);
+                connection.out.writeInt(1);
+                connection.out.writeInt(0);
+                connection.out.writeInt(Integer.MAX_VALUE);
+                connection.out.flush();
+                connection.in.readByte();
+            }
+        })) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            GvtRepository copy = new GvtRepositoryImpl(Files.createDirectories(dir.resolve("target")));
+            assertThatThrownBy(() -> copy.pull("localhost:" + server.getPort()))
+                .isInstanceOf(SyncException.class)
+                .hasMessageContaining("Protocol error: metadata of version 0");
+        }
+    }
+
+    @Test
+    public void cloneLinksStoredRevisionsOrFetchesThemOnFirstUse() throws Exception {
+        Path source = Files.createDirectories(dir.resolve("source"));
+        GvtRepository repo = new GvtRepositoryImpl(source);
+        repo.init("GVT initialized.");
+        write("source/a.txt", "a");
+        repo.add("a.txt", "");
+        write("source/a.txt", "a2");
+        repo.commit("a.txt", "");
+
+        GvtRepository copy = new GvtRepositoryImpl(dir.resolve("copy"));
+        CloneResult linked = copy.cloneFrom(source, false);
+        assertThat(linked.version()).isEqualTo(2);
+        assertThat(linked.sharing()).isEqualTo(CloneResult.Sharing.HARDLINKS);
+        assertThat(Files.readString(dir.resolve("copy/a.txt"))).isEqualTo("a2");
+        write("copy/a.txt", "a3");
+        copy.commit("a.txt", "");
+        assertThat(repo.history(0)).hasSize(3);
+        assertThat(copy.history(0)).hasSize(4);
+
+        GvtRepositoryImpl lazy = new GvtRepositoryImpl(dir.resolve("lazy"));
+        assertThat(lazy.cloneFrom(source, true).sharing()).isEqualTo(CloneResult.Sharing.LAZY);
+        String first = lazy.getObjectStore().find(Hashing.hash("a".getBytes())).toString();
+        assertThat(first).startsWith(source.toString());
+        lazy.checkout(1);
+        assertThat(lazy.getObjectStore().containsLocally(Hashing.hash("a".getBytes()))).isTrue();
+        assertThat(Files.readString(dir.resolve("lazy/a.txt"))).isEqualTo("a");
+
+        assertThatThrownBy(() -> new GvtRepositoryImpl(dir.resolve("lazy")).cloneFrom(source, false))
+            .isInstanceOf(CloneException.class);
+    }
+
+    @Test
+    public void stashSavesLocalChangesAndPopMergesThemIntoNewerVersions() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "one\ntwo\nthree\n");
+        write("b.txt", "b");
+        repo.add("a.txt", "");
+        repo.add("b.txt", "");
+        assertThat(repo.stash().files()).isZero();
+        assertThatThrownBy(repo::stashPop).isInstanceOf(StashException.class);
+
+        write("a.txt", "ONE\ntwo\nthree\n");
+        Files.delete(dir.resolve("b.txt"));
+        assertThat(repo.stash().files()).isEqualTo(2);
+        assertThat(repo.status()).isEmpty();
+        assertThat(repo.history(0)).hasSize(3);
+
+        write("a.txt", "one\ntwo\nTHREE\n");
+        repo.commit("a.txt", "");
+        StashResult popped = repo.stashPop();
+        assertThat(popped.conflicts()).isEmpty();
+        assertThat(Files.readString(dir.resolve("a.txt"))).isEqualTo("ONE\ntwo\nTHREE\n");
+        assertThat(dir.resolve("b.txt")).doesNotExist();
+        assertThatThrownBy(repo::stashPop).isInstanceOf(StashException.class);
+
+        write("b.txt", "b2");
+        repo.stash();
+        write("b.txt", "b3");
+        assertThatThrownBy(repo::stashPop).isInstanceOf(StashException.class);
+    }
+
+    @Test
+    public void archiveStreamsStoredRevisionsWithoutTouchingTheWorkingTree() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        String longPath = "deep/" + "d".repeat(200) + "/c.txt";
+        write("a.txt", "a1");
+        write(longPath, "c");
+        repo.add("a.txt", "");
+        repo.add(longPath, "");
+        write("a.txt", "a2");
+        repo.commit("a.txt", "");
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ArchiveResult zipped = repo.archive(2, ArchiveFormat.ZIP, zip);
+        assertThat(zipped.files()).isEqualTo(2);
+        assertThat(zipped.bytes()).isEqualTo(3);
+        Map<String, String> entries = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                entries.put(entry.getName(), new String(in.readAllBytes()));
+            }
+        }
+        assertThat(entries).containsEntry("a.txt", "a1").containsEntry(longPath, "c");
+
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        repo.archive(3, ArchiveFormat.TGZ, tar);
+        byte[] archive = new GZIPInputStream(new ByteArrayInputStream(tar.toByteArray())).readAllBytes();
+        assertThat(archive.length % 512).isZero();
+        assertThat(new String(archive, 0, 5)).isEqualTo("a.txt");
+        assertThat(new String(archive, 512, 2)).isEqualTo("a2");
+        assertThat(new String(archive)).contains(" path=" + longPath + "\n");
+        assertThat(Files.readString(dir.resolve("a.txt"))).isEqualTo("a2");
+
+        assertThatThrownBy(() -> repo.archive(7, ArchiveFormat.TAR, new ByteArrayOutputStream()))
+            .isInstanceOf(InvalidVersionException.class);
+    }
+
+    @Test
+    public void encryptedRepositoryStoresNoPlaintextAndRoundTrips() throws Exception {
+        RepositoryKey key = RepositoryKey.generate();
+        GvtRepository repo = new GvtRepositoryImpl(dir, key);
+        repo.init("GVT initialized.", true);
+        String content = "confidential line\n".repeat(10_000);
+        write("a.txt", content);
+        repo.add("a.txt", "payroll figures");
+        write("a.txt", "changed");
+        repo.commit("a.txt", "");
+        write("a.txt", "changed again");
+
+        try (WorkingTreeWatcher watcher = repo.watch();
+             Stream<Path> files = Files.walk(dir.resolve(".gvt"))) {
+            assertThat(repo.status()).containsExactly(new FileStatus("a.txt", FileStatus.State.MODIFIED));
+            assertThat(dir.resolve(".gvt").resolve("dirty")).isRegularFile();
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                String stored = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+                assertThat(stored).doesNotContain("confidential", "payroll", "a.txt");
+            }
+        }
+        // objects are not named by the plain hash of their content, which anyone could compute for a guess
+        String plainHash = Hashing.hash(content.getBytes(StandardCharsets.UTF_8));
+        assertThat(dir.resolve(".gvt").resolve("objects").resolve(plainHash.substring(0, 2))
+            .resolve(plainHash.substring(2))).doesNotExist();
+
+        GvtRepository reopened = new GvtRepositoryImpl(dir, key);
+        assertThat(reopened.findByMessage("payroll")).extracting(VersionInfo::version).containsExactly(1);
+        assertThat(reopened.fsck().isClean()).isTrue();
+        reopened.checkout(1, dir.resolve("out"), null);
+        assertThat(Files.readString(dir.resolve("out").resolve("a.txt"))).isEqualTo(content);
+
+        GvtRepository wrongKey = new GvtRepositoryImpl(dir, RepositoryKey.generate());
+        assertThatThrownBy(() -> wrongKey.history(0)).isInstanceOf(EncryptionException.class);
+    }
+
+    @Test
+    public void encryptedRepositoriesTransferSealedAndOnlyToTheSameKey() throws Exception {
+        RepositoryKey key = RepositoryKey.generate();
+        Path source = Files.createDirectories(dir.resolve("source"));
+        GvtRepository repo = new GvtRepositoryImpl(source, key);
+        repo.init("GVT initialized.", true);
+        write("source/a.txt", "confidential");
+        repo.add("a.txt", "payroll figures");
+
+        Path bundle = dir.resolve("full.gvtb");
+        repo.createBundle(bundle, null);
+        byte[] packed = Files.readAllBytes(bundle);
+        byte[] inflated = new InflaterInputStream(new ByteArrayInputStream(packed, 8, packed.length - 8)).readAllBytes();
+        assertThat(new String(inflated, StandardCharsets.ISO_8859_1)).doesNotContain("confidential", "payroll", "a.txt");
+
+        GvtRepository copy = new GvtRepositoryImpl(Files.createDirectories(dir.resolve("copy")), key);
+        assertThat(copy.importBundle(bundle).versions()).isEqualTo(2);
+        copy.checkout(1);
+        assertThat(Files.readString(dir.resolve("copy/a.txt"))).isEqualTo("confidential");
+        assertThat(copy.fsck().isClean()).isTrue();
+
+        GvtRepository otherKey = new GvtRepositoryImpl(Files.createDirectories(dir.resolve("other")),
+            RepositoryKey.generate());
+        assertThatThrownBy(() -> otherKey.importBundle(bundle)).isInstanceOf(EncryptionException.class);
+        assertThat(dir.resolve("other/.gvt")).doesNotExist();
+        GvtRepository plain = new GvtRepositoryImpl(Files.createDirectories(dir.resolve("plain")));
+        plain.init("GVT initialized.");
+        assertThatThrownBy(() -> plain.importBundle(bundle)).isInstanceOf(EncryptionException.class);
+        ObjectStore plainStore = new ObjectStore(dir.resolve("plain/.gvt/objects"));
+        assertThatThrownBy(() -> plainStore.addAlternate(source.resolve(".gvt/objects"))).isInstanceOf(IOException.class);
+
+        try (SyncServer server = repo.serve(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            String address = "localhost:" + server.getPort();
+
+            GvtRepository pulled = new GvtRepositoryImpl(Files.createDirectories(dir.resolve("pulled")), key);
+            assertThat(pulled.pull(address).versions()).isEqualTo(2);
+            pulled.checkout(1);
+            assertThat(Files.readString(dir.resolve("pulled/a.txt"))).isEqualTo("confidential");
+            assertThat(pulled.fsck().isClean()).isTrue();
+
+            assertThatThrownBy(() -> plain.pull(address)).isInstanceOf(EncryptionException.class);
+            assertThatThrownBy(() -> plain.push(address)).isInstanceOf(EncryptionException.class);
+        }
+    }
+
+    @Test
+    public void maintenancePacksColdVersionsIntoSegmentsTransparently() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("a.txt", "0");
+        repo.add("a.txt", "first");
+        for (int i = 1; i <= 20; i++) {
+            write("a.txt", Integer.toString(i));
+            repo.commit("a.txt", "change " + i);
+        }
+
+        MaintenanceResult result = repo.maintenance(5, 0);
+        assertThat(result.versions()).isEqualTo(17);
+        assertThat(result.segments()).isEqualTo(1);
+        assertThat(result.bytesAfter()).isLessThan(result.bytesBefore());
+        assertThat(dir.resolve(".gvt").resolve("16")).doesNotExist();
+        assertThat(dir.resolve(".gvt").resolve("17")).isDirectory();
+        assertThat(repo.maintenance(5, 0).versions()).isZero();
+
+        GvtRepository reopened = new GvtRepositoryImpl(dir);
+        assertThat(reopened.version(3).message()).contains("change 2");
+        reopened.checkout(4, dir.resolve("out"), null);
+        assertThat(Files.readString(dir.resolve("out").resolve("a.txt"))).isEqualTo("3");
+        assertThat(reopened.findByFile("a.txt")).hasSize(21);
+        assertThat(reopened.fsck().isClean()).isTrue();
+
+        write("a.txt", "more");
+        reopened.commit("a.txt", "");
+        assertThat(reopened.maintenance(0, 0).versions()).isEqualTo(6);
+        assertThat(reopened.version(22).message()).isNotEmpty();
+        assertThat(new GvtRepositoryImpl(dir).version(20).message()).contains("change 19");
+    }
+
+    @Test
+    public void bisectFindsFirstBadVersionWithoutTouchingTheWorkingTree() throws Exception {
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        repo.init("GVT initialized.");
+        write("config.txt", "ok");
+        repo.add("config.txt", "");
+        for (int v = 2; v <= 30; v++) {
+            write("config.txt", (v >= 17) ? "broken " + v : "ok " + v);
+            repo.commit("config.txt", "");
+        }
+        write("config.txt", "local");
+
+        List<Integer> testedVersions = Collections.synchronizedList(new ArrayList<>());
+        BisectPredicate predicate = (version, directory) -> {
+            testedVersions.add(version);
+            if (version == 16) {
+                return BisectPredicate.Verdict.SKIP;
+            }
+            boolean broken = Files.readString(directory.resolve("config.txt")).startsWith("broken");
+            return broken ? BisectPredicate.Verdict.BAD : BisectPredicate.Verdict.GOOD;
+        };
+
+        BisectResult sequential = repo.bisect(1, 30, 1, predicate);
+        assertThat(sequential.firstBad()).isEqualTo(17);
+        assertThat(sequential.skipped()).containsExactly(16);
+        assertThat(sequential.rounds()).isEqualTo(sequential.tested());
+
+        testedVersions.clear();
+        BisectResult parallel = repo.bisect(1, 30, 4, predicate);
+        assertThat(parallel.firstBad()).isEqualTo(17);
+        assertThat(parallel.rounds()).isLessThan(sequential.rounds());
+        assertThat(testedVersions).doesNotHaveDuplicates().allMatch(v -> v > 1 && v < 30);
+        assertThat(Files.readString(dir.resolve("config.txt"))).isEqualTo("local");
+
+        assertThatThrownBy(() -> repo.bisect(30, 1, 2, predicate)).isInstanceOf(BisectException.class);
+        assertThatThrownBy(() -> repo.bisect(1, 31, 2, predicate)).isInstanceOf(InvalidVersionException.class);
+    }
+
+    private static String numbered(String prefix, int lines) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            content.append(prefix).append(' ').append(i).append('\n');
+        }
+        return content.toString();
+    }
+
+    private static int exitCode(Path repository, Consumer<VersionService> command) {
+        int[] exitCode = {0};
+        command.accept(new VersionServiceImpl(repository.toString(), new ExitHandler() {
+            @Override
+            void exitOperation(int code) {
+                exitCode[0] = code;
+            }
+        }));
+        return exitCode[0];
+    }
+
+    private void write(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
@@ -0,0 +1,87 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeadSnapshotTest {
+
+    private static final String TREE = "t".repeat(64);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void contentChangesArePatchedInPlace() throws Exception {
+        Path file = dir.resolve("head");
+        Map<String, String> manifest = manifest(500);
+        HeadSnapshot.write(file, null, 1, 1, TREE, manifest);
+        HeadSnapshot base = HeadSnapshot.read(file, null);
+        Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+
+        HeadSnapshot next = HeadSnapshot.update(file, null, base, 2, 2, "u".repeat(64),
+            Map.of("d2/f250.txt", hash('x')));
+
+        assertThat(Files.readAttributes(file, BasicFileAttributes.class).fileKey()).isEqualTo(fileKey);
+        assertThat(next.version()).isEqualTo(2);
+        assertThat(next.rootTree()).isEqualTo("u".repeat(64));
+        assertThat(next.lookup("d2/f250.txt")).isEqualTo(hash('x'));
+        assertThat(next.lookup("d2/f251.txt")).isEqualTo(manifest.get("d2/f251.txt"));
+        // the patched file still passes its checksum
+        assertThat(HeadSnapshot.read(file, null).lookup("d2/f250.txt")).isEqualTo(hash('x'));
+    }
+
+    @Test
+    public void addedAndRemovedPathsGiveTheSameSnapshotAsAFullWrite() throws Exception {
+        Path file = dir.resolve("head");
+        Map<String, String> manifest = manifest(300);
+        HeadSnapshot.write(file, null, 1, 1, TREE, manifest);
+
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a-first.txt", hash('a'));
+        changes.put("d1/f100.txt", null);
+        changes.put("d2/f200.txt", hash('b'));
+        changes.put("d2/f200.txt-after", hash('c'));
+        changes.put("zz/\u0142.txt", hash('d'));
+        changes.put("not-tracked.txt", null);
+        HeadSnapshot next = HeadSnapshot.update(file, null, HeadSnapshot.read(file, null), 2, 2, TREE, changes);
+
+        Map<String, String> expected = new TreeMap<>(manifest);
+        changes.forEach((path, hash) -> {
+            if (hash == null) {
+                expected.remove(path);
+            } else {
+                expected.put(path, hash);
+            }
+        });
+        Path full = dir.resolve("full");
+        HeadSnapshot.write(full, null, 2, 2, TREE, expected);
+
+        assertThat(next.size()).isEqualTo(expected.size());
+        assertThat(Files.readAllBytes(file)).isEqualTo(Files.readAllBytes(full));
+        assertThat(next.lookup("d1/f100.txt")).isNull();
+        assertThat(next.lookup("zz/\u0142.txt")).isEqualTo(hash('d'));
+    }
+
+    private static Map<String, String> manifest(int files) {
+        Map<String, String> manifest = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            String name = "d" + (i / 100) + "/f" + i + ".txt";
+            manifest.put(name, Hashing.hash(name.getBytes(StandardCharsets.UTF_8)));
+        }
+        return manifest;
+    }
+
+    private static String hash(char c) {
+        return String.valueOf(c).repeat(64);
+    }
+}
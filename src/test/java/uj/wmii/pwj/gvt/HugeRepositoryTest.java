@@ -0,0 +1,189 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every command against a synthetic repository with a long history. Meant for the {@code hugeRepoTest}
+ * task, which runs it with a 64 MB heap; the size is set with {@code -Dgvt.huge.versions}.
+ */
+@Tag("huge")
+public class HugeRepositoryTest {
+
+    private static final int VERSIONS = Integer.getInteger("gvt.huge.versions", 20_000);
+    private static final int DIRECTORIES = 10;
+    private static final int FILES_PER_DIRECTORY = 10;
+    private static final String FILLER = " lorem ipsum dolor sit amet".repeat(80);
+
+    @TempDir
+    Path dir;
+
+    private PrintStream originalOut;
+    private CountingOutputStream out;
+    private VersionService service;
+    private int exitCode;
+
+    private class RecordingExitHandler extends ExitHandler {
+        @Override
+        void exitOperation(int code) {
+            exitCode = code;
+        }
+    }
+
+    @BeforeEach
+    void generateRepository() throws IOException {
+        generate(dir, VERSIONS);
+        originalOut = System.out;
+        out = new CountingOutputStream();
+        System.setOut(new PrintStream(out, false, StandardCharsets.UTF_8));
+        service = new VersionServiceImpl(dir.toString(), new RecordingExitHandler());
+    }
+
+    @AfterEach
+    void restoreOutput() {
+        System.setOut(originalOut);
+    }
+
+    @Test
+    public void everyCommandRunsWithinTheHeapBudget() throws IOException {
+        run(() -> service.history(null));
+        assertThat(out.lines).isEqualTo(VERSIONS + 1);
+        run(() -> service.history(5));
+        assertThat(out.lines).isEqualTo(5);
+        run(() -> service.version(VERSIONS / 2));
+        run(() -> service.log("lorem", null));
+        assertThat(out.lines).isEqualTo(VERSIONS);
+        run(() -> service.log(null, "d0/f0.txt"));
+        run(() -> service.blame("d0/f0.txt", null));
+        run(() -> service.checkout(VERSIONS));
+        run(service::status);
+        assertThat(out.toString()).contains("Nothing to commit");
+
+        Files.writeString(dir.resolve("d1/f1.txt"), "changed");
+        run(() -> service.commit("d1/f1.txt", "changed"));
+        Files.writeString(dir.resolve("new.txt"), "new");
+        run(() -> service.add("new.txt", ""));
+        run(() -> service.detach("new.txt", ""));
+        run(() -> service.checkout(VERSIONS / 2, dir.resolve("export").toString(), null));
+        run(() -> service.createBundle(dir.resolve("all.gvtb").toString(), null));
+        run(() -> service.createBundle(dir.resolve("last.gvtb").toString(), VERSIONS));
+        run(service::fsck);
+    }
+
+    private void run(Runnable command) {
+        out.reset();
+        exitCode = 0;
+        command.run();
+        System.out.flush();
+        assertThat(exitCode).as(out.toString()).isZero();
+    }
+
+    /**
+     * Writes a repository directly on disk: every version changes one file of a two-level tree and carries a
+     * message of a few kilobytes.
+     */
+    static void generate(Path root, int versions) throws IOException {
+        Path gvtDir = Files.createDirectories(root.resolve(".gvt"));
+        String[][] files = new String[DIRECTORIES][FILES_PER_DIRECTORY];
+        String[] directories = new String[DIRECTORIES];
+        for (int d = 0; d < DIRECTORIES; d++) {
+            for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+                files[d][f] = storeFile(root, gvtDir, d, f, "initial");
+            }
+            directories[d] = storeDirectory(gvtDir, files[d]);
+        }
+
+        writeVersion(gvtDir, 0, "GVT initialized.", storeTree(gvtDir, new String[0]));
+        for (int v = 1; v <= versions; v++) {
+            int d = v % DIRECTORIES;
+            int f = (v / DIRECTORIES) % FILES_PER_DIRECTORY;
+            files[d][f] = storeFile(root, gvtDir, d, f, "revision " + v);
+            directories[d] = storeDirectory(gvtDir, files[d]);
+            writeVersion(gvtDir, v, "Version " + v + " changes d" + d + "/f" + f + ".txt" + FILLER,
+                storeTree(gvtDir, directories));
+        }
+        Files.writeString(gvtDir.resolve("repo.json"),
+            "{\"latestVersion\":" + versions + ",\"currentVersion\":" + versions + "}");
+    }
+
+    private static String storeFile(Path root, Path gvtDir, int d, int f, String content) throws IOException {
+        Path file = root.resolve("d" + d).resolve("f" + f + ".txt");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        return store(gvtDir, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String storeDirectory(Path gvtDir, String[] files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int f = 0; f < files.length; f++) {
+            sb.append("blob ").append(files[f]).append(" f").append(f).append(".txt\n");
+        }
+        return store(gvtDir, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String storeTree(Path gvtDir, String[] directories) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int d = 0; d < directories.length; d++) {
+            sb.append("tree ").append(directories[d]).append(" d").append(d).append('\n');
+        }
+        return store(gvtDir, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String store(Path gvtDir, byte[] content) throws IOException {
+        String hash = Hashing.hash(content);
+        Path object = gvtDir.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+        if (!Files.exists(object)) {
+            Files.createDirectories(object.getParent());
+            Files.write(object, content);
+        }
+        return hash;
+    }
+
+    private static void writeVersion(Path gvtDir, int version, String message, String tree) throws IOException {
+        Path versionDir = Files.createDirectories(gvtDir.resolve(Integer.toString(version)));
+        String json = "{\"version\":" + version + ",\"message\":\"" + message + "\",\"tree\":\"" + tree + "\"}";
+        Files.writeString(versionDir.resolve(VersionMetaData.FILE_NAME), json);
+    }
+
+    /**
+     * Keeps only the last few kilobytes of output, so the captured output does not count against the heap.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private final StringBuilder tail = new StringBuilder();
+        private int lines;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lines++;
+            }
+            tail.append((char) b);
+            if (tail.length() > 8192) {
+                tail.delete(0, 4096);
+            }
+        }
+
+        void reset() {
+            lines = 0;
+            tail.setLength(0);
+        }
+
+        @Override
+        public String toString() {
+            return tail.toString();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineDiffTest {
+
+    @Test
+    public void matchesFormALongestCommonSubsequence() {
+        Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            long[] a = randomLines(random, random.nextInt(40), 6);
+            long[] b = randomLines(random, random.nextInt(40), 6);
+            int[] matches = LineDiff.match(a, b);
+
+            int matched = 0;
+            int previous = -1;
+            for (int i = 0; i < b.length; i++) {
+                if (matches[i] >= 0) {
+                    assertThat(matches[i]).isGreaterThan(previous);
+                    assertThat(a[matches[i]]).isEqualTo(b[i]);
+                    previous = matches[i];
+                    matched++;
+                }
+            }
+            assertThat(matched).isEqualTo(lcsLength(a, b));
+        }
+    }
+
+    @Test
+    public void unrelatedLargeInputsAreMatchedInLinearMemory() {
+        long[] a = new long[6000];
+        long[] b = new long[6000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i;
+            b[i] = -1 - i;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+
+        int[] matches = LineDiff.match(a, b);
+
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertThat(matches).containsOnly(-1);
+        // a trace of every diagonal vector would take about a gigabyte here
+        assertThat(allocated).isLessThan(4L * 1024 * 1024);
+
+        b[3000] = a[1500];
+        assertThat(LineDiff.match(a, b)[3000]).isEqualTo(1500);
+    }
+
+    private static long[] randomLines(Random random, int count, int distinct) {
+        long[] lines = new long[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = random.nextInt(distinct);
+        }
+        return lines;
+    }
+
+    private static int lcsLength(long[] a, long[] b) {
+        int[][] lengths = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                lengths[i][j] = (a[i] == b[j])
+                    ? lengths[i + 1][j + 1] + 1
+                    : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        return lengths[0][0];
+    }
+}
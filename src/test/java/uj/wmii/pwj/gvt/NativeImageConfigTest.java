@@ -0,0 +1,49 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NativeImageConfigTest {
+
+    private static final String REFLECT_CONFIG = "META-INF/native-image/uj.wmii.pwj.gvt/gvt/reflect-config.json";
+
+    @Test
+    public void reflectConfigRegistersEveryClassGsonInstantiates() throws Exception {
+        Set<String> registered = new TreeSet<>();
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(REFLECT_CONFIG)) {
+            assertThat(in).isNotNull();
+            JsonArray entries = JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8)).getAsJsonArray();
+            for (JsonElement entry : entries) {
+                registered.add(entry.getAsJsonObject().get("name").getAsString());
+            }
+        }
+
+        assertThat(registered).contains(RepoMetaData.class.getName(), VersionMetaData.class.getName(),
+            MergeState.class.getName(), StashState.class.getName(), StashState.Entry.class.getName());
+        for (String name : registered) {
+            Class<?> type = Class.forName(name);
+            if (!name.startsWith("uj.wmii.pwj.gvt.")) {
+                continue;
+            }
+            // Gson creates the concrete collections of declared fields reflectively as well
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && field.getType().getName().startsWith("java.util.")
+                        && !field.getType().isInterface()) {
+                    assertThat(registered).contains(field.getType().getName());
+                }
+            }
+        }
+    }
+}
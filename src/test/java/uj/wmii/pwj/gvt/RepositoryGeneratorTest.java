@@ -0,0 +1,52 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RepositoryGeneratorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void generatesRequestedHistoryLengthAndFileCount() throws Exception {
+        new RepositoryGenerator(dir, RepositoryGenerator.SizeDistribution.parse("fixed:1k"), 0.25, 0.0, 3)
+            .generate(40, 25);
+
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        List<VersionInfo> history = repo.history(null);
+        assertThat(history).hasSize(41);
+        assertThat(history.get(40).version()).isEqualTo(40);
+        assertThat(repo.version(1).message()).contains("initial import");
+        assertThat(history.subList(2, 41)).allMatch(info -> info.message().contains("change d"));
+
+        assertThat(repo.files(1)).hasSize(25);
+        assertThat(repo.files(40)).hasSize(25);
+        assertThat(Files.list(dir.resolve("d2")).count()).isEqualTo(5);
+        // 16 lines of 64 characters and a newline reach the 1k size
+        assertThat(Files.size(dir.resolve("d0/f0.txt"))).isEqualTo(16 * 65);
+        assertThat(repo.fsck().isClean()).isTrue();
+    }
+
+    @Test
+    public void churnAddsAndDetachesFiles() throws Exception {
+        new RepositoryGenerator(dir, RepositoryGenerator.SizeDistribution.parse("uniform:100-200"), 0.1, 0.5, 5)
+            .generate(60, 10);
+
+        GvtRepository repo = new GvtRepositoryImpl(dir);
+        List<VersionInfo> history = repo.history(null);
+        assertThat(history).hasSize(61);
+
+        long added = history.stream().filter(info -> info.message().contains("add d")).count();
+        long detached = history.stream().filter(info -> info.message().contains("detach d")).count();
+        assertThat(added).isPositive();
+        assertThat(detached).isPositive();
+        assertThat(repo.files(60)).hasSize((int) (10 + added - detached));
+    }
+}
@@ -0,0 +1,45 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RepositoryManagerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void openReturnsSameInstanceForSamePath() {
+        RepositoryManager manager = new RepositoryManager();
+        assertThat(manager.open(dir.resolve("a"))).isSameAs(manager.open(dir.resolve("a/../a")));
+    }
+
+    @Test
+    public void identicalFilesAreStoredOnceInSharedStore() throws Exception {
+        Path shared = dir.resolve("shared");
+        RepositoryManager manager = new RepositoryManager(new SharedCache(), shared);
+
+        for (String name : new String[] {"first", "second"}) {
+            Path repoDir = Files.createDirectories(dir.resolve(name));
+            Files.writeString(repoDir.resolve("vendor.txt"), "same content");
+            GvtRepository repo = manager.open(repoDir);
+            repo.init("GVT initialized.");
+            repo.add("vendor.txt", "");
+        }
+
+        String hash = Hashing.hash("same content".getBytes());
+        assertThat(manager.getSharedStore().containsLocally(hash)).isTrue();
+        assertThat(Files.exists(dir.resolve("first/.gvt/objects").resolve(hash.substring(0, 2)))).isFalse();
+        assertThat(Files.exists(dir.resolve("second/.gvt/objects").resolve(hash.substring(0, 2)))).isFalse();
+
+        GvtRepository reopened = new GvtRepositoryImpl(dir.resolve("second"));
+        Files.writeString(dir.resolve("second/vendor.txt"), "changed");
+        reopened.checkout(1);
+        assertThat(Files.readString(dir.resolve("second/vendor.txt"))).isEqualTo("same content");
+    }
+}
@@ -0,0 +1,50 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreeWayMergeTest {
+
+    private static final int LINES = 6000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void divergentLargeFilesMergeInLinearMemory() throws Exception {
+        ObjectStore store = new ObjectStore(dir.resolve("objects"));
+        String base = store.store(lines("base"));
+        String ours = store.store(lines("ours"));
+        String theirs = store.store(lines("theirs"));
+        ThreeWayMerge merge = new ThreeWayMerge(store);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * LINES * 16);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        boolean conflicts = merge.merge(base, ours, theirs, "main", "feature", out);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertThat(conflicts).isTrue();
+        String merged = out.toString(StandardCharsets.UTF_8);
+        assertThat(merged).startsWith("<<<<<<< main\nours 0\n");
+        assertThat(merged).endsWith("theirs " + (LINES - 1) + "\n>>>>>>> feature\n");
+        assertThat(merged.split("\n", -1)).hasSize(2 * LINES + 4);
+        // two diagonal traces of base against each side would take gigabytes
+        assertThat(allocated).isLessThan(8L * 1024 * 1024);
+    }
+
+    private static byte[] lines(String prefix) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            content.append(prefix).append(' ').append(i).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}